@@ -8,6 +8,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import org.gesis.rdfcommons.FingerprintSet;
 import org.openrdf.rio.RDFFormat;
 import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.rio.RDFParseException;
@@ -16,13 +18,16 @@ import org.openrdf.rio.Rio;
 
 /**
  * CLI tool to extract object URIs from NTriple files. A file can be passed as
- * parameter or via bash pipelining.
+ * parameter or via bash pipelining. With --distinct every URI is written only
+ * once, repeats are detected in a fixed amount of memory.
  *
  */
 public class App {
 
-    private static final String USAGE = "Usage: ntextract <infile> alternatively use piping.";
+    private static final String USAGE = "Usage: ntextract [<infile>] [--distinct [--distinct-memory <MB>] [--no-bloom] [--tmp <dir>]]"
+            + " alternatively use piping.";
     private static final String ENCODING = "UTF-8";
+    private static final long DISTINCT_MEMORY = 256; //MB
 
     /**
      * Main entry point.
@@ -35,14 +40,40 @@ public class App {
         File inFile = null;
         InputStream inStream = null;
         BufferedWriter bWriter = null;
+        boolean distinct = false;
+        long distinctMemory = DISTINCT_MEMORY;
+        boolean bloom = true;
+        File tmpDir = new File(System.getProperty("java.io.tmpdir"));
 
         //input check
-        if (args.length > 1) {
+        ArrayList<String> positional = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--distinct")) {
+                    distinct = true;
+                } else if (args[i].equals("--distinct-memory") && i + 1 < args.length) {
+                    distinctMemory = Long.valueOf(args[++i]);
+                } else if (args[i].equals("--no-bloom")) {
+                    bloom = false;
+                } else if (args[i].equals("--tmp") && i + 1 < args.length) {
+                    tmpDir = new File(args[++i]);
+                } else if (args[i].startsWith("--")) {
+                    System.err.println(USAGE);
+                    return;
+                } else {
+                    positional.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            System.err.println("Invalid number: " + nfe.getMessage());
+            return;
+        }
+        if (positional.size() > 1 || distinctMemory < 1) {
             System.err.println(USAGE);
             return;
         } //use infile arg
-        else if (args.length == 1) {
-            inFile = new File(args[0]);
+        else if (positional.size() == 1) {
+            inFile = new File(positional.get(0));
             //check file
             if (!inFile.isFile() || !inFile.exists()) {
                 System.err.println("File not found.");
@@ -67,7 +98,13 @@ public class App {
         }
 
         RDFParser rdfParser = Rio.createParser(RDFFormat.NTRIPLES);
-        rdfParser.setRDFHandler(new RDFWriterHandler(bWriter));
+        RDFWriterHandler handler = new RDFWriterHandler(bWriter);
+        FingerprintSet seen = null;
+        if (distinct) {
+            seen = new FingerprintSet(distinctMemory * 1024 * 1024, tmpDir, bloom);
+            handler.setDistinct(seen);
+        }
+        rdfParser.setRDFHandler(handler);
 
         try {
             if (inStream.available() <= 0) {
@@ -81,6 +118,11 @@ public class App {
             System.err.println(ex.getMessage());
         } catch (RDFHandlerException ex) {
             System.err.println(ex.getMessage());
+        } finally {
+            if (seen != null) {
+                seen.close();
+                System.err.println("Distinct " + seen.getDistinct() + ", repeats " + seen.getRepeats() + ", spills " + seen.getSpills());
+            }
         }
 
     }
@@ -2,29 +2,59 @@ package org.gesis.ntextract;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import org.gesis.rdfcommons.FingerprintSet;
+import org.gesis.rdfcommons.LinkExtractor;
 import org.openrdf.model.Statement;
-import org.openrdf.model.Value;
 import org.openrdf.rio.helpers.RDFHandlerBase;
 
 /**
  * Implements a custom RDFHandler for RDFParser. Extracts the object URL from
- * every statement and writes it to System.out .
+ * every statement and writes it to System.out . If a FingerprintSet is given,
+ * every URL is written only once.
  *
  */
 public class RDFWriterHandler extends RDFHandlerBase {
 
     private BufferedWriter bWriter = null;
+    private FingerprintSet distinct = null;
+    private LinkExtractor extractor = new LinkExtractor();
 
     public RDFWriterHandler(BufferedWriter bWriter) {
         this.bWriter = bWriter;
     }
 
+    public LinkExtractor getExtractor() {
+        return extractor;
+    }
+
+    /**
+     * @param extractor Decides which object URLs are written
+     */
+    public void setExtractor(LinkExtractor extractor) {
+        this.extractor = extractor;
+    }
+
+    public FingerprintSet getDistinct() {
+        return distinct;
+    }
+
+    /**
+     * @param distinct Set of the URLs written so far, null to write repeated
+     * URLs as well
+     */
+    public void setDistinct(FingerprintSet distinct) {
+        this.distinct = distinct;
+    }
+
     @Override
     public void handleStatement(Statement st) {
-        Value v = st.getObject();
-        if (!(v instanceof org.openrdf.model.Literal)) {
+        String link = extractor.extract(st);
+        if (link != null) {
             try {
-                bWriter.write(v.stringValue());
+                if (distinct != null && !distinct.add(link)) {
+                    return;
+                }
+                bWriter.write(link);
                 bWriter.newLine();
             } catch (IOException ex) {
                 System.err.println(ex.getMessage());
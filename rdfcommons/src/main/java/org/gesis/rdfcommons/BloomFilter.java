@@ -0,0 +1,85 @@
+package org.gesis.rdfcommons;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Bloom filter over 64-bit fingerprints, its bits are kept off the heap. The
+ * bit positions are derived from the fingerprint by double hashing.
+ *
+ */
+public class BloomFilter {
+
+    private final LongBuffer bits;
+    private final long size;
+    private int hashes;
+
+    /**
+     * @param bytes Memory for the bits
+     * @param hashes Number of bits set per fingerprint
+     */
+    public BloomFilter(long bytes, int hashes) {
+        int words = (int) Math.min(Integer.MAX_VALUE / 8, Math.max(1, bytes / 8));
+        this.bits = ByteBuffer.allocateDirect(words * 8).asLongBuffer();
+        this.size = (long) words * 64;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Optimal number of hashes for the expected number of fingerprints.
+     *
+     * @param bytes Memory for the bits
+     * @param expected Expected number of fingerprints
+     * @return The number of hashes, at least one
+     */
+    public static int optimalHashes(long bytes, long expected) {
+        return (int) Math.max(1, Math.min(16, Math.round(8.0 * bytes / Math.max(1, expected) * Math.log(2))));
+    }
+
+    /**
+     * Removes all fingerprints.
+     *
+     * @param hashes Number of bits set per fingerprint from now on
+     */
+    public void reset(int hashes) {
+        for (int i = 0; i < bits.capacity(); i++) {
+            bits.put(i, 0);
+        }
+        this.hashes = hashes;
+    }
+
+    /**
+     * @return Memory taken by the bits
+     */
+    public long getBytes() {
+        return size / 8;
+    }
+
+    public void add(long fingerprint) {
+        long h1 = fingerprint;
+        long h2 = Fingerprint.mix(fingerprint) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+            int word = (int) (bit >>> 6);
+            bits.put(word, bits.get(word) | (1L << bit));
+        }
+    }
+
+    /**
+     * @param fingerprint
+     * @return false if the fingerprint was never added, true if it might have
+     * been
+     */
+    public boolean mightContain(long fingerprint) {
+        long h1 = fingerprint;
+        long h2 = Fingerprint.mix(fingerprint) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,29 @@
+package org.gesis.rdfcommons;
+
+import org.openrdf.http.client.SparqlSession;
+import org.openrdf.query.resultio.TupleQueryResultFormat;
+import org.openrdf.repository.sparql.SPARQLRepository;
+import org.openrdf.rio.RDFFormat;
+
+/**
+ * SPARQLRepository asking for the most compact result formats. The binary
+ * formats are preferred in the Accept header, endpoints that do not support
+ * them fall back to one of the other formats listed there. Binary results are
+ * smaller on the wire and much cheaper to parse than SPARQL/XML.
+ *
+ */
+public class CompactSPARQLRepository extends SPARQLRepository {
+
+    public CompactSPARQLRepository(String endpointUrl) {
+        super(endpointUrl);
+    }
+
+    @Override
+    protected SparqlSession createHTTPClient() {
+        SparqlSession session = super.createHTTPClient();
+        session.setPreferredTupleQueryResultFormat(TupleQueryResultFormat.BINARY);
+        session.setPreferredRDFFormat(RDFFormat.BINARY);
+        return session;
+    }
+
+}
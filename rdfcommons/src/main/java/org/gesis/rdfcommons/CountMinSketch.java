@@ -0,0 +1,121 @@
+package org.gesis.rdfcommons;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Count-min sketch of the frequencies of values. A frequency is never
+ * underestimated, with probability 1 - delta it is overestimated by at most
+ * epsilon times the total of all frequencies. The sketch takes
+ * ceil(e / epsilon) * ceil(ln(1 / delta)) longs whatever the number of values.
+ * Sketches of the same dimensions can be merged.
+ *
+ */
+public class CountMinSketch {
+
+    private final int width;
+    private final int depth;
+    private final long[] counts; //depth rows of width counters
+    private long total = 0;
+
+    /**
+     * @param epsilon Maximum overestimate relative to the total
+     * @param delta Probability of a larger overestimate
+     */
+    public CountMinSketch(double epsilon, double delta) {
+        this((int) Math.ceil(Math.E / epsilon), (int) Math.ceil(Math.log(1 / delta)));
+    }
+
+    private CountMinSketch(int width, int depth) {
+        this.width = width;
+        this.depth = depth;
+        this.counts = new long[width * depth];
+    }
+
+    /**
+     * @param hash A well mixed 64-bit hash of the value
+     * @param count
+     */
+    public void add(long hash, long count) {
+        for (int i = 0; i < depth; i++) {
+            counts[i * width + slot(hash, i)] += count;
+        }
+        total += count;
+    }
+
+    /**
+     * @param hash A well mixed 64-bit hash of the value
+     * @return Estimated frequency of the value
+     */
+    public long estimate(long hash) {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, counts[i * width + slot(hash, i)]);
+        }
+        return min;
+    }
+
+    /**
+     * Derives the i-th hash function from two halves of the hash.
+     */
+    private int slot(long hash, int i) {
+        int h = (int) hash + i * (int) (hash >>> 32);
+        return (h & Integer.MAX_VALUE) % width;
+    }
+
+    /**
+     * @return Total of all frequencies
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return Relative overestimate epsilon
+     */
+    public double getEpsilon() {
+        return Math.E / width;
+    }
+
+    /**
+     * @return Probability delta of a larger overestimate
+     */
+    public double getDelta() {
+        return Math.exp(-depth);
+    }
+
+    /**
+     * Adds the frequencies of another sketch.
+     *
+     * @param other A sketch of the same dimensions
+     */
+    public void merge(CountMinSketch other) {
+        if (other.width != width || other.depth != depth) {
+            throw new IllegalArgumentException("Dimensions " + other.width + "x" + other.depth + " instead of " + width + "x" + depth);
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(width);
+        out.writeInt(depth);
+        out.writeLong(total);
+        for (long c : counts) {
+            out.writeLong(c);
+        }
+    }
+
+    public static CountMinSketch read(DataInput in) throws IOException {
+        CountMinSketch cms = new CountMinSketch(in.readInt(), in.readInt());
+        cms.total = in.readLong();
+        for (int i = 0; i < cms.counts.length; i++) {
+            cms.counts[i] = in.readLong();
+        }
+        return cms;
+    }
+
+}
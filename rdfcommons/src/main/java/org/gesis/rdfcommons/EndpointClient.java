@@ -0,0 +1,341 @@
+package org.gesis.rdfcommons;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.openrdf.OpenRDFException;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryInterruptedException;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+
+/**
+ * Client of a SPARQL endpoint, shared by all threads of a tool. Every
+ * connection uses the same CompactSPARQLRepository and the same pooled HTTP
+ * client, which keeps connections alive between queries, accepts gzip
+ * compressed responses and applies connect and read timeouts, by default
+ * CONNECT_TIMEOUT and READ_TIMEOUT, so a stalled endpoint fails a query
+ * instead of hanging the tool. Queries run by execute are limited to a rate
+ * and to a number being submitted at the same time, and are retried with
+ * exponential backoff if they failed for a transient reason, e.g. a dropped
+ * connection or an HTTP status of an overloaded endpoint. Malformed and timed
+ * out queries are not retried.
+ *
+ */
+public class EndpointClient {
+
+    /**
+     * A query run by execute. It may run several times, so it must not pass
+     * on results before it is complete.
+     *
+     * @param <T> Type of the result
+     */
+    public interface Request<T> {
+
+        T run() throws OpenRDFException;
+
+    }
+
+    /**
+     * Default seconds to establish a connection.
+     */
+    public static final int CONNECT_TIMEOUT = 10;
+    /**
+     * Default seconds to wait for data of a response.
+     */
+    public static final int READ_TIMEOUT = 300;
+    private static final int READ_TIMEOUT_MARGIN = 30; //s the endpoint may take beyond the query time
+
+    //HTTP status codes of an endpoint that is overloaded or restarting
+    private static final List<Integer> TRANSIENT_STATUS = Arrays.asList(429, 502, 503, 504);
+    private static final long MAX_BACKOFF = 60000; //ms
+
+    private final String endpoint;
+    private int maxConnections = 32;
+    private int connectTimeout = CONNECT_TIMEOUT; //s
+    private int readTimeout = READ_TIMEOUT; //s
+    private int retries = 3;
+    private long backoff = 1000; //ms
+    private double rate = 0;
+    private int maxConcurrent = 0;
+
+    private PoolingHttpClientConnectionManager pool = null;
+    private CloseableHttpClient httpClient = null;
+    private CompactSPARQLRepository repo = null;
+    private RateLimiter limiter = null;
+    private Semaphore concurrent = null;
+
+    //statistics
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+
+    /**
+     * @param endpoint URL of the SPARQL endpoint
+     */
+    public EndpointClient(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @param maxConnections Maximum number of pooled HTTP connections
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @param connectTimeout Maximum seconds to establish a connection, 0 for
+     * no limit
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * @param readTimeout Maximum seconds to wait for data of a response, 0 for
+     * no limit
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Raises the read timeout above the maximum time of a query, so it does
+     * not end queries the endpoint may still work on.
+     *
+     * @param queryTimeout Maximum seconds a query may run on the endpoint, 0
+     * for no limit
+     */
+    public void fitReadTimeout(int queryTimeout) {
+        if (readTimeout > 0 && queryTimeout > 0) {
+            readTimeout = Math.max(readTimeout, queryTimeout + READ_TIMEOUT_MARGIN);
+        }
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @param retries How often a query failed for a transient reason is
+     * retried
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    public long getBackoff() {
+        return backoff;
+    }
+
+    /**
+     * @param backoff Milliseconds to wait before the first retry, doubled for
+     * every further retry
+     */
+    public void setBackoff(long backoff) {
+        this.backoff = backoff;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * @param rate Maximum number of queries started per second by all
+     * threads, 0 for no limit
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * @param maxConcurrent Maximum number of queries submitted at the same
+     * time, 0 for no limit. A result read after the query returned, e.g. a
+     * streamed TupleQueryResult, does not count.
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Creates the connection pool and the repository. Settings changed
+     * afterwards have no effect.
+     *
+     * @throws RepositoryException
+     */
+    public void initialize() throws RepositoryException {
+        pool = new PoolingHttpClientConnectionManager();
+        pool.setMaxTotal(maxConnections);
+        pool.setDefaultMaxPerRoute(maxConnections);
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout * 1000)
+                .setSocketTimeout(readTimeout * 1000)
+                .build();
+        //content compression is enabled by default
+        httpClient = HttpClientBuilder.create()
+                .setConnectionManager(pool)
+                .setDefaultRequestConfig(config)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .disableAutomaticRetries() //retries are up to execute
+                .addInterceptorLast(new HttpResponseInterceptor() {
+                    @Override
+                    public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+                        //SparqlSession reports 503 as a timed out query and
+                        //other statuses only by the message of the endpoint
+                        int status = response.getStatusLine().getStatusCode();
+                        if (TRANSIENT_STATUS.contains(status)) {
+                            throw new IOException("HTTP status " + status + " " + response.getStatusLine().getReasonPhrase());
+                        }
+                    }
+                })
+                .build();
+        repo = new CompactSPARQLRepository(endpoint);
+        repo.setHttpClient(httpClient);
+        repo.initialize();
+        if (rate > 0) {
+            limiter = new RateLimiter(rate);
+        }
+        if (maxConcurrent > 0) {
+            concurrent = new Semaphore(maxConcurrent);
+        }
+    }
+
+    /**
+     * Opens a connection using the shared HTTP client. Connections are cheap,
+     * but should not be shared by several threads.
+     *
+     * @return The new connection
+     * @throws RepositoryException
+     */
+    public RepositoryConnection getConnection() throws RepositoryException {
+        return repo.getConnection();
+    }
+
+    /**
+     * Runs a query within the rate and concurrency limits, retries it if it
+     * failed for a transient reason. Only the submission is limited, a query
+     * is no longer counted as running once run returns, even if its result is
+     * streamed afterwards.
+     *
+     * @param <T> Type of the result
+     * @param request The query
+     * @return The result of the query
+     * @throws OpenRDFException The failure of the last attempt
+     * @throws InterruptedException While waiting for the limits or a retry
+     */
+    public <T> T execute(Request<T> request) throws OpenRDFException, InterruptedException {
+        int attempt = 0;
+        while (true) {
+            if (limiter != null) {
+                limiter.acquire();
+            }
+            if (concurrent != null) {
+                concurrent.acquire();
+            }
+            requests.incrementAndGet();
+            try {
+                return request.run();
+            } catch (OpenRDFException ex) {
+                if (attempt >= retries || !isTransient(ex)) {
+                    throw ex;
+                }
+            } finally {
+                if (concurrent != null) {
+                    concurrent.release();
+                }
+            }
+            retried.incrementAndGet();
+            Thread.sleep(Math.min(MAX_BACKOFF, backoff << attempt));
+            attempt++;
+        }
+    }
+
+    /**
+     * Decides whether a failed query may succeed if sent again. That is the
+     * case if the connection failed or the endpoint was overloaded, reported
+     * as an IOException by the HTTP client, but not if the query is malformed
+     * or timed out.
+     *
+     * @param ex
+     * @return Whether the query should be retried
+     */
+    private static boolean isTransient(OpenRDFException ex) {
+        if (ex instanceof MalformedQueryException || ex instanceof QueryInterruptedException) {
+            return false;
+        }
+        for (Throwable t = ex; t != null; t = t.getCause()) {
+            if (t instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Shuts down the repository and closes all pooled connections.
+     *
+     * @throws RepositoryException
+     */
+    public void shutDown() throws RepositoryException {
+        if (repo != null) {
+            repo.shutDown();
+        }
+        try {
+            if (httpClient != null) {
+                httpClient.close();
+            }
+        } catch (IOException ex) {
+            throw new RepositoryException(ex);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return Number of queries run by execute, including retries
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return Number of retries
+     */
+    public long getRetried() {
+        return retried.get();
+    }
+
+}
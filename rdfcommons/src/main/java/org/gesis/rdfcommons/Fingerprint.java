@@ -0,0 +1,46 @@
+package org.gesis.rdfcommons;
+
+/**
+ * 64-bit fingerprints of strings. Two different strings get the same
+ * fingerprint with a probability of about 2^-64, so among a billion strings a
+ * collision is still unlikely (p &lt; 3%).
+ *
+ */
+public final class Fingerprint {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private Fingerprint() {
+    }
+
+    /**
+     * Computes the fingerprint of a string: FNV-1a over its characters,
+     * finished by the MurmurHash3 mixer to spread the bits.
+     *
+     * @param s
+     * @return The fingerprint
+     */
+    public static long of(CharSequence s) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            h = (h ^ (c & 0xff)) * FNV_PRIME;
+            h = (h ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return mix(h ^ s.length());
+    }
+
+    /**
+     * MurmurHash3 fmix64 finalizer.
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
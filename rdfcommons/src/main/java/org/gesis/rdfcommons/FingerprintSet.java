@@ -0,0 +1,288 @@
+package org.gesis.rdfcommons;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Set of 64-bit fingerprints of strings in a fixed memory budget, used to drop
+ * repeated values from a stream. The fingerprints are kept off the heap in an
+ * open addressing hash table. Once the table is full it is sorted and spilled
+ * to a run file on disk, runs are merged when there are too many of them.
+ * Fingerprints not in the table are looked up in the runs, an optional Bloom
+ * filter over the spilled fingerprints saves most of these lookups for values
+ * seen the first time. The filter is rebuilt with the number of hashes fitting
+ * the spilled fingerprints whenever they double, so its false positive rate
+ * does not grow with the runs. The table takes at most 1 GB, the rest of the
+ * memory goes to the Bloom filter.
+ *
+ * Distinct strings share a fingerprint with a probability of about 2^-64, in
+ * that rare case the later string is taken for a repeat.
+ *
+ */
+public class FingerprintSet {
+
+    private static final double LOAD_FACTOR = 0.75;
+    private static final int MAX_RUNS = 8;
+    private static final int MAX_CAPACITY = 1 << 27; //longs, a direct buffer holds at most 2 GB
+    private static final long EMPTY = 0;
+
+    private final LongBuffer table;
+    private final int mask;
+    private final int threshold;
+    private final BloomFilter bloom;
+    private final File spillDir;
+    private final ArrayList<SortedRun> runs = new ArrayList<SortedRun>();
+    private int count = 0;
+    private int runNo = 0;
+    private long bloomExpected = 0; //spilled fingerprints the hashes of the filter fit
+
+    //statistics
+    private long distinct = 0;
+    private long repeats = 0;
+    private long spills = 0;
+    private long diskLookups = 0;
+
+    /**
+     * @param memory Bytes of memory to use for the table and the Bloom filter
+     * @param spillDir Directory for run files
+     * @param bloom Whether to put a Bloom filter in front of the runs, it gets
+     * a quarter of the memory
+     */
+    public FingerprintSet(long memory, File spillDir, boolean bloom) {
+        long tableBytes = bloom ? memory / 4 * 3 : memory;
+        int capacity = Integer.highestOneBit((int) Math.max(16, Math.min(MAX_CAPACITY, tableBytes / 8)));
+        this.table = ByteBuffer.allocateDirect(capacity * 8).asLongBuffer();
+        this.mask = capacity - 1;
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+        this.bloomExpected = 2L * threshold;
+        long bloomBytes = memory - capacity * 8L;
+        this.bloom = bloom ? new BloomFilter(bloomBytes, BloomFilter.optimalHashes(bloomBytes, bloomExpected)) : null;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * Adds the fingerprint of a string.
+     *
+     * @param s
+     * @return true if the string was not seen before
+     * @throws IOException If spilling to disk fails
+     */
+    public boolean add(CharSequence s) throws IOException {
+        return add(Fingerprint.of(s));
+    }
+
+    /**
+     * Adds a fingerprint.
+     *
+     * @param fingerprint
+     * @return true if the fingerprint was not seen before
+     * @throws IOException If spilling to disk fails
+     */
+    public boolean add(long fingerprint) throws IOException {
+        if (fingerprint == EMPTY) {
+            fingerprint = 1;
+        }
+        int slot = (int) Fingerprint.mix(fingerprint) & mask;
+        long v = table.get(slot);
+        while (v != EMPTY) {
+            if (v == fingerprint) {
+                repeats++;
+                return false;
+            }
+            slot = (slot + 1) & mask;
+            v = table.get(slot);
+        }
+        if (!runs.isEmpty() && (bloom == null || bloom.mightContain(fingerprint))) {
+            diskLookups++;
+            for (SortedRun run : runs) {
+                if (run.contains(fingerprint)) {
+                    repeats++;
+                    return false;
+                }
+            }
+        }
+        table.put(slot, fingerprint);
+        count++;
+        distinct++;
+        if (count > threshold) {
+            spill();
+        }
+        return true;
+    }
+
+    /**
+     * Writes the table sorted to a new run and empties it.
+     */
+    private void spill() throws IOException {
+        //move the fingerprints to the front and sort them in place
+        int n = 0;
+        for (int i = 0; i <= mask; i++) {
+            long v = table.get(i);
+            if (v != EMPTY) {
+                table.put(i, EMPTY);
+                table.put(n++, v);
+                if (bloom != null) {
+                    bloom.add(v);
+                }
+            }
+        }
+        sort(table, 0, n - 1);
+
+        File file = new File(spillDir, "fingerprints-" + (runNo++) + ".run");
+        file.deleteOnExit();
+        ByteBuffer bytes = ByteBuffer.allocate(1 << 16);
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            FileChannel channel = fos.getChannel();
+            for (int i = 0; i < n; i++) {
+                if (!bytes.hasRemaining()) {
+                    bytes.flip();
+                    channel.write(bytes);
+                    bytes.clear();
+                }
+                bytes.putLong(table.get(i));
+                table.put(i, EMPTY);
+            }
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } finally {
+            fos.close();
+        }
+        runs.add(new SortedRun(file));
+        count = 0;
+        spills++;
+
+        if (runs.size() > MAX_RUNS) {
+            File merged = new File(spillDir, "fingerprints-" + (runNo++) + ".run");
+            merged.deleteOnExit();
+            SortedRun run = SortedRun.merge(runs, merged);
+            for (SortedRun r : runs) {
+                r.delete();
+            }
+            runs.clear();
+            runs.add(run);
+        }
+
+        if (bloom != null) {
+            long spilled = 0;
+            for (SortedRun r : runs) {
+                spilled += r.size();
+            }
+            if (spilled > bloomExpected) {
+                rebuildBloom(spilled * 2);
+            }
+        }
+    }
+
+    /**
+     * Fills the Bloom filter anew from the runs, with the number of hashes
+     * fitting the expected number of spilled fingerprints.
+     */
+    private void rebuildBloom(long expected) {
+        bloomExpected = expected;
+        bloom.reset(BloomFilter.optimalHashes(bloom.getBytes(), expected));
+        for (SortedRun run : runs) {
+            for (long i = 0; i < run.size(); i++) {
+                bloom.add(run.get(i));
+            }
+        }
+    }
+
+    /**
+     * Quicksort on a LongBuffer, recursing into the smaller part only.
+     */
+    private static void sort(LongBuffer a, int lo, int hi) {
+        while (hi - lo > 16) {
+            int mid = (lo + hi) >>> 1;
+            //median of three as pivot
+            if (a.get(mid) < a.get(lo)) {
+                swap(a, mid, lo);
+            }
+            if (a.get(hi) < a.get(lo)) {
+                swap(a, hi, lo);
+            }
+            if (a.get(hi) < a.get(mid)) {
+                swap(a, hi, mid);
+            }
+            long pivot = a.get(mid);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (a.get(i) < pivot) {
+                    i++;
+                }
+                while (a.get(j) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(a, i++, j--);
+                }
+            }
+            if (j - lo < hi - i) {
+                sort(a, lo, j);
+                lo = i;
+            } else {
+                sort(a, i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) { //insertion sort for short ranges
+            long v = a.get(i);
+            int j = i - 1;
+            while (j >= lo && a.get(j) > v) {
+                a.put(j + 1, a.get(j));
+                j--;
+            }
+            a.put(j + 1, v);
+        }
+    }
+
+    private static void swap(LongBuffer a, int i, int j) {
+        long t = a.get(i);
+        a.put(i, a.get(j));
+        a.put(j, t);
+    }
+
+    /**
+     * Deletes the run files.
+     */
+    public void close() {
+        for (SortedRun run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    /**
+     * @return Number of distinct fingerprints added
+     */
+    public long getDistinct() {
+        return distinct;
+    }
+
+    /**
+     * @return Number of repeated fingerprints added
+     */
+    public long getRepeats() {
+        return repeats;
+    }
+
+    public long getSpills() {
+        return spills;
+    }
+
+    /**
+     * @return Number of adds that had to search the runs on disk
+     */
+    public long getDiskLookups() {
+        return diskLookups;
+    }
+
+}
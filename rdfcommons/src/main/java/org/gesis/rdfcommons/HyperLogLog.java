@@ -0,0 +1,109 @@
+package org.gesis.rdfcommons;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * HyperLogLog estimate of the number of distinct values. It takes 2^precision
+ * bytes whatever the number of values, the standard error of the estimate is
+ * 1.04 / sqrt(2^precision), e.g. 0.8% for precision 14. Sketches of the same
+ * precision can be merged, the result is the sketch of the union of their
+ * values.
+ *
+ */
+public class HyperLogLog {
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * @param precision Between 4 and 18, the sketch has 2^precision registers
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("Precision " + precision + " not between 4 and 18");
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @param s
+     */
+    public void add(CharSequence s) {
+        addHash(Fingerprint.of(s));
+    }
+
+    /**
+     * @param hash A well mixed 64-bit hash of the value
+     */
+    public void addHash(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        //position of the first 1 bit after the index bits, a sentinel bit ends the search
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    /**
+     * @return Estimated number of distinct values
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double alpha = m >= 128 ? 0.7213 / (1 + 1.079 / m) : m == 64 ? 0.709 : m == 32 ? 0.697 : 0.673;
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) { //linear counting is better for few values
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * @return Relative standard error of the estimate
+     */
+    public double getError() {
+        return 1.04 / Math.sqrt(registers.length);
+    }
+
+    /**
+     * Adds the values of another sketch.
+     *
+     * @param other A sketch of the same precision
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Precision " + other.precision + " instead of " + precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(precision);
+        out.write(registers);
+    }
+
+    public static HyperLogLog read(DataInput in) throws IOException {
+        HyperLogLog hll = new HyperLogLog(in.readByte());
+        in.readFully(hll.registers);
+        return hll;
+    }
+
+}
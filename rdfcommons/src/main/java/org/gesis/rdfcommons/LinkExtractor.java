@@ -0,0 +1,64 @@
+package org.gesis.rdfcommons;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+
+/**
+ * Extracts the links of statements, i.e. their object URIs. Literals and blank
+ * nodes are no links. Links can be restricted to given predicates and to
+ * URIs in given namespaces.
+ *
+ */
+public class LinkExtractor {
+
+    private final HashSet<String> predicates = new HashSet<String>();
+    private final ArrayList<String> namespaces = new ArrayList<String>();
+
+    /**
+     * Restricts the links to the objects of a predicate. Can be called for
+     * several predicates, without a call all predicates are followed.
+     *
+     * @param predicate The predicate URI
+     */
+    public void addPredicate(String predicate) {
+        predicates.add(predicate);
+    }
+
+    /**
+     * Restricts the links to URIs starting with a namespace. Can be called for
+     * several namespaces, without a call all URIs are links.
+     *
+     * @param namespace The namespace URI
+     */
+    public void addNamespace(String namespace) {
+        namespaces.add(namespace);
+    }
+
+    /**
+     * @param st
+     * @return The object URI of the statement if it is a link, null otherwise
+     */
+    public String extract(Statement st) {
+        Value v = st.getObject();
+        if (!(v instanceof URI)) {
+            return null;
+        }
+        if (!predicates.isEmpty() && !predicates.contains(st.getPredicate().stringValue())) {
+            return null;
+        }
+        String link = v.stringValue();
+        if (namespaces.isEmpty()) {
+            return link;
+        }
+        for (String namespace : namespaces) {
+            if (link.startsWith(namespace)) {
+                return link;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,257 @@
+package org.gesis.rdfcommons;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.BitSet;
+
+/**
+ * Map from long keys, e.g. fingerprints, to bit sets of a fixed width. Entries
+ * are kept off the heap in an open addressing hash table of segments, so it
+ * holds billions of entries without burdening the garbage collector. An entry
+ * takes 8 bytes for the key and 8 bytes per 64 bits, the table doubles once it
+ * is three quarters full.
+ *
+ * The table is direct memory, which is limited by -XX:MaxDirectMemorySize,
+ * by default the maximum heap size. While the table doubles the old and the
+ * new one are held, three times the size before. Size the map for the keys
+ * expected, see bytes, and check it against maxDirectMemory up front instead
+ * of running into an OutOfMemoryError.
+ *
+ * The keys are expected to be well mixed already. The key 0 is stored as 1.
+ *
+ */
+public class LongBitSetMap {
+
+    private static final double LOAD_FACTOR = 0.75;
+    private static final int SEGMENT_BITS = 27; //1 GB per segment
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+    private static final long EMPTY = 0;
+    private static final String MAX_DIRECT_MEMORY = "-XX:MaxDirectMemorySize=";
+
+    private final int width;
+    private final int stride; //longs per entry
+    private LongBuffer[] segments;
+    private long capacity;
+    private long size = 0;
+
+    /**
+     * @param width Number of bits per key, may be 0 for a set of keys
+     * @param expected Number of keys expected, the table grows if there are
+     * more
+     */
+    public LongBitSetMap(int width, long expected) {
+        this.width = width;
+        this.stride = 1 + (width + 63) / 64;
+        allocate(capacityFor(expected));
+    }
+
+    /**
+     * @param width Number of bits per key
+     * @param expected Number of keys expected
+     * @return Bytes of direct memory of a map for the keys expected
+     */
+    public static long bytes(int width, long expected) {
+        return capacityFor(expected) * (1 + (width + 63) / 64) * 8;
+    }
+
+    /**
+     * @return Bytes of direct memory the JVM may allocate, as set by
+     * -XX:MaxDirectMemorySize or else the maximum heap size
+     */
+    public static long maxDirectMemory() {
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (arg.startsWith(MAX_DIRECT_MEMORY)) {
+                String value = arg.substring(MAX_DIRECT_MEMORY.length()).toLowerCase();
+                long unit = 1;
+                switch (value.charAt(value.length() - 1)) {
+                    case 'k':
+                        unit = 1L << 10;
+                        break;
+                    case 'm':
+                        unit = 1L << 20;
+                        break;
+                    case 'g':
+                        unit = 1L << 30;
+                        break;
+                    case 't':
+                        unit = 1L << 40;
+                        break;
+                    default:
+                }
+                if (unit > 1) {
+                    value = value.substring(0, value.length() - 1);
+                }
+                try {
+                    return Long.parseLong(value) * unit;
+                } catch (NumberFormatException ex) { //left to the JVM
+                }
+            }
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    private static long capacityFor(long expected) {
+        return Long.highestOneBit(Math.max(16, (long) (expected / LOAD_FACTOR)) * 2 - 1);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return Number of keys
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return Number of slots, valid slots are 0 to capacity - 1
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param slot
+     * @return Whether the slot holds a key
+     */
+    public boolean isUsed(long slot) {
+        return get(slot * stride) != EMPTY;
+    }
+
+    /**
+     * @param slot
+     * @return The key in the slot
+     */
+    public long getKey(long slot) {
+        return get(slot * stride);
+    }
+
+    /**
+     * Looks up a key.
+     *
+     * @param key
+     * @return The slot of the key, -1 if it is not in the map
+     */
+    public long find(long key) {
+        if (key == EMPTY) {
+            key = 1;
+        }
+        long mask = capacity - 1;
+        long slot = key & mask;
+        long k = get(slot * stride);
+        while (k != EMPTY) {
+            if (k == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+            k = get(slot * stride);
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a key with no bits set, unless it is in the map already.
+     *
+     * @param key
+     * @return The slot of the key. Slots change when the table grows, so they
+     * are valid until the next call of add only.
+     */
+    public long add(long key) {
+        if (key == EMPTY) {
+            key = 1;
+        }
+        if (size + 1 > capacity * LOAD_FACTOR) {
+            grow();
+        }
+        long mask = capacity - 1;
+        long slot = key & mask;
+        long k = get(slot * stride);
+        while (k != EMPTY) {
+            if (k == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+            k = get(slot * stride);
+        }
+        put(slot * stride, key);
+        size++;
+        return slot;
+    }
+
+    /**
+     * Sets a bit of the key in a slot.
+     *
+     * @param slot
+     * @param bit Between 0 and width - 1
+     */
+    public void set(long slot, int bit) {
+        long index = slot * stride + 1 + (bit >>> 6);
+        put(index, get(index) | (1L << bit));
+    }
+
+    /**
+     * @param slot
+     * @param bit Between 0 and width - 1
+     * @return Whether the bit of the key in a slot is set
+     */
+    public boolean get(long slot, int bit) {
+        return (get(slot * stride + 1 + (bit >>> 6)) & (1L << bit)) != 0;
+    }
+
+    /**
+     * @param slot
+     * @return The bits of the key in a slot
+     */
+    public BitSet getBits(long slot) {
+        long[] words = new long[stride - 1];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = get(slot * stride + 1 + i);
+        }
+        return BitSet.valueOf(words);
+    }
+
+    private void grow() {
+        LongBuffer[] old = segments;
+        long oldCapacity = capacity;
+        allocate(capacity * 2);
+        long mask = capacity - 1;
+        for (long i = 0; i < oldCapacity; i++) {
+            long from = i * stride;
+            long key = old[(int) (from >>> SEGMENT_BITS)].get((int) (from & SEGMENT_MASK));
+            if (key == EMPTY) {
+                continue;
+            }
+            long slot = key & mask;
+            while (get(slot * stride) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            for (int w = 0; w < stride; w++) {
+                long index = from + w;
+                put(slot * stride + w, old[(int) (index >>> SEGMENT_BITS)].get((int) (index & SEGMENT_MASK)));
+            }
+        }
+    }
+
+    private void allocate(long capacity) {
+        long longs = capacity * stride;
+        int n = (int) ((longs + SEGMENT_MASK) >>> SEGMENT_BITS);
+        segments = new LongBuffer[n];
+        for (int i = 0; i < n; i++) {
+            long length = Math.min(1L << SEGMENT_BITS, longs - ((long) i << SEGMENT_BITS));
+            segments[i] = ByteBuffer.allocateDirect((int) (length * 8)).asLongBuffer();
+        }
+        this.capacity = capacity;
+    }
+
+    private long get(long index) {
+        return segments[(int) (index >>> SEGMENT_BITS)].get((int) (index & SEGMENT_MASK));
+    }
+
+    private void put(long index, long value) {
+        segments[(int) (index >>> SEGMENT_BITS)].put((int) (index & SEGMENT_MASK), value);
+    }
+
+}
@@ -0,0 +1,40 @@
+package org.gesis.rdfcommons;
+
+/**
+ * Spaces out events to a maximum rate. Every caller is given the next free
+ * slot, so callers of several threads together stay below the rate.
+ *
+ */
+class RateLimiter {
+
+    private final long interval; //ns between two slots
+    private long next = System.nanoTime();
+
+    /**
+     * @param perSecond Maximum number of events per second
+     */
+    RateLimiter(double perSecond) {
+        interval = (long) (1000000000L / perSecond);
+    }
+
+    /**
+     * Blocks until the next free slot.
+     *
+     * @throws InterruptedException
+     */
+    void acquire() throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (next - now < 0) {
+                next = now;
+            }
+            wait = next - now;
+            next += interval;
+        }
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+    }
+
+}
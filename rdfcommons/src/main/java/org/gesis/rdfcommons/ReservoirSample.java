@@ -0,0 +1,102 @@
+package org.gesis.rdfcommons;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Uniform random sample of a fixed number of values from a stream of unknown
+ * length. Every value seen has the same chance to be in the sample. Merging
+ * two samples draws from each in proportion to the number of values it has
+ * seen.
+ *
+ */
+public class ReservoirSample {
+
+    private final int capacity;
+    private final ArrayList<String> values;
+    private final Random random = new Random();
+    private long seen = 0;
+
+    /**
+     * @param capacity Number of values to keep
+     */
+    public ReservoirSample(int capacity) {
+        this.capacity = capacity;
+        this.values = new ArrayList<String>(capacity);
+    }
+
+    public void add(String value) {
+        seen++;
+        if (values.size() < capacity) {
+            values.add(value);
+        } else {
+            long j = (long) (random.nextDouble() * seen);
+            if (j < capacity) {
+                values.set((int) j, value);
+            }
+        }
+    }
+
+    /**
+     * @return The sampled values
+     */
+    public List<String> getValues() {
+        return Collections.unmodifiableList(values);
+    }
+
+    /**
+     * @return Number of values seen
+     */
+    public long getSeen() {
+        return seen;
+    }
+
+    /**
+     * Replaces the sample by a sample of both streams.
+     *
+     * @param other
+     */
+    public void merge(ReservoirSample other) {
+        ArrayList<String> mine = new ArrayList<String>(values);
+        ArrayList<String> theirs = new ArrayList<String>(other.values);
+        Collections.shuffle(mine, random);
+        Collections.shuffle(theirs, random);
+        values.clear();
+        double share = seen + other.seen == 0 ? 0 : (double) seen / (seen + other.seen);
+        int i = 0;
+        int j = 0;
+        while (values.size() < capacity && (i < mine.size() || j < theirs.size())) {
+            if (j == theirs.size() || (i < mine.size() && random.nextDouble() < share)) {
+                values.add(mine.get(i++));
+            } else {
+                values.add(theirs.get(j++));
+            }
+        }
+        seen += other.seen;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(capacity);
+        out.writeLong(seen);
+        out.writeInt(values.size());
+        for (String v : values) {
+            out.writeUTF(v);
+        }
+    }
+
+    public static ReservoirSample read(DataInput in) throws IOException {
+        ReservoirSample sample = new ReservoirSample(in.readInt());
+        sample.seen = in.readLong();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            sample.values.add(in.readUTF());
+        }
+        return sample;
+    }
+
+}
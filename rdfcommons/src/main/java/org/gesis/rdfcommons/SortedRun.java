@@ -0,0 +1,169 @@
+package org.gesis.rdfcommons;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A file of sorted fingerprints spilled by a FingerprintSet. The file is
+ * memory mapped in segments, lookups are binary searches that leave the
+ * caching to the operating system. A deleted run is unmapped right away
+ * instead of whenever the garbage collector gets to its buffers.
+ *
+ */
+class SortedRun {
+
+    private static final int SEGMENT_SHIFT = 27; //longs per segment, 1 GB
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final File file;
+    private final long size;
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * Maps a written run.
+     *
+     * @param file The run file
+     * @throws IOException
+     */
+    SortedRun(File file) throws IOException {
+        this.file = file;
+        this.size = file.length() / 8;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            int count = (int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                long length = Math.min(size - start, 1L << SEGMENT_SHIFT);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start * 8, length * 8);
+            }
+        } finally {
+            raf.close(); //mappings stay valid
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    long get(long i) {
+        return segments[(int) (i >>> SEGMENT_SHIFT)].getLong((int) (i & SEGMENT_MASK) << 3);
+    }
+
+    boolean contains(long fingerprint) {
+        long lo = 0;
+        long hi = size - 1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            long v = get(mid);
+            if (v < fingerprint) {
+                lo = mid + 1;
+            } else if (v > fingerprint) {
+                hi = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Unmaps the run and deletes its file. The run must not be used
+     * afterwards.
+     */
+    void delete() {
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] != null) {
+                unmap(segments[i]);
+                segments[i] = null;
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Releases a mapping. There is no public API for this, hence it is done
+     * through the cleaner of the buffer, Unsafe.invokeCleaner since Java 9.
+     * If neither is accessible the mapping is left to the garbage collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+                return;
+            } catch (NoSuchMethodException ex) {
+                //Java 8 and older
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception ex) {
+            //left to the garbage collector
+        }
+    }
+
+    /**
+     * Merges runs into a new run file, dropping duplicates.
+     *
+     * @param runs The runs to merge
+     * @param target The file of the merged run
+     * @return The merged run
+     * @throws IOException
+     */
+    static SortedRun merge(List<SortedRun> runs, File target) throws IOException {
+        long[] positions = new long[runs.size()];
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target), 1 << 16));
+        try {
+            boolean first = true;
+            long last = 0;
+            while (true) {
+                int min = -1;
+                long minValue = 0;
+                for (int r = 0; r < positions.length; r++) { //few runs, a linear scan beats a heap
+                    if (positions[r] < runs.get(r).size()) {
+                        long v = runs.get(r).get(positions[r]);
+                        if (min < 0 || v < minValue) {
+                            min = r;
+                            minValue = v;
+                        }
+                    }
+                }
+                if (min < 0) {
+                    break;
+                }
+                positions[min]++;
+                if (first || minValue != last) {
+                    out.writeLong(minValue);
+                    last = minValue;
+                    first = false;
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return new SortedRun(target);
+    }
+
+}
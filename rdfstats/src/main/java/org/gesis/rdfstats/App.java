@@ -6,27 +6,63 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
-import static java.lang.Math.pow;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import org.gesis.rdfcommons.EndpointClient;
+import org.gesis.rdfcommons.LongBitSetMap;
+import org.openrdf.OpenRDFException;
 import org.openrdf.model.Value;
 import org.openrdf.query.BindingSet;
-import org.openrdf.query.MalformedQueryException;
-import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.QueryLanguage;
 import org.openrdf.query.TupleQuery;
 import org.openrdf.query.TupleQueryResult;
-import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.RepositoryException;
-import org.openrdf.repository.sparql.SPARQLRepository;
+import org.openrdf.rio.ntriples.NTriplesUtil;
 
 /**
  * Tool to request the combinations of fields set for a certain resource type.
- * Outputs are written to a file as well as stdout.
+ * Outputs are written to a file as well as stdout. By default every
+ * combination is counted by a query of its own. With --single-pass the
+ * properties of every subject are requested once and the combinations are
+ * counted locally, which scales with the data instead of the number of
+ * combinations and supports any number of properties. The properties are
+ * requested in pages of --page-size rows, which end with the first empty page
+ * and shrink to a row cap of the endpoint, so the cap cannot truncate the
+ * counts. Only combinations that occur are kept, --min-count and --top reduce
+ * the output further. The combination queries are sent by --threads threads,
+ * their results are kept in a --cache file so a repeated run only sends the
+ * missing ones. All queries share an EndpointClient, limited to --rate
+ * queries per second and retried after transient failures. With --dump the
+ * combinations are counted in NTriples files instead of asking an endpoint.
+ * With --profile the subjects are profiled approximately in a single pass
+ * instead, with constant memory; profiles can be saved with --save and merged
+ * with --merge. With --report all statements of the dumps are reported on per
+ * predicate by --threads threads, written to report.csv and report.json.
  */
 public class App {
 
-    private static final String USAGE = "Usage: rdfstats <sparql endpoint> <resource type> [<property list file>]";
+    private static final String USAGE = "Usage: rdfstats <sparql endpoint> <resource type> [<property list file>] [--single-pass] [--page-size <rows>] [--min-count <n>] [--top <k>]"
+            + " [--threads <n>] [--timeout <seconds>] [--cache <file>] [--rate <queries/s>] [--retries <n>]"
+            + " [--connect-timeout <seconds>] [--read-timeout <seconds>]\n"
+            + "       rdfstats --dump <nt file> [--dump <nt file>]... [--subjects <n>] <resource type> [<property list file>] [--min-count <n>] [--top <k>]\n"
+            + "       rdfstats --profile [<sparql endpoint> <resource type> | --dump <nt file>... <resource type>] [--merge <profile>]... [--save <profile>]"
+            + " [--page-size <rows>] [--precision <p>] [--epsilon <e>] [--top <k>]\n"
+            + "       rdfstats --report --dump <nt file> [--dump <nt file>]... [--threads <n>]\n"
+            + "The subjects of dumps are indexed in direct memory, up to 64 bytes per subject and 24 more per 64 properties beyond the first 64;"
+            + " raise its limit with java -XX:MaxDirectMemorySize=<size>.";
+    private static final int RETRIES = 3;
+    private static final int MAX_QUERY_PROPERTIES = 30; //2^30 queries are already far too many
+    private static final long SUBJECTS = 1 << 20;
+    private static final long PAGE_SIZE = 10000; //the row cap of many public endpoints
+    private static final int THREADS = 4;
+    private static final int PRECISION = 14;       //0.8% standard error, 16 KB per sketch
+    private static final double EPSILON = 0.0001;  //combination counts off by at most 0.01% of the subjects
+    private static final double DELTA = 0.01;
+    private static final int PROFILE_TOP = 20;
+    private static final int SAMPLES = 5;
 
     public static void main(String[] args) {
         //org.apache.log4j.BasicConfigurator.configure();
@@ -34,55 +70,166 @@ public class App {
         String sparqlEp = null;
         String type = null;
         String fileName = null;
+        double rate = 0;
+        int retries = RETRIES;
+        boolean singlePass = false;
+        long pageSize = PAGE_SIZE;
+        long minCount = 0;
+        int top = 0;
+        ArrayList<File> dumps = new ArrayList<File>();
+        long expectedSubjects = SUBJECTS;
+        int threads = THREADS;
+        int timeout = 0;
+        int connectTimeout = EndpointClient.CONNECT_TIMEOUT;
+        int readTimeout = EndpointClient.READ_TIMEOUT;
+        File cacheFile = null;
+        boolean profile = false;
+        boolean report = false;
+        ArrayList<File> merges = new ArrayList<File>();
+        File saveFile = null;
+        int precision = PRECISION;
+        double epsilon = EPSILON;
 
         //check args
-        if (args.length < 2 || args.length > 3) {
+        ArrayList<String> positional = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--rate") && i + 1 < args.length) {
+                    rate = Double.valueOf(args[++i]);
+                } else if (args[i].equals("--retries") && i + 1 < args.length) {
+                    retries = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--single-pass")) {
+                    singlePass = true;
+                } else if (args[i].equals("--page-size") && i + 1 < args.length) {
+                    pageSize = Long.valueOf(args[++i]);
+                } else if (args[i].equals("--min-count") && i + 1 < args.length) {
+                    minCount = Long.valueOf(args[++i]);
+                } else if (args[i].equals("--top") && i + 1 < args.length) {
+                    top = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--dump") && i + 1 < args.length) {
+                    dumps.add(new File(args[++i]));
+                } else if (args[i].equals("--subjects") && i + 1 < args.length) {
+                    expectedSubjects = Long.valueOf(args[++i]);
+                } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                    threads = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--timeout") && i + 1 < args.length) {
+                    timeout = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--connect-timeout") && i + 1 < args.length) {
+                    connectTimeout = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--read-timeout") && i + 1 < args.length) {
+                    readTimeout = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                    cacheFile = new File(args[++i]);
+                } else if (args[i].equals("--profile")) {
+                    profile = true;
+                } else if (args[i].equals("--report")) {
+                    report = true;
+                } else if (args[i].equals("--merge") && i + 1 < args.length) {
+                    merges.add(new File(args[++i]));
+                } else if (args[i].equals("--save") && i + 1 < args.length) {
+                    saveFile = new File(args[++i]);
+                } else if (args[i].equals("--precision") && i + 1 < args.length) {
+                    precision = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--epsilon") && i + 1 < args.length) {
+                    epsilon = Double.valueOf(args[++i]);
+                } else if (args[i].startsWith("--")) {
+                    System.out.println(USAGE);
+                    return;
+                } else {
+                    positional.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            System.out.println("Invalid number: " + nfe.getMessage());
+            System.out.println(USAGE);
+            return;
+        }
+        if (rate < 0 || retries < 0 || pageSize < 1 || minCount < 0 || top < 0 || expectedSubjects < 1 || threads < 1 || timeout < 0 || connectTimeout < 0 || readTimeout < 0
+                || precision < 4 || precision > 18 || epsilon <= 0 || epsilon >= 1) {
             System.out.println(USAGE);
             return;
         }
 
-        sparqlEp = args[0];
-        type = args[1];
+        //all predicates of the dumps
+        if (report) {
+            if (dumps.isEmpty() || !positional.isEmpty()) {
+                System.out.println(USAGE);
+                return;
+            }
+            report(dumps, threads);
+            return;
+        }
+
+        //approximate
+        if (profile) {
+            if (positional.size() != (dumps.isEmpty() ? 2 : 1) && !(positional.isEmpty() && dumps.isEmpty() && !merges.isEmpty())) {
+                System.out.println(USAGE);
+                return;
+            }
+            profile(positional, dumps, merges, saveFile, new Profile(precision, epsilon, DELTA, top > 0 ? top : PROFILE_TOP, SAMPLES), rate, retries, connectTimeout, readTimeout, pageSize);
+            return;
+        }
+
+        //offline
+        if (!dumps.isEmpty()) {
+            if (positional.size() < 1 || positional.size() > 2) {
+                System.out.println(USAGE);
+                return;
+            }
+            for (File dump : dumps) {
+                if (!dump.isFile()) {
+                    System.out.println("File " + dump.getAbsolutePath() + " is invalid");
+                    return;
+                }
+            }
+            countInDumps(dumps, expectedSubjects, positional.get(0), positional.size() == 2 ? positional.get(1) : null, minCount, top);
+            return;
+        }
+
+        if (positional.size() < 2 || positional.size() > 3) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        sparqlEp = positional.get(0);
+        type = positional.get(1);
+
+        //one connection for the property and single pass queries
+        EndpointClient client = new EndpointClient(sparqlEp);
+        client.setMaxConnections(threads);
+        client.setRate(rate);
+        client.setRetries(retries);
+        client.setConnectTimeout(connectTimeout);
+        client.setReadTimeout(readTimeout);
+        client.fitReadTimeout(timeout);
+        RepositoryConnection con = null;
+        try {
+            client.initialize();
+            con = client.getConnection();
+        } catch (RepositoryException ex) {
+            System.err.println(ex);
+            System.exit(-1);
+        }
 
         //List to contain the field/properties to query
         ArrayList<String> propertyList = null;
 
         //In case a file is used
-        if (args.length == 3) {
-            fileName = args[2];
-            File file = new File(fileName);
-            if (!file.exists() || !file.isFile()) {
-                System.out.println("File " + file.getAbsolutePath() + " is invalid");
+        if (positional.size() == 3) {
+            fileName = positional.get(2);
+            propertyList = readPropertyList(fileName);
+            if (propertyList == null) {
                 return;
             }
-            try {
-                propertyList = new ArrayList<String>();
-                BufferedReader br = new BufferedReader(new FileReader(file));
-                String line = br.readLine();
-                while (line != null) {
-                    propertyList.add(line);
-                    line = br.readLine();
-                }
-                br.close();
-            } catch (FileNotFoundException ex) {
-                System.err.println(ex);
-                System.exit(-1);
-            } catch (IOException ex) {
-                System.err.println(ex);
-                System.exit(-1);
-            }
         } //in case all available properties are to be queried
         else {
             try {
-                propertyList = getPropertyNames(sparqlEp, type);
+                propertyList = getPropertyNames(client, con, type);
                 propertyList.remove("http://www.w3.org/1999/02/22-rdf-syntax-ns#type");
-            } catch (RepositoryException ex) {
+            } catch (OpenRDFException ex) {
                 System.err.println(ex);
                 System.exit(-1);
-            } catch (MalformedQueryException ex) {
-                System.err.println(ex);
-                System.exit(-1);
-            } catch (QueryEvaluationException ex) {
+            } catch (InterruptedException ex) {
                 System.err.println(ex);
                 System.exit(-1);
             }
@@ -93,37 +240,67 @@ public class App {
             System.out.println(str);
         }
 
-        //create a truthtable like table to store the values
-        int xDim = propertyList.size() + 1;
-        int yDim = (int) pow(2, propertyList.size());
-        int[][] table = new int[xDim][yDim];
-        for (int y = 0; y < yDim; y++) {
-            for (int x = 0; x < xDim - 1; x++) {
-                table[xDim - x - 1 - 1][y] = getBit(y, x);
-            }
+        if (!singlePass && propertyList.size() > MAX_QUERY_PROPERTIES) {
+            System.out.println(propertyList.size() + " properties are too many to query every combination, use --single-pass.");
+            System.exit(-1);
         }
 
-        //construct an issue queries
-        for (int y = 0; y < yDim; y++) {
-            System.out.println();
-            System.out.println("Query #" + (y + 1));
-            String query = buildQuery(propertyList, table, y, type);
-            System.out.println(query);
-            int c = -1;
+        //the combinations that occur with their number of subjects
+        CombinationTable table = new CombinationTable(propertyList.size());
+
+        //count all combinations at once
+        if (singlePass) {
+            try {
+                long subjects = countCombinations(client, con, propertyList, table, type, pageSize);
+                System.out.println("Subjects " + subjects + ", combinations " + table.size());
+            } catch (OpenRDFException ex) {
+                System.err.println(ex);
+                System.exit(-1);
+            } catch (InterruptedException ex) {
+                System.err.println(ex);
+                System.exit(-1);
+            }
+        }
 
+        //construct an issue queries, one per row of a truth table
+        if (!singlePass) {
+            CombinationQueries queries = new CombinationQueries(client, propertyList, type, table);
+            queries.setTimeout(timeout);
+            CountCache cache = null;
             try {
-                c = getCount(query, sparqlEp);
-                System.out.println("Server returned " + c);
-            } catch (Exception ex) {
-                System.out.println("ERR: " + ex);
+                if (cacheFile != null) {
+                    cache = new CountCache(cacheFile);
+                    queries.setCache(cache);
+                }
+                queries.run(threads);
+                if (cache != null) {
+                    cache.close();
+                }
+            } catch (IOException ex) {
+                System.err.println(ex);
+                System.exit(-1);
+            } catch (RepositoryException ex) {
+                System.err.println(ex);
+                System.exit(-1);
+            } catch (InterruptedException ex) {
+                System.err.println(ex);
+                System.exit(-1);
             }
-            table[table.length - 1][y] = c;
+            System.out.println("Queries sent " + queries.getSent() + ", cached " + queries.getCached() + ", failed " + queries.getFailed());
+        }
+
+        try {
+            con.close();
+            client.shutDown();
+        } catch (RepositoryException ex) {
+            System.err.println(ex);
         }
 
         //write results
-        writeToSystemOut(propertyList, table);
+        List<CombinationTable.Row> result = table.getRows(minCount, top);
+        writeToSystemOut(propertyList, result);
         try {
-            writeToCSV(new File("out.csv"), propertyList, table);
+            writeToCSV(new File("out.csv"), propertyList, result);
         } catch (FileNotFoundException ex) {
             System.err.println(ex);
             System.exit(-1);
@@ -133,128 +310,348 @@ public class App {
     }
 
     /**
-     * Requests all properties for a certain type
+     * Counts the combinations in NTriples files and writes the results.
      *
-     * @param sparqlEp The endpoint to send the request to
-     * @param type The to query (no shorteners)
-     * @return A list of all distinct properties
-     * @throws RepositoryException
-     * @throws MalformedQueryException
-     * @throws QueryEvaluationException
+     * @param dumps The files
+     * @param expectedSubjects Number of subjects of the type expected
+     * @param type Type to count the combinations of
+     * @param fileName Property list file, null for all properties of the type
+     * @param minCount Combinations with fewer subjects are left out
+     * @param top Maximum number of combinations, 0 for all
      */
-    private static ArrayList<String> getPropertyNames(String sparqlEp, String type) throws RepositoryException, MalformedQueryException, QueryEvaluationException {
+    private static void countInDumps(List<File> dumps, long expectedSubjects, String type, String fileName, long minCount, int top) {
+        ArrayList<String> propertyList = null;
+        if (fileName != null) {
+            propertyList = readPropertyList(fileName);
+            if (propertyList == null) {
+                return;
+            }
+        }
+        if (!fitsDirectMemory(LongBitSetMap.bytes(0, expectedSubjects))) {
+            System.exit(-1);
+        }
+        DumpStatistics stats = new DumpStatistics(dumps, type, expectedSubjects);
+        CombinationTable table = null;
+        try {
+            long subjects = stats.findSubjects();
+            System.out.println("Lines " + stats.getLines() + ", skipped " + stats.getSkipped() + ", subjects " + subjects);
+            if (propertyList == null) {
+                propertyList = stats.listProperties();
+            }
+            //the subjects are copied into a map with room for their properties
+            if (!fitsDirectMemory(LongBitSetMap.bytes(0, Math.max(subjects, expectedSubjects)) + LongBitSetMap.bytes(propertyList.size(), subjects))) {
+                System.exit(-1);
+            }
+            //Property output for convenience
+            System.out.println("Properties:");
+            for (String str : propertyList) {
+                System.out.println(str);
+            }
+            table = new CombinationTable(propertyList.size());
+            stats.countCombinations(propertyList, table);
+            System.out.println("Combinations " + table.size());
+        } catch (IOException ex) {
+            System.err.println(ex);
+            System.exit(-1);
+        }
 
-        Repository repo = new SPARQLRepository(sparqlEp);
-        RepositoryConnection con = null;
+        //write results
+        List<CombinationTable.Row> result = table.getRows(minCount, top);
+        writeToSystemOut(propertyList, result);
+        try {
+            writeToCSV(new File("out.csv"), propertyList, result);
+        } catch (FileNotFoundException ex) {
+            System.err.println(ex);
+            System.exit(-1);
+        }
+    }
 
-        repo.initialize();
-        con = repo.getConnection();
+    /**
+     * Checks that the subject index fits into direct memory, otherwise the
+     * JVM flag to raise the limit is printed.
+     *
+     * @param bytes Bytes of direct memory needed
+     * @return Whether they fit
+     */
+    private static boolean fitsDirectMemory(long bytes) {
+        long max = LongBitSetMap.maxDirectMemory();
+        if (bytes > max) {
+            System.err.println("The subject index needs " + (bytes >> 20) + " MB of direct memory, the limit is " + (max >> 20)
+                    + " MB. Run java with -XX:MaxDirectMemorySize=" + ((bytes >> 30) + 1) + "g");
+            return false;
+        }
+        return true;
+    }
 
-        String request = "SELECT DISTINCT ?p WHERE { ?s a <" + type + "> . ?s ?p ?o }";
-        TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, request);
-        query.setIncludeInferred(false);
-        TupleQueryResult result = query.evaluate();
-        ArrayList<String> predicateList = new ArrayList<String>();
-        while (result.hasNext()) {
-            BindingSet bindingSet = result.next();
-            Value predicate = bindingSet.getValue("p");
-            predicateList.add(predicate.stringValue());
+    /**
+     * Reports on the predicates of NTriples files and writes the report.
+     *
+     * @param dumps The files
+     * @param threads Number of threads
+     */
+    private static void report(List<File> dumps, int threads) {
+        for (File dump : dumps) {
+            if (!dump.isFile()) {
+                System.out.println("File " + dump.getAbsolutePath() + " is invalid");
+                return;
+            }
+        }
+        DumpStatistics stats = new DumpStatistics(dumps, null, SUBJECTS);
+        DatasetReport report = null;
+        try {
+            report = stats.report(threads);
+            System.out.println("Lines " + stats.getLines() + ", skipped " + stats.getSkipped());
+            report.print(System.out);
+            report.writeToCSV(new File("report.csv"));
+            report.writeToJSON(new File("report.json"));
+        } catch (IOException ex) {
+            System.err.println(ex);
+            System.exit(-1);
+        } catch (InterruptedException ex) {
+            System.err.println(ex);
+            System.exit(-1);
         }
-        result.close();
-        con.close();
-        return predicateList;
     }
 
     /**
-     * Returns the specified bit of an integer
+     * Profiles the subjects of a type at an endpoint or in NTriples files,
+     * merges saved profiles into the result and prints it.
      *
-     * @param n the integer
-     * @param k index of the bit
-     * @return
+     * @param positional Endpoint and type, the type only for dumps, nothing
+     * for merging saved profiles only
+     * @param dumps The NTriples files, empty to request the endpoint
+     * @param merges Saved profiles to merge
+     * @param saveFile File to save the result to, null to only print it
+     * @param profile An empty profile
+     * @param rate Maximum queries per second, 0 for no limit
+     * @param retries Number of retries after transient failures
+     * @param connectTimeout Seconds to establish a connection, 0 for no limit
+     * @param readTimeout Seconds to wait for data of a response, 0 for no
+     * limit
+     * @param pageSize Maximum rows per query
      */
-    private static int getBit(int n, int k) {
-        return (n >> k) & 1;
+    private static void profile(List<String> positional, List<File> dumps, List<File> merges, File saveFile, Profile profile, double rate, int retries,
+            int connectTimeout, int readTimeout, long pageSize) {
+        try {
+            if (!dumps.isEmpty()) {
+                DumpStatistics stats = new DumpStatistics(dumps, positional.get(0), SUBJECTS);
+                stats.profile(profile);
+                System.out.println("Lines " + stats.getLines() + ", skipped " + stats.getSkipped());
+            } else if (!positional.isEmpty()) {
+                EndpointClient client = new EndpointClient(positional.get(0));
+                client.setRate(rate);
+                client.setRetries(retries);
+                client.setConnectTimeout(connectTimeout);
+                client.setReadTimeout(readTimeout);
+                client.initialize();
+                RepositoryConnection con = client.getConnection();
+                try {
+                    profileEndpoint(client, con, positional.get(1), profile, pageSize);
+                } finally {
+                    con.close();
+                    client.shutDown();
+                }
+            }
+            for (int i = 0; i < merges.size(); i++) {
+                if (i == 0 && dumps.isEmpty() && positional.isEmpty()) { //merging only, take the parameters of the first
+                    profile = Profile.read(merges.get(0));
+                } else {
+                    profile.merge(Profile.read(merges.get(i)));
+                }
+            }
+            if (saveFile != null) {
+                profile.write(saveFile);
+            }
+        } catch (IOException ex) {
+            System.err.println(ex);
+            System.exit(-1);
+        } catch (IllegalArgumentException ex) { //profiles of different parameters
+            System.err.println(ex.getMessage());
+            System.exit(-1);
+        } catch (OpenRDFException ex) {
+            System.err.println(ex);
+            System.exit(-1);
+        } catch (InterruptedException ex) {
+            System.err.println(ex);
+            System.exit(-1);
+        }
+        profile.print(System.out);
     }
 
     /**
-     * Constructs a SPARQL query for a certain field combination
+     * Profiles the subjects of a type in a single pass. The statements of
+     * the subjects are paged by subject, so only those of the current page
+     * are held.
      *
-     * @param propertyList Reference list for properties
-     * @param table Reference table for actual combination
-     * @param row Row to use from table
+     * @param client
+     * @param con A connection of the client
      * @param type Type to request from
-     * @return The constructed row
+     * @param profile Receives the subjects
+     * @param pageSize Maximum rows per query
+     * @throws OpenRDFException
+     * @throws InterruptedException
      */
-    private static String buildQuery(ArrayList<String> propertyList, int[][] table, int row, String type) {
-        String query = "SELECT COUNT( DISTINCT ?s) AS ?count\nWHERE {\n";
-        query += "  ?s rdf:type <" + type + "> . \n";
-        for (int col = 0; col < propertyList.size(); col++) {
-            if (table[col][row] == 1) {
-                query += "  ?s <" + propertyList.get(col) + "> ?v" + col + " . \n";
+    private static void profileEndpoint(EndpointClient client, RepositoryConnection con, String type, final Profile profile, long pageSize) throws OpenRDFException, InterruptedException {
+        SubjectPager pager = new SubjectPager(client, con, type, "?p ?o", false, pageSize);
+        final ArrayList<String> predicates = new ArrayList<String>();
+        final ArrayList<String> objects = new ArrayList<String>();
+        long subjects = pager.run(new SubjectPager.Handler() {
+            @Override
+            public void subject(String subject, List<BindingSet> rows) {
+                predicates.clear();
+                objects.clear();
+                for (BindingSet bindingSet : rows) {
+                    predicates.add(bindingSet.getValue("p").stringValue());
+                    objects.add(NTriplesUtil.toNTriplesString(bindingSet.getValue("o")));
+                }
+                profile.addSubject(subject, predicates, objects);
             }
+        });
+        System.out.println("Subjects " + subjects + ", pages " + pager.getPages());
+        printBlankSubjects(pager);
+    }
+
+    /**
+     * Reads the properties to count, one IRI per line.
+     *
+     * @param fileName
+     * @return The properties, null if the file cannot be read
+     */
+    private static ArrayList<String> readPropertyList(String fileName) {
+        File file = new File(fileName);
+        if (!file.exists() || !file.isFile()) {
+            System.out.println("File " + file.getAbsolutePath() + " is invalid");
+            return null;
         }
-        for (int col = 0; col < propertyList.size(); col++) {
-            if (table[col][row] == 0) {
-                query += "  filter not exists { ?s <" + propertyList.get(col) + "> ?v" + col + " }\n";
+        ArrayList<String> propertyList = new ArrayList<String>();
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(file));
+            String line = br.readLine();
+            while (line != null) {
+                propertyList.add(line);
+                line = br.readLine();
             }
+            br.close();
+        } catch (FileNotFoundException ex) {
+            System.err.println(ex);
+            return null;
+        } catch (IOException ex) {
+            System.err.println(ex);
+            return null;
         }
-        query += "}";
-        return query;
+        return propertyList;
     }
 
     /**
-     * Issues the query and returns the result.
+     * Requests all properties for a certain type
      *
-     * @param request
-     * @param sparqlEp
-     * @return
-     * @throws RepositoryException
-     * @throws MalformedQueryException
-     * @throws QueryEvaluationException
+     * @param client The client of the endpoint to send the request to
+     * @param con A connection of the client
+     * @param type The to query (no shorteners)
+     * @return A list of all distinct properties
+     * @throws OpenRDFException
+     * @throws InterruptedException
      */
-    private static int getCount(String request, String sparqlEp) throws RepositoryException, MalformedQueryException, QueryEvaluationException {
-
-        Repository repo = new SPARQLRepository(sparqlEp);
-        RepositoryConnection con = null;
-        repo.initialize();
-        con = repo.getConnection();
+    private static ArrayList<String> getPropertyNames(EndpointClient client, RepositoryConnection con, String type) throws OpenRDFException, InterruptedException {
 
-        TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, request);
+        String request = "SELECT DISTINCT ?p WHERE { ?s a <" + type + "> . ?s ?p ?o }";
+        final TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, request);
         query.setIncludeInferred(false);
-        TupleQueryResult result = query.evaluate();
-
-        BindingSet bindingSet = result.next();
-        Value count = bindingSet.getValue("count");
-        result.close();
+        return client.execute(new EndpointClient.Request<ArrayList<String>>() {
+            @Override
+            public ArrayList<String> run() throws OpenRDFException {
+                TupleQueryResult result = query.evaluate();
+                ArrayList<String> predicateList = new ArrayList<String>();
+                try {
+                    while (result.hasNext()) {
+                        BindingSet bindingSet = result.next();
+                        Value predicate = bindingSet.getValue("p");
+                        predicateList.add(predicate.stringValue());
+                    }
+                } finally {
+                    result.close();
+                }
+                return predicateList;
+            }
+        });
+    }
 
-        con.close();
+    /**
+     * Counts the subjects of every combination of properties in a single
+     * pass. The distinct properties of the subjects of the type are paged by
+     * subject, so only the properties of the current page are held. The
+     * properties of a subject make up its combination, which is counted up.
+     * Properties not in the list are ignored, subjects without any of them
+     * count for the empty combination.
+     *
+     * @param client
+     * @param con A connection of the client
+     * @param propertyList Reference list for properties
+     * @param table Receives the counts
+     * @param type Type to request from
+     * @param pageSize Maximum rows per query
+     * @return Number of subjects
+     * @throws OpenRDFException
+     * @throws InterruptedException
+     */
+    private static long countCombinations(EndpointClient client, RepositoryConnection con, ArrayList<String> propertyList, final CombinationTable table, String type,
+            long pageSize) throws OpenRDFException, InterruptedException {
+        //the bit of a property
+        final HashMap<String, Integer> bits = new HashMap<String, Integer>();
+        for (int col = 0; col < propertyList.size(); col++) {
+            bits.put(propertyList.get(col), col);
+        }
 
-        return Integer.valueOf(count.stringValue());
+        SubjectPager pager = new SubjectPager(client, con, type, "?p", true, pageSize);
+        final BitSet combination = new BitSet(table.getWidth());
+        long subjects = pager.run(new SubjectPager.Handler() {
+            @Override
+            public void subject(String subject, List<BindingSet> rows) {
+                combination.clear();
+                for (BindingSet bindingSet : rows) {
+                    Integer bit = bits.get(bindingSet.getValue("p").stringValue());
+                    if (bit != null) {
+                        combination.set(bit);
+                    }
+                }
+                table.add(combination, 1);
+            }
+        });
+        printBlankSubjects(pager);
+        return subjects;
+    }
 
+    /**
+     * Warns about the blank node subjects the pager left out.
+     */
+    private static void printBlankSubjects(SubjectPager pager) throws OpenRDFException, InterruptedException {
+        long blank = pager.countBlankSubjects();
+        if (blank > 0) {
+            System.err.println("WARN: " + blank + " blank node subjects cannot be paged and are not counted");
+        }
     }
 
     /**
      * Writes results to System.out as a table
      *
      * @param predicateList
-     * @param table
+     * @param rows
      */
-    private static void writeToSystemOut(ArrayList<String> predicateList, int[][] table) {
+    private static void writeToSystemOut(ArrayList<String> predicateList, List<CombinationTable.Row> rows) {
 
         for (int i = 0; i < predicateList.size(); i++) {
             System.out.println((i + 1) + " " + predicateList.get(i));
         }
         System.out.println();
 
-        int yDim = table[0].length;
-        int xDim = table.length;
-        for (int y = 0; y < yDim; y++) {
-            String formatted = String.format("%03d", y + 1);
+        int y = 0;
+        for (CombinationTable.Row row : rows) {
+            String formatted = String.format("%03d", ++y);
             System.out.print(formatted + " |");
-            for (int x = 0; x < xDim - 1; x++) {
-                System.out.print(" " + table[x][y] + " |");
+            for (int x = 0; x < predicateList.size(); x++) {
+                System.out.print(" " + (row.getCombination().get(x) ? 1 : 0) + " |");
             }
-            String formattedValue = String.format("% 8d", table[xDim - 1][y]);
+            String formattedValue = String.format("% 8d", row.getCount());
             System.out.println(formattedValue + " |");
         }
     }
@@ -264,10 +661,10 @@ public class App {
      *
      * @param file
      * @param predicateList
-     * @param table
+     * @param rows
      * @throws FileNotFoundException
      */
-    private static void writeToCSV(File file, ArrayList<String> predicateList, int[][] table) throws FileNotFoundException {
+    private static void writeToCSV(File file, ArrayList<String> predicateList, List<CombinationTable.Row> rows) throws FileNotFoundException {
         PrintStream ps = new PrintStream(file);
         String divider = ";";
 
@@ -279,15 +676,12 @@ public class App {
         }
         ps.println();
 
-        int yDim = table[0].length;
-        int xDim = table.length;
-        for (int y = 0; y < yDim; y++) {
-            for (int x = 0; x < xDim; x++) {
-                ps.print(table[x][y]);
-                if (x < xDim - 1) {
-                    ps.print(divider);
-                }
+        for (CombinationTable.Row row : rows) {
+            for (int x = 0; x < predicateList.size(); x++) {
+                ps.print(row.getCombination().get(x) ? 1 : 0);
+                ps.print(divider);
             }
+            ps.print(row.getCount());
             ps.println();
         }
         ps.close();
@@ -0,0 +1,256 @@
+package org.gesis.rdfstats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import org.gesis.rdfcommons.EndpointClient;
+import org.openrdf.OpenRDFException;
+import org.openrdf.model.Value;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+
+/**
+ * Counts every combination of properties by a query of its own, one per row
+ * of a truth table. The queries are sent by a fixed number of threads, each
+ * with its own connection, which take the next row when they are done. With a
+ * CountCache only queries without a cached result are sent, so a repeated or
+ * interrupted run continues where it stopped. Progress is printed to
+ * System.err.
+ *
+ */
+public class CombinationQueries {
+
+    private static final long PROGRESS_INTERVAL = 10000; //ms
+
+    private final EndpointClient client;
+    private final ArrayList<String> propertyList;
+    private final String type;
+    private final CombinationTable table;
+    private int timeout = 0;
+    private CountCache cache = null;
+
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong cached = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile Exception lastException = null;
+
+    /**
+     * @param client Client of the endpoint
+     * @param propertyList Reference list for properties
+     * @param type Type to request from
+     * @param table Receives the counts, -1 for failed queries
+     */
+    public CombinationQueries(EndpointClient client, ArrayList<String> propertyList, String type, CombinationTable table) {
+        this.client = client;
+        this.propertyList = propertyList;
+        this.type = type;
+        this.table = table;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout Maximum time in seconds a single query may take, 0 for no
+     * limit
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public CountCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @param cache Cache of results, null for none
+     */
+    public void setCache(CountCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Counts all combinations and waits until they are done.
+     *
+     * @param threads Number of queries sent at the same time
+     * @throws RepositoryException If a connection cannot be opened
+     * @throws InterruptedException
+     */
+    public void run(int threads) throws RepositoryException, InterruptedException {
+        final long total = 1L << propertyList.size();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final RepositoryConnection con = client.getConnection();
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(con, total);
+                }
+            }, "Query " + i);
+            workers[i].start();
+        }
+
+        long start = System.currentTimeMillis();
+        for (Thread worker : workers) {
+            worker.join(PROGRESS_INTERVAL);
+            while (worker.isAlive()) {
+                printProgress(start, total);
+                worker.join(PROGRESS_INTERVAL);
+            }
+        }
+        printProgress(start, total);
+    }
+
+    private void work(RepositoryConnection con, long total) {
+        try {
+            for (long y = next.getAndIncrement(); y < total; y = next.getAndIncrement()) {
+                BitSet combination = new BitSet(propertyList.size());
+                for (int col = 0; col < propertyList.size(); col++) {
+                    combination.set(col, ((y >> (propertyList.size() - col - 1)) & 1) == 1);
+                }
+                String query = buildQuery(propertyList, combination, type);
+                Long c = cache == null ? null : cache.get(client.getEndpoint(), query);
+                if (c != null) {
+                    cached.incrementAndGet();
+                } else {
+                    sent.incrementAndGet();
+                    try {
+                        c = getCount(con, query);
+                        if (cache != null) {
+                            cache.put(client.getEndpoint(), query, c);
+                        }
+                    } catch (OpenRDFException ex) {
+                        System.err.println("ERR: Query #" + (y + 1) + " " + ex);
+                        failed.incrementAndGet();
+                        c = -1L;
+                    } catch (IOException ex) {
+                        System.err.println("ERR: Unable to cache query #" + (y + 1) + " " + ex);
+                    }
+                }
+                synchronized (table) {
+                    table.set(combination, c);
+                }
+                done.incrementAndGet();
+            }
+        } catch (InterruptedException ex) {
+            lastException = ex;
+        } finally {
+            try {
+                con.close();
+            } catch (RepositoryException ex) {
+                lastException = ex;
+            }
+        }
+    }
+
+    private void printProgress(long start, long total) {
+        long d = done.get();
+        long s = sent.get();
+        String eta = "";
+        if (s > 0 && d < total) {
+            //only sent queries take time, assume the remaining ones have to be sent
+            long millis = (System.currentTimeMillis() - start) * (total - d) / s;
+            eta = String.format(", ETA %d:%02d:%02d", millis / 3600000, millis / 60000 % 60, millis / 1000 % 60);
+        }
+        System.err.println("Queries " + d + "/" + total + " (cached " + cached.get() + ", failed " + failed.get() + ")" + eta);
+    }
+
+    /**
+     * Constructs a SPARQL query for a certain field combination
+     *
+     * @param propertyList Reference list for properties
+     * @param combination The properties set
+     * @param type Type to request from
+     * @return The constructed row
+     */
+    private static String buildQuery(ArrayList<String> propertyList, BitSet combination, String type) {
+        String query = "SELECT COUNT( DISTINCT ?s) AS ?count\nWHERE {\n";
+        query += "  ?s rdf:type <" + type + "> . \n";
+        for (int col = 0; col < propertyList.size(); col++) {
+            if (combination.get(col)) {
+                query += "  ?s <" + propertyList.get(col) + "> ?v" + col + " . \n";
+            }
+        }
+        for (int col = 0; col < propertyList.size(); col++) {
+            if (!combination.get(col)) {
+                query += "  filter not exists { ?s <" + propertyList.get(col) + "> ?v" + col + " }\n";
+            }
+        }
+        query += "}";
+        return query;
+    }
+
+    /**
+     * Issues the query and returns the result.
+     *
+     * @param con A connection of the client
+     * @param request
+     * @return
+     * @throws OpenRDFException
+     * @throws InterruptedException
+     */
+    private long getCount(RepositoryConnection con, String request) throws OpenRDFException, InterruptedException {
+
+        final TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, request);
+        query.setIncludeInferred(false);
+        if (timeout > 0) {
+            query.setMaxExecutionTime(timeout);
+        }
+        Long count = client.execute(new EndpointClient.Request<Long>() {
+            @Override
+            public Long run() throws OpenRDFException {
+                TupleQueryResult result = query.evaluate();
+                try {
+                    Value count = result.hasNext() ? result.next().getValue("count") : null;
+                    if (count == null) {
+                        throw new QueryEvaluationException("No count in the result");
+                    }
+                    try {
+                        return Long.valueOf(count.stringValue());
+                    } catch (NumberFormatException ex) {
+                        throw new QueryEvaluationException("Invalid count " + count.stringValue(), ex);
+                    }
+                } finally {
+                    result.close();
+                }
+            }
+        });
+
+        return count;
+
+    }
+
+    /**
+     * @return Number of queries sent
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return Number of results taken from the cache
+     */
+    public long getCached() {
+        return cached.get();
+    }
+
+    /**
+     * @return Number of failed queries
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public Exception getLastException() {
+        return lastException;
+    }
+
+}
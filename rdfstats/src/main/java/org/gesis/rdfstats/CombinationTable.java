@@ -0,0 +1,186 @@
+package org.gesis.rdfstats;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Number of subjects per combination of properties. A combination is a BitSet
+ * with bit i set if the subjects have the i-th property of the property list,
+ * so any number of properties is supported. Only the combinations counted are
+ * kept, which are usually far fewer than all possible ones.
+ *
+ */
+public class CombinationTable {
+
+    /**
+     * A combination and its number of subjects.
+     */
+    public static class Row {
+
+        private final BitSet combination;
+        private final long count;
+
+        private Row(BitSet combination, long count) {
+            this.combination = combination;
+            this.count = count;
+        }
+
+        public BitSet getCombination() {
+            return combination;
+        }
+
+        /**
+         * @return Number of subjects, -1 if counting failed
+         */
+        public long getCount() {
+            return count;
+        }
+
+    }
+
+    private static class Count {
+
+        private long n = 0;
+
+    }
+
+    /**
+     * Orders combinations like the rows of a truth table, the first property
+     * being the highest bit.
+     */
+    private static final Comparator<Row> TRUTH_TABLE_ORDER = new Comparator<Row>() {
+        @Override
+        public int compare(Row a, Row b) {
+            BitSet diff = (BitSet) a.combination.clone();
+            diff.xor(b.combination);
+            int first = diff.nextSetBit(0);
+            if (first < 0) {
+                return 0;
+            }
+            return a.combination.get(first) ? 1 : -1;
+        }
+    };
+
+    private static final Comparator<Row> COUNT_ORDER = new Comparator<Row>() {
+        @Override
+        public int compare(Row a, Row b) {
+            if (a.count != b.count) {
+                return a.count < b.count ? -1 : 1;
+            }
+            return -TRUTH_TABLE_ORDER.compare(a, b);
+        }
+    };
+
+    private final int width;
+    private final HashMap<BitSet, Count> counts = new HashMap<BitSet, Count>();
+
+    /**
+     * @param width Number of properties
+     */
+    public CombinationTable(int width) {
+        this.width = width;
+    }
+
+    /**
+     * @return Number of properties
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Counts subjects for a combination.
+     *
+     * @param combination The combination, may be modified afterwards
+     * @param n Number of subjects to add
+     */
+    public void add(BitSet combination, long n) {
+        Count count = counts.get(combination);
+        if (count == null) {
+            count = new Count();
+            counts.put((BitSet) combination.clone(), count);
+        }
+        count.n += n;
+    }
+
+    /**
+     * Sets the number of subjects of a combination.
+     *
+     * @param combination The combination, may be modified afterwards
+     * @param n Number of subjects, -1 if counting failed
+     */
+    public void set(BitSet combination, long n) {
+        Count count = new Count();
+        count.n = n;
+        counts.put((BitSet) combination.clone(), count);
+    }
+
+    /**
+     * @param combination
+     * @return Number of subjects of the combination, 0 if never counted
+     */
+    public long get(BitSet combination) {
+        Count count = counts.get(combination);
+        return count == null ? 0 : count.n;
+    }
+
+    /**
+     * @return Number of combinations counted
+     */
+    public int size() {
+        return counts.size();
+    }
+
+    public void clear() {
+        counts.clear();
+    }
+
+    /**
+     * Lists the combinations counted. Without top they are ordered like the
+     * rows of a truth table, otherwise the most frequent come first.
+     * Failed combinations are always listed, with top they follow the most
+     * frequent ones and do not count against the limit.
+     *
+     * @param minCount Combinations with fewer subjects are left out
+     * @param top Maximum number of combinations, 0 for all
+     * @return The rows
+     */
+    public List<Row> getRows(long minCount, int top) {
+        ArrayList<Row> rows = new ArrayList<Row>();
+        PriorityQueue<Row> best = top > 0 ? new PriorityQueue<Row>(top, COUNT_ORDER) : null;
+        ArrayList<Row> failed = new ArrayList<Row>();
+        for (Map.Entry<BitSet, Count> e : counts.entrySet()) {
+            long n = e.getValue().n;
+            if (n >= 0 && n < minCount) {
+                continue;
+            }
+            Row row = new Row(e.getKey(), n);
+            if (best == null) {
+                rows.add(row);
+            } else if (n < 0) {
+                failed.add(row);
+            } else if (best.size() < top) {
+                best.add(row);
+            } else if (COUNT_ORDER.compare(row, best.peek()) > 0) {
+                best.poll();
+                best.add(row);
+            }
+        }
+        if (best == null) {
+            Collections.sort(rows, TRUTH_TABLE_ORDER);
+        } else {
+            rows.addAll(best);
+            Collections.sort(rows, Collections.reverseOrder(COUNT_ORDER));
+            Collections.sort(failed, TRUTH_TABLE_ORDER);
+            rows.addAll(failed);
+        }
+        return rows;
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.gesis.rdfstats;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.HashMap;
+import org.gesis.rdfcommons.Fingerprint;
+
+/**
+ * Persistent cache of query results, keyed by the fingerprint of endpoint and
+ * query text. Every result is appended to a text file and flushed right away,
+ * so the results of an interrupted run are kept. A line is the key and
+ * the count, separated by a tab and terminated by a dot. Lines without the
+ * terminator were torn by an interruption and are ignored.
+ *
+ */
+public class CountCache {
+
+    private static final String ENCODING = "UTF-8";
+    private static final char TERMINATOR = '.';
+
+    private final HashMap<Long, Long> counts = new HashMap<Long, Long>();
+    private final BufferedWriter writer;
+
+    /**
+     * Loads the cached results and opens the file for appending.
+     *
+     * @param file The cache file, created if it does not exist
+     * @throws IOException
+     */
+    public CountCache(File file) throws IOException {
+        if (file.exists()) {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+            try {
+                String line = br.readLine();
+                while (line != null) {
+                    int tab = line.indexOf('\t');
+                    //only complete lines, a torn one may have lost digits of the count
+                    if (tab > 0 && line.length() > tab + 2 && line.charAt(line.length() - 1) == TERMINATOR) {
+                        try {
+                            counts.put(Long.valueOf(line.substring(0, tab)), Long.valueOf(line.substring(tab + 1, line.length() - 1)));
+                        } catch (NumberFormatException ex) { //garbled line
+                        }
+                    }
+                    line = br.readLine();
+                }
+            } finally {
+                br.close();
+            }
+        }
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), ENCODING));
+        //a torn last line must not swallow the next result
+        writer.newLine();
+        writer.flush();
+    }
+
+    /**
+     * @param endpoint
+     * @param query
+     * @return The cached count, null if there is none
+     */
+    public synchronized Long get(String endpoint, String query) {
+        return counts.get(key(endpoint, query));
+    }
+
+    /**
+     * Stores a count and appends it to the file.
+     *
+     * @param endpoint
+     * @param query
+     * @param count
+     * @throws IOException
+     */
+    public synchronized void put(String endpoint, String query, long count) throws IOException {
+        long key = key(endpoint, query);
+        counts.put(key, count);
+        writer.write(Long.toString(key));
+        writer.write('\t');
+        writer.write(Long.toString(count));
+        writer.write(TERMINATOR);
+        writer.newLine();
+        writer.flush();
+    }
+
+    /**
+     * @return Number of cached results
+     */
+    public synchronized int size() {
+        return counts.size();
+    }
+
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    private static long key(String endpoint, String query) {
+        return Fingerprint.of(endpoint + "\n" + query);
+    }
+
+}
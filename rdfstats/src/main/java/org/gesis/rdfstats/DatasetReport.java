@@ -0,0 +1,326 @@
+package org.gesis.rdfstats;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per predicate statistics of a dataset: the number of statements, how many
+ * objects are IRIs, blank nodes and literals, the datatypes and language tags
+ * of the literals and a histogram of their lengths. A report is filled from
+ * the terms as written in NTriples, without building statements. Every thread
+ * fills a report of its own, the reports are merged at the end.
+ *
+ */
+public class DatasetReport {
+
+    private static final String XSD_STRING = "http://www.w3.org/2001/XMLSchema#string";
+    private static final String RDF_LANG_STRING = "http://www.w3.org/1999/02/22-rdf-syntax-ns#langString";
+    private static final String ENCODING = "UTF-8";
+    //bucket 0 holds empty literals, bucket i lengths from 2^(i-1) to 2^i - 1, the last one all longer
+    private static final int LENGTH_BUCKETS = 18;
+
+    /**
+     * The statistics of a predicate.
+     */
+    private static class PredicateStats {
+
+        private long triples = 0;
+        private long iris = 0;
+        private long blanks = 0;
+        private long literals = 0;
+        private final HashMap<String, Long> datatypes = new HashMap<String, Long>();
+        private final HashMap<String, Long> languages = new HashMap<String, Long>();
+        private final long[] lengths = new long[LENGTH_BUCKETS];
+        private long totalLength = 0;
+        private long maxLength = 0;
+
+        private void merge(PredicateStats other) {
+            triples += other.triples;
+            iris += other.iris;
+            blanks += other.blanks;
+            literals += other.literals;
+            increment(datatypes, other.datatypes);
+            increment(languages, other.languages);
+            for (int i = 0; i < LENGTH_BUCKETS; i++) {
+                lengths[i] += other.lengths[i];
+            }
+            totalLength += other.totalLength;
+            maxLength = Math.max(maxLength, other.maxLength);
+        }
+
+    }
+
+    private final TreeMap<String, PredicateStats> predicates = new TreeMap<String, PredicateStats>();
+    private long triples = 0;
+
+    /**
+     * Adds a statement.
+     *
+     * @param predicate The predicate IRI
+     * @param object The object term, as written in NTriples
+     */
+    public void add(String predicate, String object) {
+        PredicateStats stats = predicates.get(predicate);
+        if (stats == null) {
+            stats = new PredicateStats();
+            predicates.put(predicate, stats);
+        }
+        triples++;
+        stats.triples++;
+        if (object.startsWith("\"")) {
+            stats.literals++;
+            addLiteral(stats, object);
+        } else if (object.startsWith("_:")) {
+            stats.blanks++;
+        } else {
+            stats.iris++;
+        }
+    }
+
+    /**
+     * Adds the datatype, language and length of a literal. The length is
+     * the number of characters of the unescaped lexical form.
+     */
+    private static void addLiteral(PredicateStats stats, String literal) {
+        long length = 0;
+        int i = 1;
+        while (i < literal.length() && literal.charAt(i) != '"') {
+            char c = literal.charAt(i);
+            if (c == '\\' && i + 1 < literal.length()) {
+                char escaped = literal.charAt(i + 1);
+                i += escaped == 'u' ? 6 : escaped == 'U' ? 10 : 2;
+            } else {
+                i += Character.isHighSurrogate(c) ? 2 : 1;
+            }
+            length++;
+        }
+        String datatype = XSD_STRING;
+        if (literal.startsWith("^^<", i + 1) && literal.endsWith(">")) {
+            datatype = literal.substring(i + 4, literal.length() - 1);
+        } else if (literal.startsWith("@", i + 1)) {
+            datatype = RDF_LANG_STRING;
+            increment(stats.languages, literal.substring(i + 2).toLowerCase(), 1);
+        }
+        increment(stats.datatypes, datatype, 1);
+        stats.lengths[bucket(length)]++;
+        stats.totalLength += length;
+        stats.maxLength = Math.max(stats.maxLength, length);
+    }
+
+    private static int bucket(long length) {
+        return Math.min(64 - Long.numberOfLeadingZeros(length), LENGTH_BUCKETS - 1);
+    }
+
+    /**
+     * @return The lengths of a bucket, e.g. "4-7"
+     */
+    private static String bucketName(int bucket) {
+        if (bucket == 0) {
+            return "0";
+        }
+        long from = 1L << (bucket - 1);
+        if (bucket == LENGTH_BUCKETS - 1) {
+            return from + "+";
+        }
+        long to = (1L << bucket) - 1;
+        return from == to ? String.valueOf(from) : from + "-" + to;
+    }
+
+    private static void increment(HashMap<String, Long> counts, String key, long count) {
+        Long old = counts.get(key);
+        counts.put(key, old == null ? count : old + count);
+    }
+
+    private static void increment(HashMap<String, Long> counts, HashMap<String, Long> other) {
+        for (Map.Entry<String, Long> e : other.entrySet()) {
+            increment(counts, e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Adds the statements of another report, e.g. of another thread.
+     *
+     * @param other
+     */
+    public void merge(DatasetReport other) {
+        triples += other.triples;
+        for (Map.Entry<String, PredicateStats> e : other.predicates.entrySet()) {
+            PredicateStats stats = predicates.get(e.getKey());
+            if (stats == null) {
+                predicates.put(e.getKey(), e.getValue());
+            } else {
+                stats.merge(e.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return Number of statements added
+     */
+    public long getTriples() {
+        return triples;
+    }
+
+    /**
+     * @return Number of distinct predicates
+     */
+    public int size() {
+        return predicates.size();
+    }
+
+    /**
+     * @return The counts, most frequent first
+     */
+    private static List<Map.Entry<String, Long>> sorted(HashMap<String, Long> counts) {
+        ArrayList<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                int c = b.getValue().compareTo(a.getValue());
+                return c != 0 ? c : a.getKey().compareTo(b.getKey());
+            }
+        });
+        return entries;
+    }
+
+    private static String mean(PredicateStats stats) {
+        return stats.literals == 0 ? "" : String.format(Locale.ROOT, "%.1f", (double) stats.totalLength / stats.literals);
+    }
+
+    /**
+     * Writes the report to System.out as a table
+     *
+     * @param out
+     */
+    public void print(PrintStream out) {
+        out.println("Statements " + triples + ", predicates " + predicates.size());
+        out.println("Predicates (statements; IRIs; blank nodes; literals; mean/max length; datatypes; languages):");
+        for (Map.Entry<String, PredicateStats> e : predicates.entrySet()) {
+            PredicateStats stats = e.getValue();
+            out.println(e.getKey() + "; " + stats.triples + "; " + stats.iris + "; " + stats.blanks + "; " + stats.literals
+                    + "; " + (stats.literals == 0 ? "" : mean(stats) + "/" + stats.maxLength) + "; " + join(sorted(stats.datatypes)) + "; " + join(sorted(stats.languages)));
+        }
+    }
+
+    private static String join(List<Map.Entry<String, Long>> counts) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : counts) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(e.getKey()).append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the report to a csv file, one row per predicate. Datatypes and
+     * languages are listed as name=count pairs separated by spaces.
+     *
+     * @param file
+     * @throws FileNotFoundException
+     */
+    public void writeToCSV(File file) throws FileNotFoundException {
+        PrintStream ps = new PrintStream(file);
+        String divider = ";";
+
+        ps.print("predicate;triples;iris;blanks;literals;datatypes;languages;mean length;max length");
+        for (int i = 0; i < LENGTH_BUCKETS; i++) {
+            ps.print(divider + "length " + bucketName(i));
+        }
+        ps.println();
+
+        for (Map.Entry<String, PredicateStats> e : predicates.entrySet()) {
+            PredicateStats stats = e.getValue();
+            ps.print(e.getKey() + divider + stats.triples + divider + stats.iris + divider + stats.blanks + divider + stats.literals
+                    + divider + join(sorted(stats.datatypes)) + divider + join(sorted(stats.languages))
+                    + divider + mean(stats) + divider + stats.maxLength);
+            for (int i = 0; i < LENGTH_BUCKETS; i++) {
+                ps.print(divider + stats.lengths[i]);
+            }
+            ps.println();
+        }
+        ps.close();
+    }
+
+    /**
+     * Writes the report to a JSON file. Empty length buckets are left out.
+     *
+     * @param file
+     * @throws FileNotFoundException
+     * @throws UnsupportedEncodingException
+     */
+    public void writeToJSON(File file) throws FileNotFoundException, UnsupportedEncodingException {
+        PrintStream ps = new PrintStream(file, ENCODING);
+        ps.println("{");
+        ps.println("  \"triples\": " + triples + ",");
+        ps.println("  \"predicates\": [");
+        int n = 0;
+        for (Map.Entry<String, PredicateStats> e : predicates.entrySet()) {
+            PredicateStats stats = e.getValue();
+            ps.println("    {");
+            ps.println("      \"predicate\": " + quote(e.getKey()) + ",");
+            ps.println("      \"triples\": " + stats.triples + ",");
+            ps.println("      \"iris\": " + stats.iris + ",");
+            ps.println("      \"blanks\": " + stats.blanks + ",");
+            ps.println("      \"literals\": " + stats.literals + ",");
+            ps.println("      \"datatypes\": " + toJSON(sorted(stats.datatypes)) + ",");
+            ps.println("      \"languages\": " + toJSON(sorted(stats.languages)) + ",");
+            if (stats.literals > 0) {
+                ps.println("      \"meanLength\": " + mean(stats) + ",");
+            }
+            ps.println("      \"maxLength\": " + stats.maxLength + ",");
+            StringBuilder lengths = new StringBuilder();
+            for (int i = 0; i < LENGTH_BUCKETS; i++) {
+                if (stats.lengths[i] > 0) {
+                    lengths.append(lengths.length() == 0 ? "" : ", ").append(quote(bucketName(i))).append(": ").append(stats.lengths[i]);
+                }
+            }
+            ps.println("      \"lengths\": {" + lengths + "}");
+            ps.println(++n < predicates.size() ? "    }," : "    }");
+        }
+        ps.println("  ]");
+        ps.println("}");
+        ps.close();
+    }
+
+    private static String toJSON(List<Map.Entry<String, Long>> counts) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Long> e : counts) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(quote(e.getKey())).append(": ").append(e.getValue());
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * @return A JSON string
+     */
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+}
@@ -0,0 +1,413 @@
+package org.gesis.rdfstats;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import org.gesis.rdfcommons.Fingerprint;
+import org.gesis.rdfcommons.LongBitSetMap;
+
+/**
+ * Counts the combinations of properties of the subjects of a type in
+ * NTriples or NQuads files, e.g. dumps of unloadtriplestore, instead of
+ * asking an endpoint. Files ending in .gz are decompressed on the fly. The
+ * statements of a subject may be spread over the files in any order: a first
+ * pass finds the subjects of the type, a second one sets their property bits.
+ * Subjects are kept by their fingerprint in an off-heap LongBitSetMap, so
+ * hundreds of millions of them fit into a few GB. Lines are split into their
+ * terms without building statements, a line that is no statement is skipped.
+ * A profile of the subjects is built in a single pass if their statements
+ * are consecutive. A report on all statements is built by several threads.
+ *
+ */
+public class DumpStatistics {
+
+    private static final String ENCODING = "UTF-8";
+    private static final int BLOCK_LINES = 4096;
+    private static final String RDF_TYPE = "<http://www.w3.org/1999/02/22-rdf-syntax-ns#type>";
+
+    private final List<File> files;
+    private final String type;
+    private final long expected;
+    private LongBitSetMap subjects = null;
+
+    //statistics
+    private long lines = 0;
+    private long skipped = 0;
+
+    /**
+     * @param files The NTriples files
+     * @param type The type IRI, may be null for report
+     * @param expected Number of subjects of the type expected, the index
+     * grows if there are more
+     */
+    public DumpStatistics(List<File> files, String type, long expected) {
+        this.files = files;
+        this.type = type == null ? null : "<" + type + ">";
+        this.expected = expected;
+    }
+
+    /**
+     * Finds the subjects of the type.
+     *
+     * @return Number of subjects
+     * @throws IOException
+     */
+    public long findSubjects() throws IOException {
+        final LongBitSetMap found = new LongBitSetMap(0, expected);
+        scan(new TripleHandler() {
+            @Override
+            public void handle(String subject, String predicate, String line, int object) {
+                if (predicate.equals(RDF_TYPE) && line.startsWith(type, object)) {
+                    found.add(Fingerprint.of(subject));
+                }
+            }
+        });
+        subjects = found;
+        return found.size();
+    }
+
+    /**
+     * Lists the properties the subjects of the type have, in the order they
+     * are found. Requires findSubjects.
+     *
+     * @return The property IRIs, without rdf:type
+     * @throws IOException
+     */
+    public ArrayList<String> listProperties() throws IOException {
+        final LinkedHashSet<String> properties = new LinkedHashSet<String>();
+        scan(new TripleHandler() {
+            @Override
+            public void handle(String subject, String predicate, String line, int object) {
+                if (!properties.contains(predicate) && subjects.find(Fingerprint.of(subject)) >= 0) {
+                    properties.add(predicate);
+                }
+            }
+        });
+        properties.remove(RDF_TYPE);
+        ArrayList<String> list = new ArrayList<String>();
+        for (String property : properties) {
+            list.add(property.substring(1, property.length() - 1));
+        }
+        return list;
+    }
+
+    /**
+     * Counts the combinations of properties of the subjects of the type.
+     * Requires findSubjects.
+     *
+     * @param propertyList Reference list for properties
+     * @param table Receives the counts
+     * @throws IOException
+     */
+    public void countCombinations(ArrayList<String> propertyList, CombinationTable table) throws IOException {
+        final HashMap<String, Integer> bits = new HashMap<String, Integer>();
+        for (int col = 0; col < propertyList.size(); col++) {
+            bits.put("<" + propertyList.get(col) + ">", col);
+        }
+        //the subjects again, now with room for their properties
+        final LongBitSetMap masks = new LongBitSetMap(propertyList.size(), subjects.size());
+        for (long slot = 0; slot < subjects.getCapacity(); slot++) {
+            if (subjects.isUsed(slot)) {
+                masks.add(subjects.getKey(slot));
+            }
+        }
+        subjects = masks;
+
+        scan(new TripleHandler() {
+            @Override
+            public void handle(String subject, String predicate, String line, int object) {
+                Integer bit = bits.get(predicate);
+                if (bit != null) {
+                    long slot = masks.find(Fingerprint.of(subject));
+                    if (slot >= 0) {
+                        masks.set(slot, bit);
+                    }
+                }
+            }
+        });
+
+        for (long slot = 0; slot < masks.getCapacity(); slot++) {
+            if (masks.isUsed(slot)) {
+                table.add(masks.getBits(slot), 1);
+            }
+        }
+    }
+
+    /**
+     * Profiles the subjects of the type in a single pass, without the
+     * subject index. The statements of a subject must be consecutive, as in
+     * dumps ordered by subject like the keyset dumps of unloadtriplestore,
+     * otherwise every run of statements counts as a subject of its own.
+     *
+     * @param profile Receives the subjects of the type
+     * @return Number of subjects of the type
+     * @throws IOException
+     */
+    public long profile(final Profile profile) throws IOException {
+        final ArrayList<String> predicates = new ArrayList<String>();
+        final ArrayList<String> objects = new ArrayList<String>();
+        final String[] current = new String[1]; //subject of the statements collected
+        final boolean[] typed = new boolean[1];
+        final long[] found = new long[1];
+        scan(new TripleHandler() {
+            @Override
+            public void handle(String subject, String predicate, String line, int object) {
+                if (!subject.equals(current[0])) {
+                    if (typed[0]) {
+                        profile.addSubject(toValue(current[0]), predicates, objects);
+                        found[0]++;
+                    }
+                    current[0] = subject;
+                    typed[0] = false;
+                    predicates.clear();
+                    objects.clear();
+                }
+                String term = objectTerm(line, object);
+                if (predicate.equals(RDF_TYPE) && term.equals(type)) {
+                    typed[0] = true;
+                }
+                predicates.add(toValue(predicate));
+                objects.add(term);
+            }
+        });
+        if (typed[0]) {
+            profile.addSubject(toValue(current[0]), predicates, objects);
+            found[0]++;
+        }
+        return found[0];
+    }
+
+    /**
+     * @return The object term of a statement, without the graph of a quad
+     */
+    private static String objectTerm(String line, int object) {
+        int end = skipSpaceBack(line, line.length(), object);
+        if (end > object && line.charAt(end - 1) == '.') {
+            end = skipSpaceBack(line, end - 1, object);
+        }
+        //a graph is a separate IRI, the datatype of a literal follows its quote
+        int last = Math.max(line.lastIndexOf(' ', end - 1), line.lastIndexOf('\t', end - 1));
+        if (last > object && line.charAt(last + 1) == '<' && line.indexOf('"', last) < 0) {
+            end = skipSpaceBack(line, last, object);
+        }
+        return line.substring(object, end);
+    }
+
+    private static int skipSpaceBack(String line, int i, int min) {
+        while (i > min && (line.charAt(i - 1) == ' ' || line.charAt(i - 1) == '\t')) {
+            i--;
+        }
+        return i;
+    }
+
+    /**
+     * @return The IRI of an IRI term, other terms as they are
+     */
+    private static String toValue(String term) {
+        if (term.startsWith("<") && term.endsWith(">")) {
+            return term.substring(1, term.length() - 1);
+        }
+        return term;
+    }
+
+    /**
+     * Reports on all statements of the files, not only those of the type.
+     * The lines are read by the calling thread and handed in blocks to the
+     * worker threads, every worker fills a DatasetReport of its own and the
+     * reports are merged at the end.
+     *
+     * @param threads Number of worker threads
+     * @return The report
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public DatasetReport report(int threads) throws IOException, InterruptedException {
+        final BlockingQueue<ArrayList<String>> blocks = new ArrayBlockingQueue<ArrayList<String>>(threads * 4);
+        final ArrayList<String> end = new ArrayList<String>();
+        final DatasetReport[] reports = new DatasetReport[threads];
+        final AtomicLong skippedLines = new AtomicLong();
+        final RuntimeException[] failures = new RuntimeException[threads];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final DatasetReport report = new DatasetReport();
+            final int worker = i;
+            reports[i] = report;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    TripleHandler handler = new TripleHandler() {
+                        @Override
+                        public void handle(String subject, String predicate, String line, int object) {
+                            report.add(toValue(predicate), objectTerm(line, object));
+                        }
+                    };
+                    try {
+                        ArrayList<String> block = blocks.take();
+                        while (block != end) {
+                            if (failures[worker] == null) { //after a failure only drain, so the reader does not block
+                                try {
+                                    for (String line : block) {
+                                        if (!split(line, handler)) {
+                                            skippedLines.incrementAndGet();
+                                        }
+                                    }
+                                } catch (RuntimeException ex) {
+                                    failures[worker] = ex;
+                                }
+                            }
+                            block = blocks.take();
+                        }
+                    } catch (InterruptedException ex) {
+                        failures[worker] = new IllegalStateException(ex);
+                    }
+                }
+            }, "Report " + i);
+            workers[i].start();
+        }
+
+        lines = 0;
+        try {
+            for (File file : files) {
+                BufferedReader br = open(file);
+                try {
+                    ArrayList<String> block = new ArrayList<String>(BLOCK_LINES);
+                    String line = br.readLine();
+                    while (line != null) {
+                        lines++;
+                        block.add(line);
+                        if (block.size() == BLOCK_LINES) {
+                            blocks.put(block);
+                            block = new ArrayList<String>(BLOCK_LINES);
+                        }
+                        line = br.readLine();
+                    }
+                    blocks.put(block);
+                } finally {
+                    br.close();
+                }
+            }
+        } finally {
+            for (int i = 0; i < threads; i++) {
+                blocks.put(end);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+        skipped = skippedLines.get();
+
+        for (RuntimeException failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        for (int i = 1; i < threads; i++) {
+            reports[0].merge(reports[i]);
+        }
+        return reports[0];
+    }
+
+    /**
+     * Receives the statements of the files.
+     */
+    private interface TripleHandler {
+
+        /**
+         * @param subject The subject term, as written in the file
+         * @param predicate The predicate term, as written in the file
+         * @param line The line
+         * @param object Index of the object term in the line
+         */
+        void handle(String subject, String predicate, String line, int object);
+
+    }
+
+    private void scan(TripleHandler handler) throws IOException {
+        lines = 0;
+        skipped = 0;
+        for (File file : files) {
+            BufferedReader br = open(file);
+            try {
+                String line = br.readLine();
+                while (line != null) {
+                    lines++;
+                    if (!split(line, handler)) {
+                        skipped++;
+                    }
+                    line = br.readLine();
+                }
+            } finally {
+                br.close();
+            }
+        }
+    }
+
+    private static BufferedReader open(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        return new BufferedReader(new InputStreamReader(in, ENCODING), 1 << 16);
+    }
+
+    /**
+     * Splits a line into subject, predicate and the rest.
+     *
+     * @return false if the line is empty, a comment or no statement
+     */
+    private static boolean split(String line, TripleHandler handler) {
+        int start = skipSpace(line, 0);
+        if (start == line.length() || line.charAt(start) == '#') {
+            return true;
+        }
+        int subjectEnd = skipTerm(line, start);
+        int predicateStart = skipSpace(line, subjectEnd);
+        int predicateEnd = skipTerm(line, predicateStart);
+        int object = skipSpace(line, predicateEnd);
+        if (subjectEnd == start || predicateEnd == predicateStart || object == line.length()) {
+            return false;
+        }
+        handler.handle(line.substring(start, subjectEnd), line.substring(predicateStart, predicateEnd), line, object);
+        return true;
+    }
+
+    private static int skipSpace(String line, int i) {
+        while (i < line.length() && (line.charAt(i) == ' ' || line.charAt(i) == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipTerm(String line, int i) {
+        while (i < line.length() && line.charAt(i) != ' ' && line.charAt(i) != '\t') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return Number of lines read by the last pass
+     */
+    public long getLines() {
+        return lines;
+    }
+
+    /**
+     * @return Number of lines of the last pass that were no statement
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+}
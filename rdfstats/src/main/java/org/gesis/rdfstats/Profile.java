@@ -0,0 +1,321 @@
+package org.gesis.rdfstats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.gesis.rdfcommons.CountMinSketch;
+import org.gesis.rdfcommons.Fingerprint;
+import org.gesis.rdfcommons.HyperLogLog;
+import org.gesis.rdfcommons.ReservoirSample;
+
+/**
+ * Approximate profile of the subjects of a type, built in a single pass over
+ * their statements. Distinct subjects, and distinct subjects and objects per
+ * predicate, are estimated by HyperLogLog sketches, the frequencies of the
+ * combinations of predicates by a count-min sketch which keeps the most
+ * frequent combinations as candidates, and example objects per predicate are
+ * a reservoir sample. The memory taken is constant per predicate, whatever
+ * the number of subjects. Profiles of shards of the data can be saved and
+ * merged.
+ *
+ */
+public class Profile {
+
+    private static final int MAGIC = 0x52445350; //RDSP
+    private static final String RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
+    private static final int MAX_EXAMPLE_LENGTH = 200;
+
+    /**
+     * The sketches of a predicate.
+     */
+    private static class PredicateProfile {
+
+        private long statements = 0;
+        private HyperLogLog subjects;
+        private HyperLogLog objects;
+        private ReservoirSample examples;
+
+    }
+
+    private final int precision;
+    private final double epsilon;
+    private final double delta;
+    private final int top;
+    private final int samples;
+
+    private long statements = 0;
+    private HyperLogLog subjects;
+    private final TreeMap<String, PredicateProfile> predicates = new TreeMap<String, PredicateProfile>();
+    private CountMinSketch combinations;
+    private final HashMap<Long, List<String>> candidates = new HashMap<Long, List<String>>(); //most frequent combinations
+    private long threshold = 0; //no candidate is estimated lower
+
+    /**
+     * @param precision Precision of the HyperLogLog sketches
+     * @param epsilon Maximum overestimate of a combination frequency,
+     * relative to the number of subjects
+     * @param delta Probability of a larger overestimate
+     * @param top Number of combinations kept as candidates
+     * @param samples Number of example objects per predicate
+     */
+    public Profile(int precision, double epsilon, double delta, int top, int samples) {
+        this.precision = precision;
+        this.epsilon = epsilon;
+        this.delta = delta;
+        this.top = top;
+        this.samples = samples;
+        this.subjects = new HyperLogLog(precision);
+        this.combinations = new CountMinSketch(epsilon, delta);
+    }
+
+    /**
+     * Adds a subject with its statements.
+     *
+     * @param subject The subject
+     * @param predicateList The predicates of the statements
+     * @param objectList The objects of the statements, as NTriples terms
+     */
+    public void addSubject(String subject, List<String> predicateList, List<String> objectList) {
+        long subjectHash = Fingerprint.of(subject);
+        subjects.addHash(subjectHash);
+        TreeSet<String> combination = new TreeSet<String>();
+        for (int i = 0; i < predicateList.size(); i++) {
+            String predicate = predicateList.get(i);
+            String object = objectList.get(i);
+            PredicateProfile pp = getPredicate(predicate);
+            pp.statements++;
+            pp.subjects.addHash(subjectHash);
+            pp.objects.add(object);
+            pp.examples.add(object.length() > MAX_EXAMPLE_LENGTH ? object.substring(0, MAX_EXAMPLE_LENGTH) + "..." : object);
+            if (!predicate.equals(RDF_TYPE)) {
+                combination.add(predicate);
+            }
+        }
+        statements += predicateList.size();
+
+        StringBuilder key = new StringBuilder();
+        for (String predicate : combination) {
+            key.append(predicate).append(' ');
+        }
+        long hash = Fingerprint.of(key);
+        combinations.add(hash, 1);
+        offer(hash, combination);
+    }
+
+    private PredicateProfile getPredicate(String predicate) {
+        PredicateProfile pp = predicates.get(predicate);
+        if (pp == null) {
+            pp = new PredicateProfile();
+            pp.subjects = new HyperLogLog(precision);
+            pp.objects = new HyperLogLog(precision);
+            pp.examples = new ReservoirSample(samples);
+            predicates.put(predicate, pp);
+        }
+        return pp;
+    }
+
+    /**
+     * Keeps a combination as candidate if it is estimated more frequent than
+     * the least frequent candidate.
+     */
+    private void offer(long hash, Collection<String> combination) {
+        if (candidates.containsKey(hash)) {
+            return;
+        }
+        if (candidates.size() < top) {
+            candidates.put(hash, new ArrayList<String>(combination));
+            return;
+        }
+        long estimate = combinations.estimate(hash);
+        if (estimate <= threshold) { //estimates only grow, so the threshold is a lower bound
+            return;
+        }
+        Long lowest = null;
+        long lowestEstimate = Long.MAX_VALUE;
+        for (Long candidate : candidates.keySet()) {
+            long e = combinations.estimate(candidate);
+            if (e < lowestEstimate) {
+                lowestEstimate = e;
+                lowest = candidate;
+            }
+        }
+        if (estimate > lowestEstimate) {
+            candidates.remove(lowest);
+            candidates.put(hash, new ArrayList<String>(combination));
+            lowestEstimate = estimate;
+            for (Long candidate : candidates.keySet()) {
+                lowestEstimate = Math.min(lowestEstimate, combinations.estimate(candidate));
+            }
+        }
+        threshold = lowestEstimate;
+    }
+
+    /**
+     * Adds the subjects of another profile, e.g. of another shard.
+     *
+     * @param other A profile with the same parameters
+     */
+    public void merge(Profile other) {
+        statements += other.statements;
+        subjects.merge(other.subjects);
+        for (Map.Entry<String, PredicateProfile> e : other.predicates.entrySet()) {
+            PredicateProfile pp = getPredicate(e.getKey());
+            pp.statements += e.getValue().statements;
+            pp.subjects.merge(e.getValue().subjects);
+            pp.objects.merge(e.getValue().objects);
+            pp.examples.merge(e.getValue().examples);
+        }
+        combinations.merge(other.combinations);
+        threshold = 0;
+        for (Map.Entry<Long, List<String>> e : other.candidates.entrySet()) {
+            offer(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Saves the profile.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(precision);
+            out.writeDouble(epsilon);
+            out.writeDouble(delta);
+            out.writeInt(top);
+            out.writeInt(samples);
+            out.writeLong(statements);
+            subjects.write(out);
+            out.writeInt(predicates.size());
+            for (Map.Entry<String, PredicateProfile> e : predicates.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().statements);
+                e.getValue().subjects.write(out);
+                e.getValue().objects.write(out);
+                e.getValue().examples.write(out);
+            }
+            combinations.write(out);
+            out.writeInt(candidates.size());
+            for (Map.Entry<Long, List<String>> e : candidates.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeInt(e.getValue().size());
+                for (String predicate : e.getValue()) {
+                    out.writeUTF(predicate);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads a saved profile.
+     *
+     * @param file
+     * @return The profile
+     * @throws IOException If the file is no saved profile
+     */
+    public static Profile read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file.getAbsolutePath() + " is no saved profile");
+            }
+            Profile p = new Profile(in.readInt(), in.readDouble(), in.readDouble(), in.readInt(), in.readInt());
+            p.statements = in.readLong();
+            p.subjects = HyperLogLog.read(in);
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                PredicateProfile pp = new PredicateProfile();
+                String predicate = in.readUTF();
+                pp.statements = in.readLong();
+                pp.subjects = HyperLogLog.read(in);
+                pp.objects = HyperLogLog.read(in);
+                pp.examples = ReservoirSample.read(in);
+                p.predicates.put(predicate, pp);
+            }
+            p.combinations = CountMinSketch.read(in);
+            n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                long hash = in.readLong();
+                int size = in.readInt();
+                ArrayList<String> combination = new ArrayList<String>(size);
+                for (int j = 0; j < size; j++) {
+                    combination.add(in.readUTF());
+                }
+                p.candidates.put(hash, combination);
+            }
+            return p;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Prints the estimates with their error bounds.
+     *
+     * @param out
+     */
+    public void print(PrintStream out) {
+        double hllError = subjects.getError() * 100;
+        out.println(String.format("Subjects ~%d (standard error %.1f%%)", subjects.estimate(), hllError));
+        out.println("Statements " + statements);
+        out.println();
+        out.println("Predicates (statements; distinct subjects ~; distinct objects ~; examples):");
+        for (Map.Entry<String, PredicateProfile> e : predicates.entrySet()) {
+            PredicateProfile pp = e.getValue();
+            StringBuilder examples = new StringBuilder();
+            for (String example : pp.examples.getValues()) {
+                if (examples.length() > 0) {
+                    examples.append(" | ");
+                }
+                examples.append(example);
+            }
+            out.println(e.getKey() + "; " + pp.statements + "; " + pp.subjects.estimate() + "; " + pp.objects.estimate() + "; " + examples);
+        }
+        out.println();
+
+        final HashMap<Long, Long> estimates = new HashMap<Long, Long>();
+        for (Long hash : candidates.keySet()) {
+            estimates.put(hash, combinations.estimate(hash));
+        }
+        ArrayList<Long> order = new ArrayList<Long>(candidates.keySet());
+        Collections.sort(order, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                return estimates.get(b).compareTo(estimates.get(a));
+            }
+        });
+        out.println(String.format("Most frequent combinations (subjects ~, overestimated by at most %d with probability %.0f%%):",
+                (long) Math.ceil(combinations.getEpsilon() * combinations.getTotal()), (1 - combinations.getDelta()) * 100));
+        for (Long hash : order) {
+            out.println(String.format("% 10d | ", estimates.get(hash)) + candidates.get(hash));
+        }
+    }
+
+    /**
+     * @return Number of subjects added, including those of merged profiles
+     */
+    public long getSubjectsAdded() {
+        return combinations.getTotal();
+    }
+
+}
@@ -0,0 +1,183 @@
+package org.gesis.rdfstats;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.gesis.rdfcommons.EndpointClient;
+import org.openrdf.OpenRDFException;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.repository.RepositoryConnection;
+
+/**
+ * Streams the statements of the subjects of a type, one subject at a time.
+ * The statements are requested in pages ordered by subject, every page
+ * continues after the last subject that was completely read. The last
+ * subject of a page may be cut off by the LIMIT or by a result row cap of the
+ * endpoint, hence it is requested again with the next page. A subject that
+ * makes up a whole page on its own is requested separately. The subjects end
+ * with the first empty page, so a cap cannot truncate them silently; a short
+ * page followed by further subjects lowers the page size to the cap. Blank
+ * node subjects cannot be paged by key and are left out, countBlankSubjects
+ * tells how many there are.
+ *
+ */
+public class SubjectPager {
+
+    /**
+     * Receives the statements of one subject.
+     */
+    public interface Handler {
+
+        /**
+         * @param subject The subject IRI
+         * @param rows All rows of the subject, ?s is not bound for a subject
+         * that was requested separately
+         */
+        void subject(String subject, List<BindingSet> rows);
+
+    }
+
+    private final EndpointClient client;
+    private final RepositoryConnection con;
+    private final String type;
+    private final String variables;
+    private final boolean distinct;
+    private long pageSize;
+    private long pages = 0;
+
+    /**
+     * @param client
+     * @param con A connection of the client
+     * @param type Type of the subjects
+     * @param variables Variables to select besides ?s, of the pattern ?s ?p
+     * ?o
+     * @param distinct Whether duplicate rows are removed
+     * @param pageSize Maximum rows per query, lowered to a cap of the endpoint
+     */
+    public SubjectPager(EndpointClient client, RepositoryConnection con, String type, String variables, boolean distinct, long pageSize) {
+        this.client = client;
+        this.con = con;
+        this.type = type;
+        this.variables = variables;
+        this.distinct = distinct;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Hands every subject to the handler, in the order of the endpoint.
+     *
+     * @param handler
+     * @return Number of subjects
+     * @throws OpenRDFException
+     * @throws InterruptedException
+     */
+    public long run(Handler handler) throws OpenRDFException, InterruptedException {
+        long subjects = 0;
+        String lowerKey = null;
+        String cutKey = null; //last subject of the previous page if it was short
+        long cut = 0;
+        List<BindingSet> rows = null;
+        while (rows == null || !rows.isEmpty()) {
+            String request = "SELECT " + (distinct ? "DISTINCT " : "") + "?s " + variables
+                    + " WHERE { ?s a <" + type + "> . ?s ?p ?o FILTER(isIRI(?s)";
+            if (lowerKey != null) {
+                request += " && STR(?s) > " + toLiteral(lowerKey);
+            }
+            request += ") } ORDER BY STR(?s) LIMIT " + pageSize;
+            rows = request(request);
+            pages++;
+            if (rows.isEmpty()) {
+                break;
+            }
+            if (cutKey != null && !key(rows.get(rows.size() - 1)).equals(cutKey)) {
+                pageSize = Math.max(1, cut); //the short page was cut by the endpoint
+            }
+            String last = key(rows.get(rows.size() - 1));
+            cutKey = rows.size() < pageSize ? last : null;
+            cut = rows.size();
+
+            //drop the possibly truncated last subject
+            int end = rows.size();
+            while (end > 0 && key(rows.get(end - 1)).equals(last)) {
+                end--;
+            }
+            if (end == 0) { //one subject made up the whole page
+                handler.subject(last, request("SELECT " + (distinct ? "DISTINCT " : "") + variables
+                        + " WHERE { <" + last + "> ?p ?o }"));
+                subjects++;
+                lowerKey = last;
+                continue;
+            }
+            int start = 0;
+            while (start < end) {
+                String subject = key(rows.get(start));
+                int next = start + 1;
+                while (next < end && key(rows.get(next)).equals(subject)) {
+                    next++;
+                }
+                handler.subject(subject, rows.subList(start, next));
+                subjects++;
+                lowerKey = subject;
+                start = next;
+            }
+        }
+        return subjects;
+    }
+
+    /**
+     * @return Number of subjects of the type that are blank nodes
+     * @throws OpenRDFException
+     * @throws InterruptedException
+     */
+    public long countBlankSubjects() throws OpenRDFException, InterruptedException {
+        List<BindingSet> rows = request("SELECT (COUNT(DISTINCT ?s) AS ?count) WHERE { ?s a <" + type + "> FILTER(isBlank(?s)) }");
+        if (rows.isEmpty() || rows.get(0).getValue("count") == null) {
+            return 0;
+        }
+        return Long.valueOf(rows.get(0).getValue("count").stringValue());
+    }
+
+    /**
+     * @return Number of pages requested
+     */
+    public long getPages() {
+        return pages;
+    }
+
+    /**
+     * Issues a query and reads the whole result, so a retry starts over.
+     */
+    private List<BindingSet> request(String request) throws OpenRDFException, InterruptedException {
+        final TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, request);
+        query.setIncludeInferred(false);
+        return client.execute(new EndpointClient.Request<List<BindingSet>>() {
+            @Override
+            public List<BindingSet> run() throws OpenRDFException {
+                ArrayList<BindingSet> rows = new ArrayList<BindingSet>();
+                TupleQueryResult result = query.evaluate();
+                try {
+                    while (result.hasNext()) {
+                        rows.add(result.next());
+                    }
+                } finally {
+                    result.close();
+                }
+                return rows;
+            }
+        });
+    }
+
+    private static String key(BindingSet row) {
+        return row.getValue("s").stringValue();
+    }
+
+    /**
+     * @return The key as a SPARQL string literal
+     */
+    private static String toLiteral(String key) {
+        return "\"" + key.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+}
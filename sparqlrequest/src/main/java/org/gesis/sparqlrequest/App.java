@@ -11,44 +11,143 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import org.gesis.rdfcommons.EndpointClient;
+import org.gesis.rdfcommons.FingerprintSet;
+import org.gesis.rdfcommons.LinkExtractor;
 import org.openrdf.OpenRDFException;
-import org.openrdf.model.Value;
-import org.openrdf.query.BindingSet;
-import org.openrdf.query.MalformedQueryException;
-import org.openrdf.query.QueryEvaluationException;
-import org.openrdf.query.QueryLanguage;
-import org.openrdf.query.TupleQuery;
-import org.openrdf.query.TupleQueryResult;
-import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.RepositoryException;
-import org.openrdf.repository.sparql.SPARQLRepository;
 
 /**
  * Requests resources from a SPARQL endpoint and writes them to System.out as
  * NTriples. Resources can be specified by a list of resource IDs. This list can
- * be passed as parameter or via bash piping.
+ * be passed as parameter or via bash piping. Resources are requested by
+ * CONSTRUCT queries, with --batch many resources per query, and written as
+ * NTriples. With --cache resources are kept on disk and requested again only
+ * once they expired. With --distinct repeated resources are requested only
+ * once. With --threads several batches are
+ * requested at the same time, the output keeps the order of the input unless
+ * --unordered is given. With --crawl the resources are seeds, the object URIs
+ * of their statements are requested as well, up to the given depth and
+ * optionally restricted by --follow-predicate and --follow-namespace. Every
+ * resource of a crawl is requested once. All queries share a pool of HTTP
+ * connections, are limited to --rate queries per second and retried after
+ * transient failures.
  *
  */
 public class App {
 
-    private static final String USAGE = "Usage: sparqlrequest <input file> <endpoint>\n";
+    private static final String USAGE = "Usage: sparqlrequest [<input file>] <endpoint> [--batch <resources>] [--timeout <seconds>]"
+            + " [--connect-timeout <seconds>] [--read-timeout <seconds>] [--threads <n>] [--window <batches>] [--max-concurrent <queries>] [--rate <queries/s>] [--retries <n>] [--unordered]"
+            + " [--cache <dir> [--cache-ttl <hours>] [--cache-size <MB>] [--cache-only]]"
+            + " [--distinct [--distinct-memory <MB>] [--no-bloom] [--tmp <dir>]]"
+            + " [--crawl <depth> [--follow-predicate <iri>]... [--follow-namespace <iri>]...]\n";
     private static final String ENCODING = "UTF-8";
+    private static final int BATCHSIZE = 1;
+    private static final int THREADS = 1;
+    private static final int WINDOW_PER_THREAD = 4;
+    private static final int CACHE_TTL = 24; //hours
+    private static final int CACHE_SIZE = 4096; //MB
+    private static final long DISTINCT_MEMORY = 256; //MB
+    private static final int RETRIES = 3;
 
     public static void main(String[] args) {
         String sparqlEp = null;
         InputStream inStream = null;
+        int batchSize = BATCHSIZE;
+        int timeout = 0;
+        int connectTimeout = EndpointClient.CONNECT_TIMEOUT;
+        int readTimeout = EndpointClient.READ_TIMEOUT;
+        int threads = THREADS;
+        int window = 0;
+        int maxConcurrent = 0;
+        double rate = 0;
+        int retries = RETRIES;
+        boolean ordered = true;
+        File cacheDir = null;
+        long cacheTtl = CACHE_TTL;
+        long cacheSize = CACHE_SIZE;
+        boolean cacheOnly = false;
+        boolean distinct = false;
+        long distinctMemory = DISTINCT_MEMORY;
+        boolean bloom = true;
+        File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+        int crawlDepth = -1;
+        LinkExtractor extractor = new LinkExtractor();
 
-        if (args.length < 1 || args.length > 2) {
+        ArrayList<String> positional = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--batch") && i + 1 < args.length) {
+                    batchSize = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--timeout") && i + 1 < args.length) {
+                    timeout = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--connect-timeout") && i + 1 < args.length) {
+                    connectTimeout = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--read-timeout") && i + 1 < args.length) {
+                    readTimeout = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                    threads = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--window") && i + 1 < args.length) {
+                    window = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--max-concurrent") && i + 1 < args.length) {
+                    maxConcurrent = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--rate") && i + 1 < args.length) {
+                    rate = Double.valueOf(args[++i]);
+                } else if (args[i].equals("--retries") && i + 1 < args.length) {
+                    retries = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--unordered")) {
+                    ordered = false;
+                } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                    cacheDir = new File(args[++i]);
+                } else if (args[i].equals("--cache-ttl") && i + 1 < args.length) {
+                    cacheTtl = Long.valueOf(args[++i]);
+                } else if (args[i].equals("--cache-size") && i + 1 < args.length) {
+                    cacheSize = Long.valueOf(args[++i]);
+                } else if (args[i].equals("--cache-only")) {
+                    cacheOnly = true;
+                } else if (args[i].equals("--distinct")) {
+                    distinct = true;
+                } else if (args[i].equals("--distinct-memory") && i + 1 < args.length) {
+                    distinctMemory = Long.valueOf(args[++i]);
+                } else if (args[i].equals("--no-bloom")) {
+                    bloom = false;
+                } else if (args[i].equals("--tmp") && i + 1 < args.length) {
+                    tmpDir = new File(args[++i]);
+                } else if (args[i].equals("--crawl") && i + 1 < args.length) {
+                    crawlDepth = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--follow-predicate") && i + 1 < args.length) {
+                    extractor.addPredicate(args[++i]);
+                } else if (args[i].equals("--follow-namespace") && i + 1 < args.length) {
+                    extractor.addNamespace(args[++i]);
+                } else if (args[i].startsWith("--")) {
+                    System.err.println(USAGE);
+                    return;
+                } else {
+                    positional.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            System.err.println("Invalid number: " + nfe.getMessage());
+            System.err.println(USAGE);
+            return;
+        }
+        if (window == 0) {
+            window = WINDOW_PER_THREAD * threads;
+        }
+        if (positional.size() < 1 || positional.size() > 2 || batchSize < 1 || timeout < 0 || connectTimeout < 0 || readTimeout < 0
+                || threads < 1 || window < 1 || maxConcurrent < 0 || rate < 0 || retries < 0 || cacheTtl < 0 || cacheSize < 1
+                || (cacheOnly && cacheDir == null) || distinctMemory < 1 || crawlDepth < -1) {
             System.err.println(USAGE);
             return;
         }
-        if (args.length == 1) {
+        if (positional.size() == 1) {
             inStream = System.in;
-            sparqlEp = args[0];
+            sparqlEp = positional.get(0);
         } else {
-            sparqlEp = args[1];
-            File file = new File(args[0]);
+            sparqlEp = positional.get(1);
+            File file = new File(positional.get(0));
             if (!file.exists() || !file.isFile()) {
                 System.err.println("No such file:" + file.getAbsolutePath());
                 return;
@@ -61,14 +160,24 @@ public class App {
             }
         }
 
-        Repository repo = new SPARQLRepository(sparqlEp);
-        try {
-            repo.initialize();
-            RepositoryConnection con = repo.getConnection();
-            con.close();
-        } catch (OpenRDFException e) {
-            System.err.println("Unable to connect to: " + sparqlEp + " " + e.getMessage());
-            return;
+        EndpointClient client = null;
+        if (!cacheOnly) {
+            client = new EndpointClient(sparqlEp);
+            client.setMaxConnections(threads);
+            client.setMaxConcurrent(maxConcurrent);
+            client.setRate(rate);
+            client.setRetries(retries);
+            client.setConnectTimeout(connectTimeout);
+            client.setReadTimeout(readTimeout);
+            client.fitReadTimeout(timeout);
+            try {
+                client.initialize();
+                RepositoryConnection con = client.getConnection();
+                con.close();
+            } catch (OpenRDFException e) {
+                System.err.println("Unable to connect to: " + sparqlEp + " " + e.getMessage());
+                return;
+            }
         }
 
         try {
@@ -80,17 +189,28 @@ public class App {
             return;
         }
 
+        ResourceCache cache = null;
+        if (cacheDir != null) {
+            try {
+                cache = new ResourceCache(cacheDir, cacheTtl * 3600 * 1000, cacheSize * 1024 * 1024);
+            } catch (IOException ex) {
+                System.err.println("Unable to open cache: " + ex.getMessage());
+                return;
+            }
+        }
+
+        //a crawl always needs the visited resources
+        FingerprintSet seen = distinct || crawlDepth >= 0 ? new FingerprintSet(distinctMemory * 1024 * 1024, tmpDir, bloom) : null;
         try {
-            processResourceList(inStream, System.out, sparqlEp);
+            processResourceList(inStream, System.out, client, batchSize, timeout, threads, window, ordered, cache, cacheOnly, seen,
+                    crawlDepth, extractor);
         } catch (UnsupportedEncodingException ex) {
             System.err.println(ex);
         } catch (IOException ex) {
             System.err.println(ex);
-        } catch (RepositoryException ex) {
+        } catch (OpenRDFException ex) {
             System.err.println(ex);
-        } catch (MalformedQueryException ex) {
-            System.err.println(ex);
-        } catch (QueryEvaluationException ex) {
+        } catch (InterruptedException ex) {
             System.err.println(ex);
         }
         try {
@@ -98,42 +218,119 @@ public class App {
         } catch (IOException ex) {
             System.err.println("Unable to close input stream.");
         }
+        if (client != null) {
+            if (client.getRetried() > 0) {
+                System.err.println("Retried queries " + client.getRetried());
+            }
+            try {
+                client.shutDown();
+            } catch (RepositoryException ex) {
+                System.err.println(ex);
+            }
+        }
+        if (seen != null) {
+            seen.close();
+            System.err.println("Distinct resources " + seen.getDistinct() + ", repeats " + seen.getRepeats() + ", spills " + seen.getSpills());
+        }
+        if (cache != null) {
+            try {
+                cache.close();
+            } catch (IOException ex) {
+                System.err.println("Unable to close cache: " + ex.getMessage());
+            }
+            System.err.println("Cache hits " + cache.getHits() + ", misses " + cache.getMisses() + ", stale " + cache.getStale()
+                    + ", stored " + cache.getStored() + ", evicted " + cache.getEvicted() + ", entries " + cache.getSize());
+        }
         System.out.close();
         return;
 
     }
 
-    private static void processResourceList(InputStream inStream, OutputStream outStream, String sparqlEp) throws UnsupportedEncodingException, IOException, RepositoryException, MalformedQueryException, QueryEvaluationException {
-        Repository repo = new SPARQLRepository(sparqlEp);
-        repo.initialize();
-        RepositoryConnection con = repo.getConnection();
+    /**
+     * Requests the statements of every resource in the list and writes them
+     * to the output stream. Batches of resources are requested by a pool of
+     * requestors and written as a whole.
+     * @param inStream
+     * @param outStream
+     * @param client Client of the endpoint, null if only the cache is used
+     * @param batchSize Maximum number of resources per query
+     * @param timeout Maximum seconds per query, 0 for no limit
+     * @param threads Number of requestors
+     * @param window Maximum number of batches in flight or waiting to be
+     * written
+     * @param ordered Whether the output follows the order of the input
+     * @param cache Cache of resources, null for none
+     * @param cacheOnly Whether only the cache is used
+     * @param seen Set of the resources requested so far, null to request
+     * repeated resources again
+     * @param crawlDepth Maximum depth of a crawl starting at the listed
+     * resources, -1 to request only the listed resources
+     * @param extractor Decides which objects are followed by a crawl
+     */
+    private static void processResourceList(InputStream inStream, OutputStream outStream, EndpointClient client, int batchSize, int timeout,
+            int threads, int window, boolean ordered, ResourceCache cache, boolean cacheOnly, FingerprintSet seen,
+            int crawlDepth, LinkExtractor extractor) throws UnsupportedEncodingException, IOException, OpenRDFException, InterruptedException {
+        ArrayList<ResourceRequestor> requestors = new ArrayList<ResourceRequestor>();
+        for (int i = 0; i < threads; i++) {
+            ResourceRequestor requestor = new ResourceRequestor(client, batchSize);
+            requestor.setTimeout(timeout);
+            requestors.add(requestor);
+        }
 
         BufferedReader bReader = new BufferedReader(new InputStreamReader(inStream, ENCODING));
         BufferedWriter bWriter = new BufferedWriter(new OutputStreamWriter(outStream, ENCODING));
 
-        String line = bReader.readLine();
-
-        while (line != null) {
-            String request = "SELECT ?p ?o WHERE { <" + line + "> ?p ?o }";
-            TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, request);
-            query.setIncludeInferred(false);
-            TupleQueryResult result = query.evaluate();
-            while (result.hasNext()) {
-                BindingSet bindingSet = result.next();
-                Value predicate = bindingSet.getValue("p");
-                Value object = bindingSet.getValue("o");
-                bWriter.write("<" + line + "> ");
-                bWriter.write("<" + predicate.stringValue() + "> ");
-                if (object instanceof org.openrdf.model.Literal) {
-                    bWriter.write("\"" + object.stringValue() + "\" ");
-                } else {
-                    bWriter.write("<" + object.stringValue() + ">");
+        RequestPipeline pipeline = new RequestPipeline(requestors, bWriter, window, ordered);
+        pipeline.setCache(cache, cacheOnly);
+        Crawler crawler = null;
+        if (crawlDepth >= 0) {
+            crawler = new Crawler(pipeline, seen, crawlDepth, batchSize);
+            pipeline.setLinks(extractor, crawlDepth, crawler);
+        }
+        pipeline.start();
+
+        if (crawler != null) {
+            crawler.crawl(bReader);
+        } else {
+            ArrayList<String> batch = new ArrayList<String>(batchSize);
+            String line = bReader.readLine();
+
+            while (line != null) {
+                if (seen == null || seen.add(line)) {
+                    batch.add(line);
                 }
-                bWriter.write(".");
-                bWriter.newLine();
-                bWriter.flush();
+                line = bReader.readLine();
+                if (batch.size() == batchSize || (line == null && !batch.isEmpty())) {
+                    if (!pipeline.submit(batch)) {
+                        break;
+                    }
+                    batch = new ArrayList<String>(batchSize);
+                }
+            }
+        }
+        Exception failure = pipeline.finish();
+        bWriter.flush();
+        for (ResourceRequestor requestor : requestors) {
+            if (requestor.getConnection() != null) {
+                requestor.getConnection().close();
             }
-            line = bReader.readLine();
+        }
+        if (batchSize > 1 || threads > 1) {
+            System.err.println("Queries " + pipeline.getQueries() + ", batch size decreases " + pipeline.getDecreases());
+        }
+        if (crawler != null) {
+            for (int depth = 0; depth <= crawler.getMaxDepth(); depth++) {
+                System.err.println("Depth " + depth + ": " + crawler.getRequested(depth) + " resources");
+            }
+        }
+        if (failure instanceof OpenRDFException) {
+            throw (OpenRDFException) failure;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof InterruptedException) {
+            throw (InterruptedException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
         }
 
     }
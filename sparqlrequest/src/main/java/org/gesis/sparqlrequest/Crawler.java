@@ -0,0 +1,137 @@
+package org.gesis.sparqlrequest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import org.gesis.rdfcommons.FingerprintSet;
+
+/**
+ * Crawls the linked data around a list of seed resources. The seeds have depth
+ * 0, the links of a resource of depth d have depth d + 1. Every resource up to
+ * the maximum depth is requested once, the visited resources are kept in a
+ * FingerprintSet. The frontier is shared by all workers of a RequestPipeline:
+ * batches are taken from the lowest depth with resources left, so the crawl
+ * runs breadth first, but batches of the next depth are requested while the
+ * last ones of a depth are still in flight.
+ *
+ */
+public class Crawler implements RequestPipeline.LinkListener {
+
+    private final RequestPipeline pipeline;
+    private final FingerprintSet visited;
+    private final int batchSize;
+    private final ArrayList<ArrayDeque<String>> frontier = new ArrayList<ArrayDeque<String>>(); //resources to request per depth
+    private int inFlight = 0; //batches submitted but not written
+    private final long[] requested;
+    private IOException failure = null;
+
+    /**
+     * @param pipeline Pipeline to request the resources with, its links have
+     * to be passed to this crawler
+     * @param visited Set of the resources requested so far
+     * @param maxDepth Maximum depth of the requested resources
+     * @param batchSize Maximum number of resources per batch
+     */
+    public Crawler(RequestPipeline pipeline, FingerprintSet visited, int maxDepth, int batchSize) {
+        this.pipeline = pipeline;
+        this.visited = visited;
+        this.batchSize = batchSize;
+        for (int i = 0; i <= maxDepth; i++) {
+            frontier.add(new ArrayDeque<String>());
+        }
+        requested = new long[maxDepth + 1];
+    }
+
+    /**
+     * Requests the seeds and everything linked from them up to the maximum
+     * depth. Returns once the frontier is exhausted or the pipeline stopped.
+     *
+     * @param seeds One resource IRI per line
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void crawl(BufferedReader seeds) throws IOException, InterruptedException {
+        String line = seeds.readLine();
+        while (line != null) {
+            enqueue(line, 0);
+            line = seeds.readLine();
+        }
+        while (true) {
+            List<String> batch = new ArrayList<String>(batchSize);
+            int depth;
+            synchronized (this) {
+                depth = lowestDepth();
+                while (depth < 0 && inFlight > 0 && failure == null && !pipeline.isStopped()) {
+                    wait(100); //the pipeline does not notify when it stops
+                    depth = lowestDepth();
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (depth < 0 || pipeline.isStopped()) {
+                    return;
+                }
+                ArrayDeque<String> resources = frontier.get(depth);
+                while (batch.size() < batchSize && !resources.isEmpty()) {
+                    batch.add(resources.poll());
+                }
+                requested[depth] += batch.size();
+                inFlight++;
+            }
+            if (!pipeline.submit(batch, depth)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void linked(List<String> links, int depth) {
+        if (depth + 1 < frontier.size() && failure == null) {
+            try {
+                for (String link : links) {
+                    enqueue(link, depth + 1);
+                }
+            } catch (IOException ex) { //the visited set could not spill
+                failure = ex;
+            }
+        }
+        inFlight--;
+        notifyAll();
+    }
+
+    private synchronized void enqueue(String resource, int depth) throws IOException {
+        if (visited.add(resource)) {
+            frontier.get(depth).add(resource);
+        }
+    }
+
+    /**
+     * @return The lowest depth with resources left, -1 if there is none
+     */
+    private int lowestDepth() {
+        for (int i = 0; i < frontier.size(); i++) {
+            if (!frontier.get(i).isEmpty()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param depth
+     * @return Number of resources of a depth submitted so far
+     */
+    public synchronized long getRequested(int depth) {
+        return requested[depth];
+    }
+
+    /**
+     * @return Maximum depth of the requested resources
+     */
+    public int getMaxDepth() {
+        return frontier.size() - 1;
+    }
+
+}
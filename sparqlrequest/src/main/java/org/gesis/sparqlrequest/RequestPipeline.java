@@ -0,0 +1,391 @@
+package org.gesis.sparqlrequest;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import org.gesis.rdfcommons.LinkExtractor;
+import org.openrdf.OpenRDFException;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+import org.openrdf.rio.ntriples.NTriplesUtil;
+
+/**
+ * Requests batches of resources concurrently. Every worker thread owns a
+ * ResourceRequestor and serializes the statements of a batch as NTriples
+ * before passing it on. If a ResourceCache is set, cached resources are taken
+ * from the cache and fetched ones are stored in it. A single output thread
+ * writes the batches either in the order they were submitted or as they
+ * arrive. The number of batches submitted but not yet
+ * written is bounded by a window, which bounds the reorder buffer as well.
+ * If a LinkExtractor is set, the links of the statements are collected per
+ * batch and handed to a LinkListener once the batch is written. The first
+ * failed batch stops the pipeline.
+ *
+ */
+public class RequestPipeline {
+
+    /**
+     * Receives the links found in the written batches.
+     */
+    public interface LinkListener {
+
+        /**
+         * Called by the output thread for every batch, also for failed or
+         * skipped ones.
+         *
+         * @param links Links of the statements of the batch, empty if the
+         * batch was not searched for links
+         * @param depth Depth of the batch the links were found in
+         */
+        void linked(List<String> links, int depth);
+
+    }
+
+    /**
+     * A batch of resources and, once requested, their statements.
+     */
+    private static class Batch {
+
+        private final long seq;
+        private final List<String> resources;
+        private final int depth;
+        private final StringBuilder ntriples = new StringBuilder();
+        private final ArrayList<String> links = new ArrayList<String>();
+        private Exception failure = null;
+
+        private Batch(long seq, List<String> resources, int depth) {
+            this.seq = seq;
+            this.resources = resources;
+            this.depth = depth;
+        }
+
+    }
+
+    private static final Batch END = new Batch(-1, null, 0);
+
+    private final BlockingQueue<Batch> tasks = new LinkedBlockingQueue<Batch>();
+    private final BlockingQueue<Batch> results = new LinkedBlockingQueue<Batch>();
+    private final Semaphore window;
+    private final int windowSize;
+    private final List<ResourceRequestor> requestors;
+    private final Writer out;
+    private final boolean ordered;
+    private ResourceCache cache = null;
+    private boolean cacheOnly = false;
+    private LinkExtractor extractor = null;
+    private int linkDepth = 0;
+    private LinkListener listener = null;
+    private final Thread[] workers;
+    private Thread writer = null;
+    private long nextSeq = 0;
+    private volatile Exception failure = null;
+
+    /**
+     * @param requestors One requestor per worker thread
+     * @param out Receives the NTriples, flushed after every written batch
+     * @param windowSize Maximum number of batches submitted but not written
+     * @param ordered Whether batches are written in the order of submission
+     */
+    public RequestPipeline(List<ResourceRequestor> requestors, Writer out, int windowSize, boolean ordered) {
+        this.requestors = requestors;
+        this.out = out;
+        this.windowSize = windowSize;
+        this.window = new Semaphore(windowSize);
+        this.ordered = ordered;
+        workers = new Thread[requestors.size()];
+    }
+
+    public ResourceCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @param cache Cache to look up resources in before requesting them
+     * @param cacheOnly Whether cached resources are used regardless of their
+     * age and resources not in the cache are skipped instead of requested
+     */
+    public void setCache(ResourceCache cache, boolean cacheOnly) {
+        this.cache = cache;
+        this.cacheOnly = cacheOnly;
+    }
+
+    /**
+     * Collects the links of the requested statements.
+     *
+     * @param extractor Decides which objects are links
+     * @param linkDepth Links are collected from batches with a lower depth
+     * @param listener Receives the links of every written batch
+     */
+    public void setLinks(LinkExtractor extractor, int linkDepth, LinkListener listener) {
+        this.extractor = extractor;
+        this.linkDepth = linkDepth;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the worker and output threads.
+     */
+    public void start() {
+        for (int i = 0; i < workers.length; i++) {
+            final ResourceRequestor requestor = requestors.get(i);
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(requestor);
+                }
+            }, "Requestor " + i);
+            workers[i].start();
+        }
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "Writer");
+        writer.start();
+    }
+
+    /**
+     * Submits a batch, blocks while the window is full.
+     *
+     * @param resources Resource IRIs, not modified afterwards
+     * @return false if the pipeline stopped because of a failure
+     * @throws InterruptedException
+     */
+    public boolean submit(List<String> resources) throws InterruptedException {
+        return submit(resources, 0);
+    }
+
+    /**
+     * Submits a batch, blocks while the window is full.
+     *
+     * @param resources Resource IRIs, not modified afterwards
+     * @param depth Depth of the resources, passed on to the LinkListener
+     * @return false if the pipeline stopped because of a failure
+     * @throws InterruptedException
+     */
+    public boolean submit(List<String> resources, int depth) throws InterruptedException {
+        window.acquire();
+        if (failure != null) {
+            return false;
+        }
+        tasks.put(new Batch(nextSeq++, resources, depth));
+        return true;
+    }
+
+    /**
+     * Waits until every submitted batch is written and stops the threads.
+     *
+     * @return The exception that stopped the pipeline, null if all batches
+     * were written
+     * @throws InterruptedException
+     */
+    public Exception finish() throws InterruptedException {
+        for (int i = 0; i < workers.length; i++) {
+            tasks.put(END);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        results.put(END);
+        writer.join();
+        return failure;
+    }
+
+    private void work(ResourceRequestor requestor) {
+        try {
+            Batch batch = tasks.take();
+            while (batch != END) {
+                if (failure == null) {
+                    try {
+                        request(requestor, batch);
+                    } catch (OpenRDFException ex) {
+                        batch.failure = ex;
+                    } catch (IOException ex) {
+                        batch.failure = ex;
+                    } catch (RuntimeException ex) { //passed on, so the batch still frees its slot
+                        batch.failure = ex;
+                    }
+                }
+                results.put(batch);
+                batch = tasks.take();
+            }
+        } catch (InterruptedException ex) {
+            failure = ex;
+        }
+    }
+
+    /**
+     * Fills a batch with the NTriples of its resources, in the order of the
+     * resources, and collects their links.
+     */
+    private void request(ResourceRequestor requestor, final Batch batch) throws OpenRDFException, IOException, InterruptedException {
+        final boolean collect = extractor != null && batch.depth < linkDepth;
+        //NTriples per subject, cached ones first filled in
+        final LinkedHashMap<String, StringBuilder> descriptions = new LinkedHashMap<String, StringBuilder>();
+        ArrayList<String> missing = new ArrayList<String>();
+        for (String resource : batch.resources) {
+            String cached = cache == null ? null : cache.get(resource, cacheOnly);
+            if (cached != null) {
+                descriptions.put(resource, new StringBuilder(cached));
+                if (collect) {
+                    collect(cached, batch.links);
+                }
+            } else if (!cacheOnly) {
+                descriptions.put(resource, new StringBuilder());
+                missing.add(resource);
+            }
+        }
+        if (!missing.isEmpty()) {
+            requestor.request(missing, new RDFHandlerBase() {
+                @Override
+                public void handleStatement(Statement st) {
+                    String subject = st.getSubject().stringValue();
+                    StringBuilder sb = descriptions.get(subject);
+                    if (sb == null) { //a subject the endpoint spelled differently
+                        sb = new StringBuilder();
+                        descriptions.put(subject, sb);
+                    }
+                    try {
+                        NTriplesUtil.append(st.getSubject(), sb);
+                        sb.append(' ');
+                        NTriplesUtil.append(st.getPredicate(), sb);
+                        sb.append(' ');
+                        NTriplesUtil.append(st.getObject(), sb);
+                        sb.append(" .\n");
+                    } catch (IOException ex) { //a StringBuilder does not throw
+                        throw new IllegalStateException(ex);
+                    }
+                    if (collect) {
+                        String link = extractor.extract(st);
+                        if (link != null) {
+                            batch.links.add(link);
+                        }
+                    }
+                }
+            });
+            if (cache != null) {
+                for (String resource : missing) {
+                    cache.put(resource, descriptions.get(resource).toString());
+                }
+            }
+        }
+        for (StringBuilder sb : descriptions.values()) {
+            batch.ntriples.append(sb);
+        }
+    }
+
+    /**
+     * Collects the links of a cached description.
+     *
+     * @param ntriples The description
+     * @param links Receives the links
+     */
+    private void collect(String ntriples, final List<String> links) throws OpenRDFException, IOException {
+        RDFParser parser = Rio.createParser(RDFFormat.NTRIPLES);
+        parser.setRDFHandler(new RDFHandlerBase() {
+            @Override
+            public void handleStatement(Statement st) {
+                String link = extractor.extract(st);
+                if (link != null) {
+                    links.add(link);
+                }
+            }
+        });
+        parser.parse(new StringReader(ntriples), "");
+    }
+
+    private void write() {
+        HashMap<Long, Batch> pending = new HashMap<Long, Batch>(); //reorder buffer
+        long expected = 0;
+        try {
+            Batch batch = results.take();
+            while (batch != END) {
+                if (!ordered) {
+                    write(batch);
+                } else {
+                    pending.put(batch.seq, batch);
+                    Batch next = pending.remove(expected);
+                    while (next != null) {
+                        write(next);
+                        expected++;
+                        next = pending.remove(expected);
+                    }
+                }
+                batch = results.take();
+            }
+        } catch (InterruptedException ex) {
+            stop(ex);
+        }
+    }
+
+    private void write(Batch batch) {
+        if (batch.failure != null) {
+            stop(batch.failure);
+        }
+        if (failure == null) {
+            try {
+                out.append(batch.ntriples);
+                out.flush();
+            } catch (IOException ex) {
+                stop(ex);
+            }
+        }
+        batch.ntriples.setLength(0);
+        if (listener != null) {
+            listener.linked(failure == null ? batch.links : new ArrayList<String>(), batch.depth);
+        }
+        window.release();
+    }
+
+    /**
+     * Stops the pipeline. The submitter is woken up and everything not
+     * written yet is dropped.
+     */
+    private void stop(Exception ex) {
+        if (failure == null) {
+            failure = ex;
+            window.release(windowSize);
+        }
+    }
+
+    /**
+     * @return Whether the pipeline stopped because of a failure
+     */
+    public boolean isStopped() {
+        return failure != null;
+    }
+
+    /**
+     * @return Number of queries sent by all requestors
+     */
+    public long getQueries() {
+        long queries = 0;
+        for (ResourceRequestor requestor : requestors) {
+            queries += requestor.getQueries();
+        }
+        return queries;
+    }
+
+    /**
+     * @return Number of batch size decreases of all requestors
+     */
+    public long getDecreases() {
+        long decreases = 0;
+        for (ResourceRequestor requestor : requestors) {
+            decreases += requestor.getDecreases();
+        }
+        return decreases;
+    }
+
+}
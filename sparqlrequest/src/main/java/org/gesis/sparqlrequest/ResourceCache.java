@@ -0,0 +1,310 @@
+package org.gesis.sparqlrequest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * On-disk cache of resource descriptions, keyed by subject IRI. The value is
+ * the NTriples serialization of the statements of a resource together with the
+ * time it was fetched. Resources without statements are cached as well.
+ *
+ * Entries are appended to a log file, an index in memory points to the latest
+ * entry of every subject. The log is compacted as soon as it exceeds its size
+ * limit, and on close if it holds too many replaced entries: expired entries
+ * are dropped and the newest entries are kept up to the size limit. The
+ * compacted log replaces the old one by an atomic rename.
+ *
+ */
+public class ResourceCache {
+
+    private static final String LOG = "resources.log";
+    private static final String ENCODING = "UTF-8";
+    private static final int HEADER_SIZE = 16; //key length, fetch time, value length
+    private static final double COMPACT_TARGET = 0.8;
+
+    /**
+     * Position of the value of a cached resource.
+     */
+    private static class Entry {
+
+        private final long offset;
+        private final int length;
+        private final long fetched;
+
+        private Entry(long offset, int length, long fetched) {
+            this.offset = offset;
+            this.length = length;
+            this.fetched = fetched;
+        }
+
+    }
+
+    private final File dir;
+    private final File file;
+    private final long ttl;
+    private final long maxBytes;
+    private final HashMap<String, Entry> index = new HashMap<String, Entry>();
+    private RandomAccessFile raf = null;
+    private FileChannel channel = null;
+    private long size = 0;
+    private long liveBytes = 0;
+
+    //statistics
+    private long hits = 0;
+    private long misses = 0;
+    private long stale = 0;
+    private long stored = 0;
+    private long evicted = 0;
+
+    /**
+     * Opens the cache in the given directory, creating it if necessary.
+     *
+     * @param dir The cache directory
+     * @param ttl Milliseconds an entry stays fresh
+     * @param maxBytes Maximum size of the cache file
+     * @throws IOException
+     */
+    public ResourceCache(File dir, long ttl, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.file = new File(dir, LOG);
+        this.ttl = ttl;
+        this.maxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir.getAbsolutePath());
+        }
+        load();
+        if (size > maxBytes) {
+            compact();
+        }
+        open();
+    }
+
+    /**
+     * Reads the index from the log. A record cut off by a crash is dropped.
+     */
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        long length = file.length();
+        long position = 0;
+        try {
+            while (position + HEADER_SIZE <= length) {
+                int keyLength = in.readInt();
+                long fetched = in.readLong();
+                int valueLength = in.readInt();
+                long end = position + HEADER_SIZE + keyLength + valueLength;
+                if (keyLength < 0 || valueLength < 0 || end > length) {
+                    break;
+                }
+                byte[] key = new byte[keyLength];
+                in.readFully(key);
+                long skip = valueLength;
+                while (skip > 0) {
+                    skip -= in.skip(skip);
+                }
+                Entry old = index.put(new String(key, ENCODING), new Entry(position + HEADER_SIZE + keyLength, valueLength, fetched));
+                if (old != null) {
+                    liveBytes -= HEADER_SIZE + keyLength + old.length;
+                }
+                liveBytes += HEADER_SIZE + keyLength + valueLength;
+                position = end;
+            }
+        } catch (EOFException ex) {
+            //the last record is incomplete
+        } finally {
+            in.close();
+        }
+        size = position;
+        if (position < length) {
+            RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+            truncate.setLength(position);
+            truncate.close();
+        }
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        channel.position(size);
+    }
+
+    /**
+     * Looks up a resource.
+     *
+     * @param subject The subject IRI
+     * @param acceptStale Whether an expired entry is returned as well
+     * @return The NTriples of the resource, null if it is not cached or
+     * expired
+     * @throws IOException
+     */
+    public synchronized String get(String subject, boolean acceptStale) throws IOException {
+        Entry entry = index.get(subject);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (!acceptStale && isExpired(entry, System.currentTimeMillis())) {
+            stale++;
+            return null;
+        }
+        hits++;
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, entry.offset + buffer.position()) < 0) {
+                throw new EOFException("Cache entry of " + subject + " is cut off.");
+            }
+        }
+        return new String(buffer.array(), ENCODING);
+    }
+
+    /**
+     * Stores the description of a resource, replacing a former one.
+     *
+     * @param subject The subject IRI
+     * @param ntriples The NTriples of the resource, empty if it has no
+     * statements
+     * @throws IOException
+     */
+    public synchronized void put(String subject, String ntriples) throws IOException {
+        byte[] key = subject.getBytes(ENCODING);
+        byte[] value = ntriples.getBytes(ENCODING);
+        long fetched = System.currentTimeMillis();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + key.length + value.length);
+        buffer.putInt(key.length).putLong(fetched).putInt(value.length).put(key).put(value);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        Entry old = index.put(subject, new Entry(size + HEADER_SIZE + key.length, value.length, fetched));
+        if (old != null) {
+            liveBytes -= HEADER_SIZE + key.length + old.length;
+        }
+        liveBytes += HEADER_SIZE + key.length + value.length;
+        size += HEADER_SIZE + key.length + value.length;
+        stored++;
+        if (size > maxBytes) {
+            channel.force(false);
+            raf.close();
+            compact();
+            open();
+        }
+    }
+
+    /**
+     * Forces the cache to disk and compacts it if necessary.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        raf.close();
+        if (size > maxBytes || liveBytes < size / 2) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the log with the entries that are not expired, newest first up
+     * to the compaction target, and replaces the old log.
+     */
+    private void compact() throws IOException {
+        final long now = System.currentTimeMillis();
+        ArrayList<Map.Entry<String, Entry>> entries = new ArrayList<Map.Entry<String, Entry>>(index.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+                return Long.compare(b.getValue().fetched, a.getValue().fetched);
+            }
+        });
+        File tmp = new File(dir, LOG + ".tmp");
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+        HashMap<String, Entry> compacted = new HashMap<String, Entry>();
+        long target = (long) (maxBytes * COMPACT_TARGET);
+        long position = 0;
+        try {
+            for (Map.Entry<String, Entry> e : entries) {
+                Entry entry = e.getValue();
+                byte[] key = e.getKey().getBytes(ENCODING);
+                long recordSize = HEADER_SIZE + key.length + entry.length;
+                if (isExpired(entry, now) || position + recordSize > target) {
+                    evicted++;
+                    continue;
+                }
+                byte[] value = new byte[entry.length];
+                in.seek(entry.offset);
+                in.readFully(value);
+                out.writeInt(key.length);
+                out.writeLong(entry.fetched);
+                out.writeInt(value.length);
+                out.write(key);
+                out.write(value);
+                compacted.put(e.getKey(), new Entry(position + HEADER_SIZE + key.length, entry.length, entry.fetched));
+                position += recordSize;
+            }
+            out.flush();
+            fos.getChannel().force(false);
+        } finally {
+            out.close();
+            in.close();
+        }
+        //a crash leaves either the old or the new log
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index.clear();
+        index.putAll(compacted);
+        size = position;
+        liveBytes = position;
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.fetched > ttl;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Lookups that found an expired entry
+     */
+    public synchronized long getStale() {
+        return stale;
+    }
+
+    public synchronized long getStored() {
+        return stored;
+    }
+
+    public synchronized long getEvicted() {
+        return evicted;
+    }
+
+    public synchronized int getSize() {
+        return index.size();
+    }
+
+}
@@ -0,0 +1,191 @@
+package org.gesis.sparqlrequest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.gesis.rdfcommons.EndpointClient;
+import org.openrdf.OpenRDFException;
+import org.openrdf.model.Statement;
+import org.openrdf.query.GraphQuery;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+
+/**
+ * Requests the statements of resources from a SPARQL endpoint, many resources
+ * per query. A batch of resources is bound by VALUES to the subject of a
+ * CONSTRUCT query. The statements are collected per subject and passed on in
+ * the order of the resources once the query is complete. If a query fails,
+ * e.g. because it is too large or timed out, the batch size is halved and the
+ * resources are requested again in smaller batches. Queries are run by an
+ * EndpointClient shared with other requestors, which limits the queries
+ * running against the endpoint and retries them after transient failures.
+ *
+ */
+public class ResourceRequestor {
+
+    private EndpointClient client = null;
+    private RepositoryConnection con = null;
+    private int batchSize = 1;
+    private int timeout = 0;
+
+    //statistics
+    private long queries = 0;
+    private long decreases = 0;
+
+    /**
+     * @param client Client of the endpoint, a connection of its own is opened.
+     * null for a requestor that is never asked to request anything.
+     * @param batchSize Maximum number of resources per query
+     * @throws RepositoryException
+     */
+    public ResourceRequestor(EndpointClient client, int batchSize) throws RepositoryException {
+        this.client = client;
+        this.batchSize = batchSize;
+        if (client != null) {
+            con = client.getConnection();
+        }
+    }
+
+    public RepositoryConnection getConnection() {
+        return con;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout Maximum time in seconds a single query may take, 0 for no
+     * limit
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return The current batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getQueries() {
+        return queries;
+    }
+
+    /**
+     * @return How often the batch size was halved
+     */
+    public long getDecreases() {
+        return decreases;
+    }
+
+    /**
+     * Requests the statements of the given resources.
+     *
+     * @param resources Resource IRIs
+     * @param handler Handler receiving the statements, its startRDF and endRDF
+     * are not called
+     * @throws RepositoryException
+     * @throws MalformedQueryException
+     * @throws QueryEvaluationException If a query for a single resource fails
+     * @throws RDFHandlerException
+     * @throws OpenRDFException
+     * @throws InterruptedException While waiting for the limits of the client
+     */
+    public void request(List<String> resources, RDFHandler handler) throws RepositoryException, MalformedQueryException, QueryEvaluationException, RDFHandlerException, OpenRDFException, InterruptedException {
+        int from = 0;
+        while (from < resources.size()) {
+            int to = Math.min(resources.size(), from + batchSize);
+            try {
+                requestBatch(resources.subList(from, to), handler);
+                from = to;
+            } catch (QueryEvaluationException ex) {
+                if (to - from == 1) {
+                    throw ex;
+                }
+                batchSize = Math.max(1, (to - from) / 2);
+                decreases++;
+            }
+        }
+    }
+
+    private void requestBatch(List<String> batch, RDFHandler handler) throws OpenRDFException, InterruptedException {
+        queries++;
+        String request;
+        if (batch.size() == 1) {
+            request = "CONSTRUCT { <" + batch.get(0) + "> ?p ?o } WHERE { <" + batch.get(0) + "> ?p ?o }";
+        } else {
+            StringBuilder sb = new StringBuilder("CONSTRUCT { ?s ?p ?o } WHERE { VALUES ?s {");
+            for (String resource : batch) {
+                sb.append(" <").append(resource).append('>');
+            }
+            sb.append(" } ?s ?p ?o }");
+            request = sb.toString();
+        }
+
+        //nothing is passed on before the query is complete, so a failed batch can be retried or split and requested again
+        final LinkedHashMap<String, List<Statement>> statements = new LinkedHashMap<String, List<Statement>>();
+        final ArrayList<Statement> unmatched = new ArrayList<Statement>(); //subjects the endpoint spelled differently
+        for (String resource : batch) {
+            statements.put(resource, new ArrayList<Statement>());
+        }
+        evaluate(request, new RDFHandlerBase() {
+            @Override
+            public void handleStatement(Statement st) {
+                List<Statement> list = statements.get(st.getSubject().stringValue());
+                if (list != null) {
+                    list.add(st);
+                } else {
+                    unmatched.add(st);
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                for (List<Statement> list : statements.values()) {
+                    list.clear();
+                }
+                unmatched.clear();
+            }
+        });
+        for (List<Statement> list : statements.values()) {
+            for (Statement st : list) {
+                handler.handleStatement(st);
+            }
+        }
+        for (Statement st : unmatched) {
+            handler.handleStatement(st);
+        }
+    }
+
+    /**
+     * Runs a query through the client.
+     *
+     * @param request The query
+     * @param handler Collects the statements
+     * @param reset Drops the collected statements before a retry
+     */
+    private void evaluate(String request, final RDFHandler handler, final Runnable reset) throws OpenRDFException, InterruptedException {
+        final GraphQuery query = con.prepareGraphQuery(QueryLanguage.SPARQL, request);
+        query.setIncludeInferred(false);
+        if (timeout > 0) {
+            query.setMaxExecutionTime(timeout);
+        }
+        client.execute(new EndpointClient.Request<Void>() {
+            @Override
+            public Void run() throws OpenRDFException {
+                reset.run();
+                query.evaluate(handler);
+                return null;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,93 @@
+package org.gesis.splitfile;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the byte engine of the Sanitizer with the String implementation
+ * on the lines of synthetic.nt. The String implementation is measured with
+ * decoding and encoding the line, as splitting reads and writes it. With
+ * "escaped" every line gets a run of different escaped surrogates, like
+ * literals with many emojis.
+ *
+ * synthetic.nt is not an excerpt of a real dump. It is generated to look
+ * like bibliographic records (resource numbers in steps of 7919), and
+ * lines with malformed escapes such as \\uZZ12 and with emoji literals are
+ * planted on purpose. Numbers measured on it are only indicative, measure
+ * on an excerpt of the dump at hand before relying on them.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SanitizerBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Param({"synthetic", "escaped"})
+    public String lines;
+
+    private byte[][] bytes;
+    private Sanitizer sanitizer;
+
+    @Setup
+    public void setup() throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(SanitizerBenchmark.class.getResourceAsStream("/synthetic.nt"), UTF8));
+        ArrayList<String> sample = new ArrayList<String>();
+        String line = br.readLine();
+        while (line != null) {
+            if (lines.equals("escaped")) {
+                StringBuilder sb = new StringBuilder(line);
+                for (int i = 0; i < 50; i++) {
+                    sb.append(String.format(" \\uD83D\\u%04X", 0xDE00 + i));
+                }
+                line = sb.toString();
+            }
+            sample.add(line);
+            line = br.readLine();
+        }
+        br.close();
+        bytes = new byte[sample.size()][];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = sample.get(i).getBytes(UTF8);
+        }
+        sanitizer = new Sanitizer();
+    }
+
+    @Benchmark
+    public void strings(Blackhole bh) {
+        for (byte[] line : bytes) {
+            String sanitized = Sanitizer.sanitize(new String(line, UTF8));
+            if (sanitized != null) {
+                bh.consume(sanitized.getBytes(UTF8));
+            }
+        }
+    }
+
+    @Benchmark
+    public void bytes(Blackhole bh) {
+        for (byte[] line : bytes) {
+            bh.consume(sanitizer.sanitize(line, 0, line.length));
+        }
+    }
+
+}
@@ -1,209 +1,305 @@
-package org.gesis.splitfile;
-
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.nio.charset.Charset;
-
-/**
- * This program separates line based files into several smaller files Date
- */
-public class App {
-
-    public static final String USAGE = "Error. Usage: splitter <infile> <outdir> <lines per file> <file extension>";
-    public static final String ENCODING = "UTF-8";
-
-    /**
-     * This is the entry point. Also, this is the only class and method in this
-     * program.
-     *
-     * @param args
-     */
-    public static void main(String[] args) {
-
-        System.out.println("Platform file encoding: " + System.getProperty("file.encoding"));
-        System.out.println("Default charset: " + Charset.defaultCharset().name());
-
-        //check inputs
-        if (args.length != 4) {
-            System.err.println(USAGE);
-            System.exit(-1);
-        }
-        File inFile = new File(args[0]);
-        if (!inFile.exists() || !inFile.isFile()) {
-            System.err.println("File does not exist or file is not a file.");
-            System.err.println(USAGE);
-            System.exit(-1);
-        }
-        File outDir = new File(args[1]);
-        if (!outDir.exists() || !outDir.isDirectory()) {
-            System.err.println("Output directory does not exist or is not a directory.");
-            System.err.println(USAGE);
-            System.exit(-1);
-        }
-
-        long linesPerFile = Long.MAX_VALUE;
-        try {
-            linesPerFile = Long.valueOf(args[2]);
-        } catch (NumberFormatException nfe) {
-            System.err.println("Arguement three is not a valid number.");
-            System.err.println(USAGE);
-            System.exit(-1);
-        }
-
-        String fileExtension = args[3];
-        if (!fileExtension.startsWith(".")) {
-            fileExtension = "." + fileExtension;
-        }
-
-        try {
-
-            //configure reading and writing
-            FileInputStream fis = new FileInputStream(inFile);
-            InputStreamReader isr = new InputStreamReader(fis, ENCODING);
-            BufferedReader br = new BufferedReader(isr);
-
-            long fileCnt = 0;  //counts created files
-            File curOutFile = new File(outDir, String.format("%03d", fileCnt) + fileExtension);
-
-            FileOutputStream fos = new FileOutputStream(curOutFile);
-            OutputStreamWriter osw = new OutputStreamWriter(fos, ENCODING);
-            BufferedWriter bw = new BufferedWriter(osw);
-
-            long cnt = 1;  //counts accepted lines in current output file
-            long acceptedLines = 0;  //counts lines that are copied
-            long droppedLines = 0;  //counts lines that are not copied
-            long totalLines = 0;   //counts accepted and dropped lines
-
-            //begin
-            String line = br.readLine();
-
-            while (line != null) { //as long as there are lines do...
-                totalLines++;
-                //check current line
-                line = replaceUnwantedSequence(line);
-                if (line==null) {
-                    droppedLines++;
-                } else {
-                    //append line
-                    cnt++;
-                    acceptedLines++;
-
-                    if (cnt <= linesPerFile) { //write line into current file
-                        bw.write(line);
-                        bw.newLine();
-                    }
-                    if (cnt == linesPerFile) { //if file full open new file
-                        bw.close();
-                        curOutFile = new File(outDir, String.format("%03d", fileCnt) + fileExtension);
-                        fos = new FileOutputStream(curOutFile);
-                        osw = new OutputStreamWriter(fos, ENCODING);
-                        bw = new BufferedWriter(osw);
-                        fileCnt++;
-                        System.out.println("[+] Created new file " + curOutFile.getAbsolutePath());
-                        cnt = 0;
-                    }
-                }
-                line = br.readLine();
-            }
-            bw.close(); //close all files
-            br.close();
-
-            //print statistic
-            System.out.println("Done.");
-            System.out.println("Total lines " + totalLines);
-            System.out.println("Accepted lines " + acceptedLines);
-            System.out.println("Dropped lines " + droppedLines);
-            System.out.println("Total files " + fileCnt);
-            return; //successful finished
-        } catch (IOException ioe) {
-            System.err.println(ioe.getMessage());
-            System.exit(-1);
-        }
-
-    }
-
-    /**
-     * Searches in a String for surrogates
-     *
-     * @param s The String to examine.
-     * @return true if a surrogate character is present, false otherwise.
-     */
-    private static boolean containsUnwantedCharacter(String s) {
-        for (int i = 0; i < s.length();) {
-            int cp = s.codePointAt(i);
-            if (cp >= 0xD800) {
-                return true;
-            }
-            i += Character.charCount(cp);
-        }
-        return false;
-
-    }
-
-    /**
-     * Searches in a String for surrogate sequences
-     * \uD800 - \uFFFF in plain text these are not valid in UTF-8 (only in UTF-16)
-     * Source: https://de.wikipedia.org/wiki/UTF-8
-     * 
-     * @param s The String to examine.
-     * @return true if a surrogate character is present, false otherwise.
-     */
-    private static boolean containsUnwantedSequence(String s) {
-
-        int idx = 0;
-        idx = s.indexOf("\\u", idx);
-        while (idx != -1) {
-            String subsequ = s.substring(idx + 2, idx + 6);
-            int hex = 0;
-            try{
-                hex = Integer.valueOf(subsequ, 16);
-            }catch(NumberFormatException nfe){
-                return true;
-            }
-            if (hex >= 0xD800 && hex <=0xFFFF) {
-                return true;
-            }
-            idx = s.indexOf("\\u", idx + 7);
-        }
-        return false;
-
-    }
-    
-    
-    /**
-     * Searches in a String for surrogate sequences and replaces the surrogates with '?'
-     * \uD800 - \uFFFF in plain text these are not valid in UTF-8 (only in UTF-16)
-     * Source: https://de.wikipedia.org/wiki/UTF-8
-     * 
-     * @param s The String to examine.
-     * @return true if a surrogate character is present, false otherwise.
-     */
-    private static String replaceUnwantedSequence(String s) {
-
-        String str = s;
-        int idx = 0;
-        idx = str.indexOf("\\u", idx);
-        while (idx != -1) {
-            String subsequ = str.substring(idx + 2, idx + 6);
-            int hex = 0;
-            try{
-                hex = Integer.valueOf(subsequ, 16);
-            }catch(NumberFormatException nfe){
-                return null;
-            }
-            if (hex >= 0xD800 && hex <=0xFFFF) {
-                str=str.replace("\\u"+subsequ, "?");
-            }
-            idx = str.indexOf("\\u", idx+1);
-        }
-        return str;
-
-    }
-
-}
+package org.gesis.splitfile;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This program separates line based files into several smaller files Date.
+ * With --by the files are cut by the number of lines (default), by their size
+ * in bytes, or the lines are distributed over a number of files by their
+ * subject, so all statements of a subject are in one file. These files are
+ * open at once, hence there are at most 1024 of them, within the limit of
+ * open files of the process. With --threads the file is memory mapped and its
+ * lines are sanitized by several threads, see ParallelSplitter. Input
+ * compressed with gzip or bzip2 is detected and decompressed while reading.
+ * With --compress every file is written compressed, the compression runs on
+ * --compress-threads threads. With --sort the lines are sorted byte-wise and
+ * duplicates are dropped before they are distributed, in at most --memory
+ * bytes, spilling to --tmp (default the output directory), see
+ * ExternalSorter. By default the sort takes half the heap, less the chunks
+ * the threads of --threads hold.
+ */
+public class App {
+
+    public static final String USAGE = "Error. Usage: splitter <infile> <outdir> <lines per file | bytes per file | files> <file extension>"
+            + " [--by lines|bytes|subject] [--threads <n>] [--compress gzip|bzip2] [--compress-threads <n>]"
+            + " [--sort [--memory <size>] [--tmp <dir>]]";
+    public static final String ENCODING = "UTF-8";
+    private static final long MAX_SHARDS = 1 << 10; //files open at once, within the usual ulimit -n
+    private static final long RESERVED_FILES = 128; //descriptors of the JVM, the input and the merged sort runs
+    private static final long MIN_SORT_MEMORY = 1 << 26; //64 MB
+
+    /**
+     * Parses a number with an optional suffix K, M or G for a multiple of
+     * 1024, 1024^2 or 1024^3.
+     *
+     * @param s
+     * @return The number
+     */
+    private static long parseSize(String s) {
+        long unit = 1;
+        String upper = s.toUpperCase();
+        if (upper.endsWith("K")) {
+            unit = 1L << 10;
+        } else if (upper.endsWith("M")) {
+            unit = 1L << 20;
+        } else if (upper.endsWith("G")) {
+            unit = 1L << 30;
+        }
+        if (unit > 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return Long.valueOf(s) * unit;
+    }
+
+    /**
+     * @return Maximum number of files the process may open, -1 if unknown
+     */
+    private static long maxOpenFiles() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof UnixOperatingSystemMXBean) {
+            return ((UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+        }
+        return -1;
+    }
+
+    /**
+     * This is the entry point. Also, this is the only class and method in this
+     * program.
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+
+        System.out.println("Platform file encoding: " + System.getProperty("file.encoding"));
+        System.out.println("Default charset: " + Charset.defaultCharset().name());
+
+        //check inputs
+        int threads = 0;
+        Compression compression = Compression.NONE;
+        int compressThreads = Runtime.getRuntime().availableProcessors();
+        boolean sort = false;
+        long memory = 0; //0 for the default
+        File tmpDir = null;
+        PartitionMode mode = PartitionMode.LINES;
+        ArrayList<String> positional = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                try {
+                    threads = Integer.valueOf(args[++i]);
+                } catch (NumberFormatException nfe) {
+                    threads = -1;
+                }
+                if (threads < 1) {
+                    System.err.println("Number of threads is not a valid number.");
+                    System.err.println(USAGE);
+                    System.exit(-1);
+                }
+            } else if (args[i].equals("--by") && i + 1 < args.length) {
+                try {
+                    mode = PartitionMode.valueOf(args[++i].toUpperCase());
+                } catch (IllegalArgumentException iae) {
+                    System.err.println("Unknown partition mode " + args[i]);
+                    System.err.println(USAGE);
+                    System.exit(-1);
+                }
+            } else if (args[i].equals("--compress") && i + 1 < args.length) {
+                try {
+                    compression = Compression.valueOf(args[++i].toUpperCase());
+                } catch (IllegalArgumentException iae) {
+                    System.err.println("Unknown compression " + args[i]);
+                    System.err.println(USAGE);
+                    System.exit(-1);
+                }
+            } else if (args[i].equals("--compress-threads") && i + 1 < args.length) {
+                try {
+                    compressThreads = Integer.valueOf(args[++i]);
+                } catch (NumberFormatException nfe) {
+                    compressThreads = -1;
+                }
+                if (compressThreads < 1) {
+                    System.err.println("Number of compression threads is not a valid number.");
+                    System.err.println(USAGE);
+                    System.exit(-1);
+                }
+            } else if (args[i].equals("--sort")) {
+                sort = true;
+            } else if (args[i].equals("--memory") && i + 1 < args.length) {
+                try {
+                    memory = parseSize(args[++i]);
+                } catch (NumberFormatException nfe) {
+                    memory = -1;
+                }
+                if (memory < 1) {
+                    System.err.println("Memory is not a valid size.");
+                    System.err.println(USAGE);
+                    System.exit(-1);
+                }
+            } else if (args[i].equals("--tmp") && i + 1 < args.length) {
+                tmpDir = new File(args[++i]);
+                if (!tmpDir.isDirectory()) {
+                    System.err.println("Temporary directory does not exist or is not a directory.");
+                    System.err.println(USAGE);
+                    System.exit(-1);
+                }
+            } else if (args[i].startsWith("--")) {
+                System.err.println(USAGE);
+                System.exit(-1);
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        if (positional.size() != 4) {
+            System.err.println(USAGE);
+            System.exit(-1);
+        }
+        args = positional.toArray(new String[4]);
+        File inFile = new File(args[0]);
+        if (!inFile.exists() || !inFile.isFile()) {
+            System.err.println("File does not exist or file is not a file.");
+            System.err.println(USAGE);
+            System.exit(-1);
+        }
+        File outDir = new File(args[1]);
+        if (!outDir.exists() || !outDir.isDirectory()) {
+            System.err.println("Output directory does not exist or is not a directory.");
+            System.err.println(USAGE);
+            System.exit(-1);
+        }
+
+        long limit = Long.MAX_VALUE;
+        try {
+            limit = parseSize(args[2]);
+            if (limit < 1 || (mode == PartitionMode.SUBJECT && limit > MAX_SHARDS)) {
+                throw new NumberFormatException(args[2]);
+            }
+        } catch (NumberFormatException nfe) {
+            System.err.println("Arguement three is not a valid number.");
+            System.err.println(USAGE);
+            System.exit(-1);
+        }
+        if (mode == PartitionMode.SUBJECT) {
+            long maxFiles = maxOpenFiles();
+            if (maxFiles >= 0 && limit + RESERVED_FILES > maxFiles) {
+                System.err.println(limit + " files cannot be open at once, the process may open " + maxFiles + " files (ulimit -n).");
+                System.exit(-1);
+            }
+        }
+
+        String fileExtension = args[3];
+        if (!fileExtension.startsWith(".")) {
+            fileExtension = "." + fileExtension;
+        }
+
+        if (memory == 0) { //half the heap, less the chunks of the splitter
+            memory = Runtime.getRuntime().maxMemory() / 2;
+            if (threads > 0) {
+                memory = Math.max(memory - ParallelSplitter.windowMemory(threads), MIN_SORT_MEMORY);
+            }
+        }
+
+        Partitioner partitioner = new Partitioner(outDir, fileExtension, mode, limit);
+        ExecutorService pool = null;
+        if (compression != Compression.NONE) {
+            pool = Executors.newFixedThreadPool(compressThreads);
+            partitioner.setCompression(compression, pool, compressThreads);
+        }
+        LineSink sink = partitioner;
+        ExternalSorter sorter = null;
+        if (sort) {
+            int sortThreads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+            sorter = new ExternalSorter(partitioner, tmpDir == null ? outDir : tmpDir, memory, sortThreads);
+            sink = sorter;
+        }
+        try {
+            split(inFile, sink, threads);
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+        if (sorter != null) {
+            System.out.println("Unique lines " + sorter.getUniqueLines());
+            System.out.println("Sorted runs spilled " + sorter.getSpilledRuns());
+        }
+        System.out.println("Total files " + partitioner.getFiles());
+
+    }
+
+    /**
+     * Splits the file, sequentially or with ParallelSplitter, and prints the
+     * statistics.
+     */
+    private static void split(File inFile, LineSink sink, int threads) {
+        if (threads > 0) {
+            ParallelSplitter splitter = new ParallelSplitter(inFile, sink, threads);
+            try {
+                splitter.split();
+            } catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+                System.exit(-1);
+            } catch (InterruptedException ie) {
+                System.err.println(ie.getMessage());
+                System.exit(-1);
+            } catch (RuntimeException re) {
+                System.err.println(re);
+                System.exit(-1);
+            }
+            //print statistic
+            System.out.println("Done.");
+            System.out.println("Total lines " + splitter.getTotalLines());
+            System.out.println("Accepted lines " + splitter.getAcceptedLines());
+            System.out.println("Dropped lines " + splitter.getDroppedLines());
+            return;
+        }
+
+        try {
+
+            //configure reading and writing
+            LineReader reader = new LineReader(Compression.open(inFile));
+            Sanitizer sanitizer = new Sanitizer();
+            sink.open();
+
+            long acceptedLines = 0;  //counts lines that are copied
+            long droppedLines = 0;  //counts lines that are not copied
+            long totalLines = 0;   //counts accepted and dropped lines
+
+            //begin
+            int length = reader.readLine();
+
+            while (length >= 0) { //as long as there are lines do...
+                totalLines++;
+                //check current line
+                length = sanitizer.sanitize(reader.getBuffer(), 0, length);
+                if (length == Sanitizer.DROPPED) {
+                    droppedLines++;
+                } else {
+                    //append line
+                    acceptedLines++;
+                    sink.write(sanitizer.getBuffer(), 0, length);
+                }
+                length = reader.readLine();
+            }
+            sink.close(); //close all files
+            reader.close();
+
+            //print statistic
+            System.out.println("Done.");
+            System.out.println("Total lines " + totalLines);
+            System.out.println("Accepted lines " + acceptedLines);
+            System.out.println("Dropped lines " + droppedLines);
+            return; //successful finished
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            System.exit(-1);
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+package org.gesis.splitfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Compresses a file on a thread pool. The data is cut into blocks, every
+ * block is compressed on its own into a complete gzip member or bzip2
+ * stream, and the compressed blocks are written to the file in order. A
+ * file of concatenated members decompresses like a single stream, as with
+ * pigz or pbzip2. The blocks waiting for compression are bounded, writing
+ * blocks when too many are pending. A CompressingOutputStream is not thread
+ * safe, the thread writing to it also writes the file.
+ *
+ */
+public class CompressingOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final Compression compression;
+    private final ExecutorService pool;
+    private final int blockSize;
+    private final int maxPending;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    private byte[] block;
+    private int size = 0;        //bytes used in block
+    private long blocks = 0;     //blocks submitted
+    private boolean finished = false;
+    private boolean closed = false;
+
+    /**
+     * @param out The file to write the compressed blocks to
+     * @param compression GZIP or BZIP2
+     * @param pool Compresses the blocks, may be shared by several streams
+     * @param blockSize Uncompressed size of a block
+     * @param maxPending Blocks submitted but not written yet, before waiting
+     */
+    public CompressingOutputStream(OutputStream out, Compression compression, ExecutorService pool, int blockSize, int maxPending) {
+        this.out = out;
+        this.compression = compression;
+        this.pool = pool;
+        this.blockSize = blockSize;
+        this.maxPending = maxPending;
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (size == blockSize) {
+            submit();
+        }
+        block[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (size == blockSize) {
+                submit();
+            }
+            int n = Math.min(len, blockSize - size);
+            System.arraycopy(b, off, block, size, n);
+            size += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (finished) {
+            throw new IOException("Stream finished.");
+        }
+    }
+
+    /**
+     * Hands the current block to the pool and writes the blocks compressed so
+     * far.
+     */
+    private void submit() throws IOException {
+        final byte[] data = block;
+        final int length = size;
+        pending.add(pool.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(length / 4 + 64);
+                OutputStream c = compression.wrap(bos);
+                c.write(data, 0, length);
+                c.close();
+                return bos.toByteArray();
+            }
+        }));
+        blocks++;
+        block = new byte[blockSize];
+        size = 0;
+        drain(false);
+    }
+
+    /**
+     * Writes compressed blocks in order.
+     *
+     * @param all Wait for all blocks, otherwise only for the ones exceeding
+     * maxPending
+     */
+    private void drain(boolean all) throws IOException {
+        while (!pending.isEmpty() && (all || pending.size() > maxPending || pending.peek().isDone())) {
+            out.write(get(pending.poll()));
+        }
+    }
+
+    private static byte[] get(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException(ex.getMessage());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Submits the last block without waiting for it. Nothing may be written
+     * afterwards, the file is complete once poll returns true or the stream
+     * is closed.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (size > 0 || blocks == 0) { //an empty file gets an empty member
+            submit();
+        }
+        finished = true;
+    }
+
+    /**
+     * Writes the blocks compressed so far, without waiting.
+     *
+     * @return true if all blocks are written and the stream is finished
+     * @throws IOException
+     */
+    public boolean poll() throws IOException {
+        drain(false);
+        return finished && pending.isEmpty();
+    }
+
+    /**
+     * Writes the buffered data as a block of its own and waits until all
+     * blocks are written.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        if (size > 0 && !finished) {
+            submit();
+        }
+        drain(true);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+            drain(true);
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(false);
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+
+}
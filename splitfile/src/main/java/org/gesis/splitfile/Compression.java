@@ -0,0 +1,124 @@
+package org.gesis.splitfile;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+/**
+ * Compression of input files and output shards. Compressed input is
+ * recognized by its magic bytes, not by the file name. Both formats allow
+ * several compressed streams to be concatenated, which the output makes use
+ * of, see CompressingOutputStream.
+ *
+ */
+public enum Compression {
+
+    NONE(""),
+    GZIP(".gz"),
+    BZIP2(".bz2");
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String extension;
+
+    private Compression(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * @return File name extension of compressed files, empty for NONE
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Wraps a stream to compress everything written to it.
+     *
+     * @param out The stream receiving the compressed data
+     * @return The compressing stream
+     * @throws IOException
+     */
+    public OutputStream wrap(OutputStream out) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+            case BZIP2:
+                return new BZip2CompressorOutputStream(out);
+            default:
+                return out;
+        }
+    }
+
+    /**
+     * Wraps a stream to decompress it. Concatenated streams are read as one.
+     *
+     * @param in The compressed stream
+     * @return The decompressing stream
+     * @throws IOException
+     */
+    public InputStream unwrap(InputStream in) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            case BZIP2:
+                return new BZip2CompressorInputStream(in, true);
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * Detects the compression of a file by its first bytes.
+     *
+     * @param file
+     * @return The compression, NONE for anything unknown
+     * @throws IOException
+     */
+    public static Compression detect(File file) throws IOException {
+        byte[] magic = new byte[3];
+        int n = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int r = 0;
+            while (n < magic.length && r >= 0) {
+                r = in.read(magic, n, magic.length - n);
+                n += Math.max(r, 0);
+            }
+        } finally {
+            in.close();
+        }
+        if (n >= 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B) {
+            return GZIP;
+        } else if (n == 3 && magic[0] == 'B' && magic[1] == 'Z' && magic[2] == 'h') {
+            return BZIP2;
+        }
+        return NONE;
+    }
+
+    /**
+     * Opens a file for reading, decompressing it if needed.
+     *
+     * @param file
+     * @return The stream of the decompressed content
+     * @throws IOException
+     */
+    public static InputStream open(File file) throws IOException {
+        Compression compression = detect(file);
+        InputStream in = new FileInputStream(file);
+        try {
+            return compression.unwrap(new BufferedInputStream(in, BUFFER_SIZE));
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+}
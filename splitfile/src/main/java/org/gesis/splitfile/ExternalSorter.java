@@ -0,0 +1,467 @@
+package org.gesis.splitfile;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sorts lines and drops duplicates, like "LC_ALL=C sort -u", before handing
+ * them to another LineSink. Lines are compared byte by byte as unsigned
+ * values, which for UTF-8 is the order of the code points and does not
+ * depend on the locale. Statements of the same subject end up next to each
+ * other.
+ *
+ * The lines are collected in runs of a fixed size. Full runs are sorted on
+ * a thread pool while the next run is filled, and spilled to gzip compressed
+ * temporary files without their duplicates. The runs are merged k-way,
+ * FAN_IN files at a time, dropping the duplicates between runs. Input that
+ * fits into a single run is not spilled at all. The memory taken by the runs
+ * is bounded, the lines wait for a free run when all are taken.
+ *
+ */
+public class ExternalSorter implements LineSink {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int FAN_IN = 64;             //runs merged at once
+    private static final int LINE_OVERHEAD = 12;      //bytes per line for the line end and sorting
+    private static final long MIN_RUN_SIZE = 1 << 20;
+    private static final int INSERTION_SORT = 16;     //ranges sorted without merging
+    private static final byte NEWLINE = '\n';
+
+    /**
+     * Lines in memory, one after the other.
+     */
+    private static class Run {
+
+        private byte[] data = new byte[1 << 16];
+        private int size = 0;                  //bytes used in data
+        private int[] ends = new int[1 << 10]; //end of every line in data
+        private int lines = 0;
+        private int[] order = new int[0];      //line indices, sorted
+        private int[] tmp = new int[0];
+
+        private int start(int line) {
+            return line == 0 ? 0 : ends[line - 1];
+        }
+
+        private void clear() {
+            size = 0;
+            lines = 0;
+        }
+
+    }
+
+    /**
+     * Writes lines to a temporary run file, one per line.
+     */
+    private static class RunWriter implements LineSink {
+
+        private final OutputStream out;
+
+        private RunWriter(File file) throws IOException {
+            out = new GZIPOutputStream(new FileOutputStream(file), BUFFER_SIZE) {
+                {
+                    def.setLevel(Deflater.BEST_SPEED);
+                }
+            };
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void write(byte[] line, int off, int len) throws IOException {
+            out.write(line, off, len);
+            out.write(NEWLINE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+    }
+
+    /**
+     * Reads a run file line by line, for merging.
+     */
+    private static class RunReader {
+
+        private final LineReader reader;
+        private final int index;  //decides between equal lines, for a stable order
+        private int length = 0;   //of the current line
+
+        private RunReader(File file, int index) throws IOException {
+            this.reader = new LineReader(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE), BUFFER_SIZE));
+            this.index = index;
+        }
+
+        private boolean next() throws IOException {
+            length = reader.readLine();
+            return length >= 0;
+        }
+
+    }
+
+    private static final Comparator<RunReader> BY_LINE = new Comparator<RunReader>() {
+        @Override
+        public int compare(RunReader a, RunReader b) {
+            int c = ExternalSorter.compare(a.reader.getBuffer(), 0, a.length, b.reader.getBuffer(), 0, b.length);
+            return c != 0 ? c : a.index - b.index;
+        }
+    };
+
+    private final LineSink out;
+    private final File tmpDir;
+    private final int threads;
+    private final long runSize;
+    private final BlockingQueue<Run> free = new LinkedBlockingQueue<Run>();
+    private final List<Future<File>> spilled = new ArrayList<Future<File>>();
+    private final List<File> temporary = Collections.synchronizedList(new ArrayList<File>());
+    private ExecutorService pool = null;
+    private Run run = null;
+    private int runs = 0;          //runs created, at most threads + 1
+    private long uniqueLines = 0;
+
+    /**
+     * @param out Receives the sorted lines without duplicates, not opened yet
+     * @param tmpDir Directory for the run files
+     * @param memory Bytes taken by the runs, one more run than threads
+     * @param threads Number of threads sorting runs
+     */
+    public ExternalSorter(LineSink out, File tmpDir, long memory, int threads) {
+        this.out = out;
+        this.tmpDir = tmpDir;
+        this.threads = threads;
+        this.runSize = Math.min(Math.max(memory / (threads + 1), MIN_RUN_SIZE), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void open() throws IOException {
+        pool = Executors.newFixedThreadPool(threads);
+    }
+
+    @Override
+    public void write(byte[] line, int off, int len) throws IOException {
+        if (run == null) {
+            run = takeRun();
+        }
+        if (run.lines > 0 && run.size + len + (run.lines + 1L) * LINE_OVERHEAD > runSize) {
+            spill(run);
+            run = takeRun();
+        }
+        if (run.size + len > run.data.length) {
+            long capacity = Math.max(run.size + (long) len, Math.min(run.data.length * 2L, runSize));
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IOException("Line is longer than 2 GB.");
+            }
+            run.data = Arrays.copyOf(run.data, (int) capacity);
+        }
+        if (run.lines == run.ends.length) {
+            run.ends = Arrays.copyOf(run.ends, run.lines * 2);
+        }
+        System.arraycopy(line, off, run.data, run.size, len);
+        run.size += len;
+        run.ends[run.lines++] = run.size;
+    }
+
+    /**
+     * Sorts the remaining lines, merges the runs into the output and deletes
+     * the run files.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (spilled.isEmpty()) { //everything fits into memory
+                out.open();
+                if (run != null) {
+                    sort(run);
+                    uniqueLines = emit(run, out);
+                }
+                out.close();
+                return;
+            }
+            if (run != null && run.lines > 0) {
+                spill(run);
+            }
+            run = null;
+            List<File> files = new ArrayList<File>();
+            for (Future<File> future : spilled) {
+                files.add(get(future));
+            }
+            while (files.size() > FAN_IN) {
+                files = mergePass(files);
+            }
+            out.open();
+            uniqueLines = merge(files, out);
+            out.close();
+        } finally {
+            pool.shutdownNow();
+            synchronized (temporary) {
+                for (File file : temporary) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Number of lines written to the output
+     */
+    public long getUniqueLines() {
+        return uniqueLines;
+    }
+
+    /**
+     * @return Number of run files written, 0 if everything fit into memory
+     */
+    public int getSpilledRuns() {
+        return spilled.size();
+    }
+
+    private Run takeRun() throws IOException {
+        if (runs < threads + 1) {
+            runs++;
+            return new Run();
+        }
+        try {
+            return free.take();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Sorts a full run on the pool and writes it to a run file.
+     */
+    private void spill(final Run full) throws IOException {
+        if (!spilled.isEmpty() && spilled.get(spilled.size() - 1).isDone()) {
+            get(spilled.get(spilled.size() - 1)); //fail early
+        }
+        spilled.add(pool.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                try {
+                    sort(full);
+                    File file = createRunFile();
+                    RunWriter writer = new RunWriter(file);
+                    try {
+                        emit(full, writer);
+                    } finally {
+                        writer.close();
+                    }
+                    return file;
+                } finally {
+                    full.clear();
+                    free.add(full);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Merges the run files FAN_IN at a time on the pool.
+     *
+     * @return The merged run files
+     */
+    private List<File> mergePass(List<File> files) throws IOException {
+        List<Future<File>> merged = new ArrayList<Future<File>>();
+        for (int i = 0; i < files.size(); i += FAN_IN) {
+            final List<File> group = files.subList(i, Math.min(i + FAN_IN, files.size()));
+            merged.add(pool.submit(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    File file = createRunFile();
+                    RunWriter writer = new RunWriter(file);
+                    try {
+                        merge(group, writer);
+                    } finally {
+                        writer.close();
+                    }
+                    for (File done : group) {
+                        done.delete();
+                    }
+                    return file;
+                }
+            }));
+        }
+        List<File> result = new ArrayList<File>();
+        for (Future<File> future : merged) {
+            result.add(get(future));
+        }
+        return result;
+    }
+
+    private File createRunFile() throws IOException {
+        File file = File.createTempFile("run", ".gz", tmpDir);
+        temporary.add(file);
+        return file;
+    }
+
+    /**
+     * Merges run files, writing every line once.
+     *
+     * @return Number of lines written
+     */
+    private static long merge(List<File> files, LineSink sink) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(files.size(), BY_LINE);
+        ArrayList<RunReader> readers = new ArrayList<RunReader>();
+        long written = 0;
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                RunReader reader = new RunReader(files.get(i), i);
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            byte[] last = new byte[1 << 12];
+            int lastLength = -1;
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                byte[] line = reader.reader.getBuffer();
+                if (lastLength < 0 || compare(line, 0, reader.length, last, 0, lastLength) != 0) {
+                    if (last.length < reader.length) {
+                        last = new byte[Math.max(reader.length, last.length * 2)];
+                    }
+                    System.arraycopy(line, 0, last, 0, reader.length);
+                    lastLength = reader.length;
+                    sink.write(last, 0, lastLength);
+                    written++;
+                }
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.reader.close();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes the lines of a sorted run, every line once.
+     *
+     * @return Number of lines written
+     */
+    private static long emit(Run run, LineSink sink) throws IOException {
+        long written = 0;
+        int previous = -1;
+        for (int i = 0; i < run.lines; i++) {
+            int line = run.order[i];
+            if (previous >= 0 && compare(run, previous, line) == 0) {
+                continue;
+            }
+            sink.write(run.data, run.start(line), run.ends[line] - run.start(line));
+            written++;
+            previous = line;
+        }
+        return written;
+    }
+
+    /**
+     * Sorts the lines of a run with a stable merge sort of their indices.
+     */
+    private static void sort(Run run) {
+        if (run.order.length < run.lines) {
+            run.order = new int[run.lines];
+            run.tmp = new int[run.lines];
+        }
+        for (int i = 0; i < run.lines; i++) {
+            run.order[i] = i;
+        }
+        sort(run, run.order, run.tmp, 0, run.lines);
+    }
+
+    private static void sort(Run run, int[] a, int[] tmp, int from, int to) {
+        if (to - from <= INSERTION_SORT) {
+            for (int i = from + 1; i < to; i++) {
+                int line = a[i];
+                int j = i;
+                while (j > from && compare(run, a[j - 1], line) > 0) {
+                    a[j] = a[j - 1];
+                    j--;
+                }
+                a[j] = line;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sort(run, a, tmp, from, mid);
+        sort(run, a, tmp, mid, to);
+        if (compare(run, a[mid - 1], a[mid]) <= 0) { //already in order
+            return;
+        }
+        System.arraycopy(a, from, tmp, from, to - from);
+        int i = from;
+        int j = mid;
+        int k = from;
+        while (i < mid && j < to) {
+            a[k++] = compare(run, tmp[j], tmp[i]) < 0 ? tmp[j++] : tmp[i++];
+        }
+        while (i < mid) {
+            a[k++] = tmp[i++];
+        }
+        while (j < to) {
+            a[k++] = tmp[j++];
+        }
+    }
+
+    private static int compare(Run run, int a, int b) {
+        return compare(run.data, run.start(a), run.ends[a], run.data, run.start(b), run.ends[b]);
+    }
+
+    /**
+     * Compares two lines byte by byte as unsigned values, a line before all
+     * lines it is a prefix of.
+     */
+    private static int compare(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+        int length = Math.min(aEnd - aStart, bEnd - bStart);
+        for (int i = 0; i < length; i++) {
+            int c = (a[aStart + i] & 0xFF) - (b[bStart + i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return (aEnd - aStart) - (bEnd - bStart);
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException(ex.getMessage());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.gesis.splitfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads lines of bytes from an InputStream into a buffer that is reused for
+ * every line. Lines end at '\n', '\r' or "\r\n" like for
+ * BufferedReader.readLine.
+ *
+ */
+public class LineReader {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream in;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private byte[] line = new byte[1 << 12];
+    private boolean skipLF = false;  //the last line ended with '\r'
+
+    public LineReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next line.
+     *
+     * @return Length of the line in the buffer, without line end, -1 at the
+     * end of the stream
+     * @throws IOException
+     */
+    public int readLine() throws IOException {
+        int length = 0;
+        boolean read = false; //whether there was anything to read
+        while (true) {
+            if (pos == limit) {
+                limit = in.read(buf);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return read ? length : -1;
+                }
+            }
+            if (skipLF) {
+                skipLF = false;
+                if (buf[pos] == '\n') {
+                    pos++;
+                    continue;
+                }
+            }
+            read = true;
+            int start = pos;
+            while (pos < limit && buf[pos] != '\n' && buf[pos] != '\r') {
+                pos++;
+            }
+            if (length + pos - start > line.length) {
+                line = Arrays.copyOf(line, Math.max(length + pos - start, line.length * 2));
+            }
+            System.arraycopy(buf, start, line, length, pos - start);
+            length += pos - start;
+            if (pos < limit) {
+                skipLF = buf[pos] == '\r';
+                pos++;
+                return length;
+            }
+        }
+    }
+
+    /**
+     * @return The buffer holding the last line read
+     */
+    public byte[] getBuffer() {
+        return line;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
@@ -0,0 +1,36 @@
+package org.gesis.splitfile;
+
+import java.io.IOException;
+
+/**
+ * Receives the accepted lines of a split, e.g. a Partitioner writing them to
+ * the output files.
+ *
+ */
+public interface LineSink {
+
+    /**
+     * Called once before the first line.
+     *
+     * @throws IOException
+     */
+    void open() throws IOException;
+
+    /**
+     * Takes a line.
+     *
+     * @param line Buffer holding the line, only valid during the call
+     * @param off Start of the line
+     * @param len Length of the line without line end
+     * @throws IOException
+     */
+    void write(byte[] line, int off, int len) throws IOException;
+
+    /**
+     * Called once after the last line.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException;
+
+}
@@ -0,0 +1,389 @@
+package org.gesis.splitfile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Splits a line based file like App does, but with several threads. The input
+ * is memory mapped and cut into chunks at line ends, compressed input is
+ * decompressed by the reading thread and cut the same way. Worker threads
+ * sanitize the lines of the chunks concurrently with the byte engine of the
+ * Sanitizer, a single writer thread takes the sanitized chunks in the order
+ * of the input and hands their lines to a LineSink, usually the Partitioner.
+ * Since the lines reach the sink in input order, the output does not depend
+ * on the number of threads. The number of chunks in flight is bounded by a
+ * window, which bounds the memory taken.
+ *
+ */
+public class ParallelSplitter {
+
+    private static final int CHUNK_SIZE = 1 << 26; //64 MB
+
+    /**
+     * A chunk of the input and, once sanitized, its accepted lines.
+     */
+    private static class Chunk {
+
+        private final long seq;
+        private final ByteBuffer in;
+        private byte[] out = null;
+        private int size = 0;        //bytes used in out
+        private int[] ends = null;   //end of every accepted line in out, without line end
+        private int lines = 0;       //accepted lines
+        private long total = 0;
+        private long dropped = 0;
+
+        private Chunk(long seq, ByteBuffer in) {
+            this.seq = seq;
+            this.in = in;
+        }
+
+    }
+
+    private static final Chunk END = new Chunk(-1, null);
+
+    private final File inFile;
+    private final LineSink sink;
+    private final BlockingQueue<Chunk> tasks = new LinkedBlockingQueue<Chunk>();
+    private final BlockingQueue<Chunk> results = new LinkedBlockingQueue<Chunk>();
+    private final Semaphore window;
+    private final int windowSize;
+    private final Thread[] workers;
+    private volatile Throwable failure = null;
+
+    //statistics, written by the writer thread
+    private long totalLines = 0;
+    private long acceptedLines = 0;
+    private long droppedLines = 0;
+
+    /**
+     * @param threads Number of worker threads
+     * @return Bytes the chunks in flight may take on the heap, the input of
+     * compressed files and the sanitized output of every chunk in the window
+     */
+    public static long windowMemory(int threads) {
+        return threads * 2L * (CHUNK_SIZE + CHUNK_SIZE + CHUNK_SIZE / 8);
+    }
+
+    /**
+     * @param inFile The file to split
+     * @param sink Receives the accepted lines, not opened yet
+     * @param threads Number of worker threads
+     */
+    public ParallelSplitter(File inFile, LineSink sink, int threads) {
+        this.inFile = inFile;
+        this.sink = sink;
+        this.workers = new Thread[threads];
+        this.windowSize = threads * 2;
+        this.window = new Semaphore(windowSize);
+    }
+
+    /**
+     * Splits the file. Any failure of a thread stops the split and is thrown
+     * here, the sink is not closed then.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void split() throws IOException, InterruptedException {
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "Sanitizer " + i);
+            workers[i].start();
+        }
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "Writer");
+        writer.start();
+
+        InputStream in = null;
+        try {
+            if (Compression.detect(inFile) == Compression.NONE) {
+                FileInputStream fis = new FileInputStream(inFile);
+                in = fis;
+                read(fis.getChannel());
+            } else {
+                in = Compression.open(inFile);
+                read(in);
+            }
+        } catch (Throwable ex) {
+            stop(ex);
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+            for (int i = 0; i < workers.length; i++) {
+                tasks.put(END);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            results.put(END);
+            writer.join();
+        }
+
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof InterruptedException) {
+            throw (InterruptedException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    /**
+     * Maps the file chunk by chunk. A chunk ends behind the last line end
+     * within CHUNK_SIZE bytes, a longer line gets a larger chunk.
+     */
+    private void read(FileChannel channel) throws IOException, InterruptedException {
+        long size = channel.size();
+        long pos = 0;
+        long seq = 0;
+        while (pos < size && failure == null) {
+            long length = Math.min(CHUNK_SIZE, size - pos);
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+            int end = lastLineEnd(buf);
+            while (end == 0 && pos + length < size) {
+                if (length == Integer.MAX_VALUE) {
+                    throw new IOException("Line at byte " + pos + " is longer than 2 GB.");
+                }
+                length = Math.min(Math.min(length * 2, Integer.MAX_VALUE), size - pos);
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+                end = lastLineEnd(buf);
+            }
+            if (end == 0 || pos + length == size) { //the last chunk takes the rest
+                end = (int) length;
+            }
+            buf.limit(end);
+            window.acquire();
+            if (failure == null) {
+                tasks.put(new Chunk(seq++, buf));
+            }
+            pos += end;
+        }
+    }
+
+    /**
+     * Reads a stream chunk by chunk. The bytes behind the last line end of a
+     * chunk are carried over to the next one.
+     */
+    private void read(InputStream in) throws IOException, InterruptedException {
+        byte[] carry = new byte[0];
+        long seq = 0;
+        boolean eof = false;
+        while (!eof && failure == null) {
+            if (carry.length == Integer.MAX_VALUE) {
+                throw new IOException("Line is longer than 2 GB.");
+            }
+            byte[] buf = new byte[(int) Math.min(Math.max(CHUNK_SIZE, carry.length * 2L), Integer.MAX_VALUE)];
+            System.arraycopy(carry, 0, buf, 0, carry.length);
+            int length = carry.length;
+            while (length < buf.length) {
+                int r = in.read(buf, length, buf.length - length);
+                if (r < 0) {
+                    eof = true;
+                    break;
+                }
+                length += r;
+            }
+            int end = eof ? length : lastLineEnd(ByteBuffer.wrap(buf, 0, length));
+            carry = Arrays.copyOfRange(buf, end, length);
+            if (end == 0) { //no line end yet, read on with a larger chunk
+                continue;
+            }
+            window.acquire();
+            if (failure == null) {
+                tasks.put(new Chunk(seq++, ByteBuffer.wrap(buf, 0, end)));
+            }
+        }
+    }
+
+    /**
+     * @return Position behind the last '\n', 0 if there is none
+     */
+    private static int lastLineEnd(ByteBuffer buf) {
+        for (int i = buf.limit() - 1; i >= 0; i--) {
+            if (buf.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private void work() {
+        Sanitizer sanitizer = new Sanitizer();
+        byte[] scratch = new byte[1 << 12];
+        try {
+            Chunk chunk = tasks.take();
+            while (chunk != END) {
+                if (failure == null) {
+                    try {
+                        scratch = sanitize(chunk, sanitizer, scratch);
+                    } catch (Throwable ex) { //passed on, so the chunk still leaves no gap
+                        stop(ex);
+                    }
+                }
+                results.put(chunk);
+                chunk = tasks.take();
+            }
+        } catch (InterruptedException ex) {
+            stop(ex);
+        }
+    }
+
+    /**
+     * Sanitizes the lines of a chunk like App does, lines end at '\n', '\r'
+     * or "\r\n" like for BufferedReader.readLine.
+     *
+     * @return The scratch buffer, grown if needed
+     */
+    private static byte[] sanitize(Chunk chunk, Sanitizer sanitizer, byte[] scratch) {
+        ByteBuffer in = chunk.in;
+        int limit = in.limit();
+        chunk.out = new byte[limit + limit / 8 + 64];
+        chunk.ends = new int[1024];
+        int pos = 0;
+        while (pos < limit) {
+            int end = pos;
+            byte b = 0;
+            while (end < limit && (b = in.get(end)) != '\n' && b != '\r') {
+                end++;
+            }
+            int next = end + 1;
+            if (end < limit && b == '\r' && next < limit && in.get(next) == '\n') {
+                next++;
+            }
+
+            chunk.total++;
+            int length = end - pos;
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            in.position(pos);
+            in.get(scratch, 0, length);
+            int sanitized = sanitizer.sanitize(scratch, 0, length);
+            if (sanitized == Sanitizer.DROPPED) {
+                chunk.dropped++;
+                pos = next;
+                continue;
+            }
+            append(chunk, sanitizer.getBuffer(), 0, sanitized);
+            if (chunk.lines == chunk.ends.length) {
+                chunk.ends = Arrays.copyOf(chunk.ends, chunk.lines * 2);
+            }
+            chunk.ends[chunk.lines++] = chunk.size;
+            pos = next;
+        }
+        return scratch;
+    }
+
+    private static void append(Chunk chunk, byte[] bytes, int offset, int length) {
+        if (chunk.size + length > chunk.out.length) {
+            chunk.out = Arrays.copyOf(chunk.out, Math.max(chunk.size + length, chunk.out.length * 2));
+        }
+        System.arraycopy(bytes, offset, chunk.out, chunk.size, length);
+        chunk.size += length;
+    }
+
+    private void write() {
+        HashMap<Long, Chunk> pending = new HashMap<Long, Chunk>(); //reorder buffer
+        long expected = 0;
+        boolean opened = false;
+        try {
+            sink.open();
+            opened = true;
+            Chunk chunk = results.take();
+            while (chunk != END) {
+                pending.put(chunk.seq, chunk);
+                Chunk next = pending.remove(expected);
+                while (next != null) {
+                    if (failure == null) {
+                        int from = 0;
+                        for (int line = 0; line < next.lines; line++) {
+                            sink.write(next.out, from, next.ends[line] - from);
+                            from = next.ends[line];
+                        }
+                        totalLines += next.total;
+                        acceptedLines += next.lines;
+                        droppedLines += next.dropped;
+                    }
+                    next.out = null;
+                    window.release();
+                    expected++;
+                    next = pending.remove(expected);
+                }
+                chunk = results.take();
+            }
+            if (!pending.isEmpty()) {
+                stop(new IllegalStateException("Chunk " + expected + " of the input is missing."));
+            }
+        } catch (Throwable ex) {
+            stop(ex);
+        } finally {
+            //after a failure the sink is left unfinished, e.g. a sorter must not merge partial input
+            if (opened && failure == null) {
+                try {
+                    sink.close();
+                } catch (Throwable ex) {
+                    stop(ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops splitting. The reader is woken up and everything not written
+     * yet is dropped.
+     */
+    private void stop(Throwable ex) {
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            failure = ex;
+        }
+        window.release(windowSize);
+    }
+
+    /**
+     * @return Number of lines read
+     */
+    public long getTotalLines() {
+        return totalLines;
+    }
+
+    /**
+     * @return Number of lines written
+     */
+    public long getAcceptedLines() {
+        return acceptedLines;
+    }
+
+    /**
+     * @return Number of lines dropped as malformed
+     */
+    public long getDroppedLines() {
+        return droppedLines;
+    }
+
+}
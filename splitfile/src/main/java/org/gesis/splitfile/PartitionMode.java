@@ -0,0 +1,24 @@
+package org.gesis.splitfile;
+
+/**
+ * The ways a Partitioner distributes the lines over the output files.
+ *
+ */
+public enum PartitionMode {
+
+    /**
+     * A new file every given number of lines.
+     */
+    LINES,
+    /**
+     * A new file before a line that would make the current file larger than
+     * the given number of bytes. A single longer line gets a file of its own.
+     */
+    BYTES,
+    /**
+     * A given number of files, the subject of a line decides the file by its
+     * hash. All statements of a subject end up in the same file, in the order
+     * of the input.
+     */
+    SUBJECT
+}
@@ -0,0 +1,222 @@
+package org.gesis.splitfile;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Writes lines to the output files named 000, 001, ... plus the file
+ * extension, distributed by a PartitionMode. Every line is written with the
+ * platform line separator. With compression the files are compressed on a
+ * thread pool, see CompressingOutputStream, and limits in bytes refer to the
+ * uncompressed size. A file that is full is finished in the background while
+ * the next one is written.
+ *
+ */
+public class Partitioner implements LineSink {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final int MIN_BLOCK_SIZE = 1 << 16;
+    private static final int BLOCK_MEMORY = 1 << 28; //for the blocks of all files together
+    private static final int MAX_FINISHING = 4;      //full files still being compressed
+    private static final byte[] NEWLINE = System.getProperty("line.separator").getBytes(Charset.forName(App.ENCODING));
+
+    private final File outDir;
+    private final String fileExtension;
+    private final PartitionMode mode;
+    private final long limit;
+    private Compression compression = Compression.NONE;
+    private ExecutorService pool = null;
+    private int maxPending = 0;
+    private final ArrayList<CompressingOutputStream> finishing = new ArrayList<CompressingOutputStream>();
+    private OutputStream[] shards = null;
+    private OutputStream current = null;
+    private long cnt = 0;  //lines or bytes in the current file
+    private long files = 0;
+
+    /**
+     * @param outDir Directory to create the files in
+     * @param fileExtension Extension of the files, including the dot
+     * @param mode How to distribute the lines
+     * @param limit Lines per file, bytes per file or number of files
+     */
+    public Partitioner(File outDir, String fileExtension, PartitionMode mode, long limit) {
+        this.outDir = outDir;
+        this.fileExtension = fileExtension;
+        this.mode = mode;
+        this.limit = limit;
+    }
+
+    /**
+     * Compresses the files. Must be called before open.
+     *
+     * @param compression
+     * @param pool Compresses the blocks of the files
+     * @param threads Number of threads of the pool
+     */
+    public void setCompression(Compression compression, ExecutorService pool, int threads) {
+        this.compression = compression;
+        this.pool = pool;
+        this.maxPending = threads * 2;
+    }
+
+    /**
+     * Creates the first file, or all files when partitioning by subject.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void open() throws IOException {
+        if (mode == PartitionMode.SUBJECT) {
+            shards = new OutputStream[(int) limit];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = open(nextFile());
+            }
+        } else {
+            current = open(nextFile());
+        }
+    }
+
+    /**
+     * Writes a line.
+     *
+     * @param line Buffer holding the line
+     * @param off Start of the line
+     * @param len Length of the line without line end
+     * @throws IOException
+     */
+    @Override
+    public void write(byte[] line, int off, int len) throws IOException {
+        OutputStream out;
+        switch (mode) {
+            case LINES:
+                if (cnt == limit) { //if file full open new file
+                    next();
+                }
+                cnt++;
+                out = current;
+                break;
+            case BYTES:
+                if (cnt > 0 && cnt + len + NEWLINE.length > limit) {
+                    next();
+                }
+                cnt += len + NEWLINE.length;
+                out = current;
+                break;
+            default:
+                out = shards[shard(line, off, len, shards.length)];
+        }
+        out.write(line, off, len);
+        out.write(NEWLINE);
+    }
+
+    /**
+     * Closes all files.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        for (CompressingOutputStream out : finishing) {
+            out.close();
+        }
+        finishing.clear();
+        if (current != null) {
+            current.close();
+        }
+        if (shards != null) {
+            for (OutputStream shard : shards) {
+                shard.close();
+            }
+        }
+    }
+
+    /**
+     * @return Number of files created
+     */
+    public long getFiles() {
+        return files;
+    }
+
+    private void next() throws IOException {
+        if (current instanceof CompressingOutputStream) {
+            CompressingOutputStream full = (CompressingOutputStream) current;
+            full.finish();
+            finishing.add(full);
+            poll();
+        } else {
+            current.close();
+        }
+        File curOutFile = nextFile();
+        current = open(curOutFile);
+        System.out.println("[+] Created new file " + curOutFile.getAbsolutePath());
+        cnt = 0;
+    }
+
+    /**
+     * Closes the finished files that are written completely, and waits for
+     * the oldest ones if too many are left.
+     */
+    private void poll() throws IOException {
+        for (int i = finishing.size() - 1; i >= 0; i--) {
+            if (finishing.get(i).poll()) {
+                finishing.remove(i).close();
+            }
+        }
+        while (finishing.size() > MAX_FINISHING) {
+            finishing.remove(0).close();
+        }
+    }
+
+    private File nextFile() {
+        return new File(outDir, String.format("%03d", files++) + fileExtension + compression.getExtension());
+    }
+
+    private OutputStream open(File file) throws IOException {
+        if (compression == Compression.NONE) {
+            return new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        }
+        //fewer and smaller blocks per file when many files are open at once,
+        //the pool is kept busy by the files together
+        int open = mode == PartitionMode.SUBJECT ? (int) limit : 1;
+        int pending = Math.max(1, maxPending / open);
+        int blockSize = Math.max(MIN_BLOCK_SIZE, Math.min(BLOCK_SIZE, BLOCK_MEMORY / open / (pending + 1)));
+        return new CompressingOutputStream(new FileOutputStream(file), compression, pool, blockSize, pending);
+    }
+
+    /**
+     * Chooses the file of a line by the FNV-1a hash of its subject term, as
+     * written in the line. Lines without a subject, e.g. empty lines, go to
+     * the first file.
+     *
+     * @return Index of the file
+     */
+    static int shard(byte[] line, int off, int len, int n) {
+        int i = off;
+        int end = off + len;
+        while (i < end && (line[i] == ' ' || line[i] == '\t')) {
+            i++;
+        }
+        if (i == end) {
+            return 0;
+        }
+        long hash = 0xcbf29ce484222325L;
+        while (i < end && line[i] != ' ' && line[i] != '\t') {
+            hash ^= line[i] & 0xFF;
+            hash *= 0x100000001b3L;
+            i++;
+        }
+        //mix the high bits into the low ones
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return (int) ((hash & Long.MAX_VALUE) % n);
+    }
+
+}
@@ -0,0 +1,241 @@
+package org.gesis.splitfile;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Replaces escaped surrogates in lines and drops lines with malformed
+ * escapes. Every escape sequence \\uXXXX whose value is between \\uD800 and
+ * \\uFFFF is replaced with '?', since these are not valid in UTF-8 (only in
+ * UTF-16, see https://de.wikipedia.org/wiki/UTF-8). A line with a \\u that is
+ * not followed by four hex digits is dropped.
+ *
+ * The byte engine works on UTF-8 encoded lines and writes into an output
+ * buffer that is reused for every line, without decoding the line. Lines
+ * with malformed UTF-8 or non-ASCII characters within an escape are handed
+ * to the String implementation, so both give the same result for every
+ * line. A Sanitizer is not thread safe.
+ *
+ */
+public class Sanitizer {
+
+    /**
+     * Returned for a dropped line.
+     */
+    public static final int DROPPED = -1;
+
+    private static final Charset UTF8 = Charset.forName(App.ENCODING);
+    //results of parseHex besides the values -0xFFF to 0xFFFF of a signed escape
+    private static final int INVALID = Integer.MIN_VALUE;        //no number
+    private static final int NON_ASCII = Integer.MIN_VALUE + 1;  //decide on the decoded line
+    private static final byte[] HEX = new byte[128]; //value of an ASCII hex digit, -1 for other characters
+
+    static {
+        for (int c = 0; c < HEX.length; c++) {
+            HEX[c] = (byte) Character.digit(c, 16);
+        }
+    }
+
+    private byte[] out = new byte[1 << 12];
+
+    /**
+     * Sanitizes a line.
+     *
+     * @param in Buffer holding the line, UTF-8 encoded without line end
+     * @param off Start of the line
+     * @param len Length of the line in bytes
+     * @return Length of the sanitized line in the output buffer, DROPPED if
+     * the line is dropped
+     */
+    public int sanitize(byte[] in, int off, int len) {
+        if (out.length < len) {
+            out = new byte[Math.max(len, out.length * 2)];
+        }
+        byte[] o = out;
+        int n = 0;
+        int i = off;
+        int end = off + len;
+        while (i < end) {
+            //copy the run of plain ASCII at once
+            int run = i;
+            while (run < end && in[run] >= 0 && in[run] != '\\') {
+                run++;
+            }
+            if (run - i > 16) {
+                System.arraycopy(in, i, o, n, run - i);
+                n += run - i;
+                i = run;
+            } else {
+                while (i < run) { //short runs between escapes
+                    o[n++] = in[i++];
+                }
+            }
+            if (i == end) {
+                break;
+            }
+            if (in[i] == '\\') {
+                if (i + 1 < end && in[i + 1] == 'u') {
+                    if (i + 6 > end) {
+                        return DROPPED;
+                    }
+                    int hex = parseHex(in, i + 2);
+                    if (hex == NON_ASCII) {
+                        return decode(in, off, len);
+                    } else if (hex == INVALID) {
+                        return DROPPED;
+                    } else if (hex >= 0xD800 && hex <= 0xFFFF) {
+                        o[n++] = '?';
+                    } else {
+                        for (int j = i; j < i + 6; j++) {
+                            o[n++] = in[j];
+                        }
+                    }
+                    i += 6;
+                } else {
+                    o[n++] = '\\';
+                    i++;
+                }
+            } else {
+                int length = sequenceLength(in, i, end);
+                if (length == 0) {
+                    return decode(in, off, len);
+                }
+                System.arraycopy(in, i, o, n, length);
+                n += length;
+                i += length;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return The output buffer, valid until the next call of sanitize
+     */
+    public byte[] getBuffer() {
+        return out;
+    }
+
+    /**
+     * Sanitizes a line the slow way, the decoder replaces malformed UTF-8
+     * like reading the line with a Reader does.
+     */
+    private int decode(byte[] in, int off, int len) {
+        String line = sanitize(new String(in, off, len, UTF8));
+        if (line == null) {
+            return DROPPED;
+        }
+        byte[] bytes = line.getBytes(UTF8);
+        if (out.length < bytes.length) {
+            out = Arrays.copyOf(out, Math.max(bytes.length, out.length * 2));
+        }
+        System.arraycopy(bytes, 0, out, 0, bytes.length);
+        return bytes.length;
+    }
+
+    /**
+     * Parses the four characters of an escape like Integer.valueOf(s, 16),
+     * which accepts a sign as well.
+     *
+     * @return The value, which may be negative, INVALID if it is no number or
+     * NON_ASCII if one of the bytes is not ASCII
+     */
+    private static int parseHex(byte[] in, int i) {
+        int sign = 1;
+        int start = i;
+        if (in[i] == '-' || in[i] == '+') {
+            sign = in[i] == '-' ? -1 : 1;
+            start++;
+        }
+        int value = 0;
+        for (int j = i; j < i + 4; j++) {
+            if (in[j] < 0) {
+                return NON_ASCII;
+            }
+        }
+        for (int j = start; j < i + 4; j++) {
+            int digit = HEX[in[j]];
+            if (digit < 0) {
+                return INVALID;
+            }
+            value = value * 16 + digit;
+        }
+        return sign * value;
+    }
+
+    /**
+     * @return Length of the well-formed UTF-8 sequence at i, 0 if it is
+     * malformed
+     */
+    private static int sequenceLength(byte[] in, int i, int end) {
+        int b = in[i] & 0xFF;
+        int length;
+        int min = 0x80; //bounds of the second byte
+        int max = 0xBF;
+        if (b >= 0xC2 && b <= 0xDF) {
+            length = 2;
+        } else if (b >= 0xE0 && b <= 0xEF) {
+            length = 3;
+            if (b == 0xE0) {
+                min = 0xA0; //overlong
+            } else if (b == 0xED) {
+                max = 0x9F; //surrogate
+            }
+        } else if (b >= 0xF0 && b <= 0xF4) {
+            length = 4;
+            if (b == 0xF0) {
+                min = 0x90; //overlong
+            } else if (b == 0xF4) {
+                max = 0x8F; //above U+10FFFF
+            }
+        } else {
+            return 0;
+        }
+        if (i + length > end) {
+            return 0;
+        }
+        int second = in[i + 1] & 0xFF;
+        if (second < min || second > max) {
+            return 0;
+        }
+        for (int j = i + 2; j < i + length; j++) {
+            if ((in[j] & 0xC0) != 0x80) {
+                return 0;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Searches in a String for surrogate sequences and replaces the
+     * surrogates with '?'. This is the reference the byte engine behaves
+     * like.
+     *
+     * @param s The String to examine.
+     * @return The sanitized String, null if the line is to be dropped
+     */
+    public static String sanitize(String s) {
+
+        String str = s;
+        int idx = 0;
+        idx = str.indexOf("\\u", idx);
+        while (idx != -1) {
+            if (idx + 6 > str.length()) { //cut off escape
+                return null;
+            }
+            String subsequ = str.substring(idx + 2, idx + 6);
+            int hex = 0;
+            try{
+                hex = Integer.valueOf(subsequ, 16);
+            }catch(NumberFormatException nfe){
+                return null;
+            }
+            if (hex >= 0xD800 && hex <=0xFFFF) {
+                str=str.replace("\\u"+subsequ, "?");
+            }
+            idx = str.indexOf("\\u", idx+1);
+        }
+        return str;
+
+    }
+
+}
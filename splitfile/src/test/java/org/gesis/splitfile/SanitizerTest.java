@@ -0,0 +1,144 @@
+package org.gesis.splitfile;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ * Checks that the byte engine of the Sanitizer treats every line like the
+ * String implementation splitfile used before, replaceUnwantedSequence, which
+ * is copied here as the reference. Lines are read as a BufferedReader reads
+ * them, malformed UTF-8 becomes U+FFFD.
+ *
+ */
+public class SanitizerTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int RANDOM_LINES = 300000;
+
+    /**
+     * The sanitizer of splitfile before the byte engine. A cut-off escape
+     * threw a StringIndexOutOfBoundsException, the line is dropped now.
+     */
+    private static String replaceUnwantedSequence(String s) {
+        String str = s;
+        int idx = 0;
+        idx = str.indexOf("\\u", idx);
+        while (idx != -1) {
+            if (idx + 6 > str.length()) {
+                return null;
+            }
+            String subsequ = str.substring(idx + 2, idx + 6);
+            int hex = 0;
+            try {
+                hex = Integer.valueOf(subsequ, 16);
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+            if (hex >= 0xD800 && hex <= 0xFFFF) {
+                str = str.replace("\\u" + subsequ, "?");
+            }
+            idx = str.indexOf("\\u", idx + 1);
+        }
+        return str;
+    }
+
+    /**
+     * @return The line as the reference writes it, null if it is dropped
+     */
+    private static byte[] expected(byte[] line) {
+        String sanitized = replaceUnwantedSequence(new String(line, UTF8));
+        return sanitized == null ? null : sanitized.getBytes(UTF8);
+    }
+
+    private static byte[] actual(Sanitizer sanitizer, byte[] line) {
+        int length = sanitizer.sanitize(line, 0, line.length);
+        return length == Sanitizer.DROPPED ? null : Arrays.copyOf(sanitizer.getBuffer(), length);
+    }
+
+    private static void check(Sanitizer sanitizer, byte[] line) {
+        byte[] expected = expected(line);
+        byte[] actual = actual(sanitizer, line);
+        if (expected == null) {
+            assertNull(Arrays.toString(line), actual);
+        } else {
+            assertArrayEquals(Arrays.toString(line), expected, actual);
+        }
+    }
+
+    private static void check(Sanitizer sanitizer, String line) {
+        check(sanitizer, line.getBytes(UTF8));
+    }
+
+    @Test
+    public void replacesSurrogates() {
+        Sanitizer sanitizer = new Sanitizer();
+        assertArrayEquals("<s> <p> \"?? x\" .".getBytes(UTF8), actual(sanitizer, "<s> <p> \"\\uD83D\\ude00 x\" .".getBytes(UTF8)));
+        assertArrayEquals("\"\\u00e9\"".getBytes(UTF8), actual(sanitizer, "\"\\u00e9\"".getBytes(UTF8)));
+    }
+
+    @Test
+    public void dropsMalformedEscapes() {
+        Sanitizer sanitizer = new Sanitizer();
+        assertNull(actual(sanitizer, "\"\\uZZ12\"".getBytes(UTF8)));
+        assertNull(actual(sanitizer, "\"\\u12".getBytes(UTF8)));
+    }
+
+    @Test
+    public void signedEscapes() {
+        Sanitizer sanitizer = new Sanitizer();
+        String[] lines = {"\\u-001", "\\u-002", "\\u+041", "\\u-FFF", "\\u0041\u0660\\u-001", "x\\u-001\\uD800", "\\u--01", "\\u+-01"};
+        for (String line : lines) {
+            check(sanitizer, line);
+        }
+        assertEquals("\\u-001", new String(actual(sanitizer, "\\u-001".getBytes(UTF8)), UTF8));
+    }
+
+    @Test
+    public void malformedUTF8() {
+        Sanitizer sanitizer = new Sanitizer();
+        byte[][] lines = {{'a', (byte) 0xC3}, {(byte) 0xED, (byte) 0xA0, (byte) 0x80}, {(byte) 0xF0, (byte) 0x82, (byte) 0x82, (byte) 0xAC},
+            {'\\', 'u', (byte) 0xC3, (byte) 0xA9, '1', '2'}, {(byte) 0xFF, '\\', 'u', 'D', '8', '0', '0'}};
+        for (byte[] line : lines) {
+            check(sanitizer, line);
+        }
+    }
+
+    /**
+     * Random lines built from the pieces that matter: plain text, escapes
+     * with hex digits, signs and other characters, non-ASCII characters,
+     * malformed UTF-8 and cut-off escapes at the end.
+     */
+    @Test
+    public void randomLines() {
+        String[] pieces = {"<http://example.org/r1>", " ", "\"", "a", "\\", "\\u", "\\\\", "\\n", "\u00e9", "\u0660", "\ud83d\ude00",
+            "\\u-00", "\\u+0", "0", "1", "2", "4", "9", "A", "d", "D", "f", "F", "8", "+", "-", "Z", "x", "@de", " ."};
+        byte[][] bytes = new byte[pieces.length][];
+        for (int i = 0; i < pieces.length; i++) {
+            bytes[i] = pieces[i].getBytes(UTF8);
+        }
+        Random random = new Random(42);
+        Sanitizer sanitizer = new Sanitizer();
+        byte[] line = new byte[1 << 10];
+        for (int n = 0; n < RANDOM_LINES; n++) {
+            int length = 0;
+            int count = random.nextInt(40);
+            for (int p = 0; p < count; p++) {
+                byte[] piece;
+                if (random.nextInt(50) == 0) {
+                    piece = new byte[]{(byte) (0x80 + random.nextInt(0x80))};
+                } else {
+                    piece = bytes[random.nextInt(bytes.length)];
+                }
+                System.arraycopy(piece, 0, line, length, piece.length);
+                length += piece.length;
+            }
+            check(sanitizer, Arrays.copyOf(line, length));
+        }
+    }
+
+}
@@ -1,73 +1,423 @@
 package org.gesis.unloadtriplestore;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.gesis.rdfcommons.EndpointClient;
 import org.openrdf.OpenRDFException;
-import org.openrdf.model.Statement;
-import org.openrdf.repository.Repository;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.TupleQueryResult;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.RepositoryException;
-import org.openrdf.repository.sparql.SPARQLRepository;
 
 /**
- * Requests every statement from a SPARQL endpoint and prints it to System.out
- * as NTriples.
+ * Requests every statement from a SPARQL endpoint and prints it to
+ * System.out, a file or a directory of compressed shards as NTriples.
+ * --keyset pages by subject IRI, which leaves out statements with blank node
+ * subjects, so it requires --skip-bnodes and reports how many are left out.
+ * With --quads the named graphs are unloaded instead and written as NQuads,
+ * with --per-graph into shards holding a single graph each. Written pages can
+ * be recorded in a checkpoint journal so an interrupted unloading can be
+ * resumed. With a journal the OFFSET pages are ordered by statement, so a
+ * resumed run requests the same pages. All requestors share a pool of HTTP
+ * connections, queries are limited to --rate per second and retried after
+ * transient failures.
  *
  */
 public class App {
 
-    private static final String USAGE = "Usage: <sparql ep>";
+    private static final String USAGE = "Usage: <sparql ep> [--keyset --skip-bnodes] [--quads] [--threads <n>] [--timeout <seconds>] [--rate <queries/s>] [--retries <n>]"
+            + " [--connect-timeout <seconds>] [--read-timeout <seconds>]"
+            + " [--page-size <rows>] [--min-page-size <rows>] [--max-page-size <rows>] [--target-latency <ms>]"
+            + " [--out <file> | --shards <dir> [--shard-triples <n>] [--shard-bytes <n>] [--compress none|gzip|zstd] [--writers <n>] [--per-graph]]"
+            + " [--checkpoint <journal file>] [--resume]";
     private static final int THREADS = 3;
     private static final int PAGESIZE = 1000;
-    private static final int QCAPACITY = 200000;
+    private static final int MIN_PAGESIZE = 100;
+    private static final int MAX_PAGESIZE = 10000; //the row cap of many public endpoints
+    private static final int TARGET_LATENCY = 2000;
+    private static final int QCAPACITY = 64; //chunks
+    private static final long SHARD_TRIPLES = 10000000;
+    private static final int WRITERS = 2;
+    private static final int RETRIES = 3;
 
     public static void main(String[] args) {
 
         //check input
-        if (args.length != 1) {
+        if (args.length < 1) {
             System.out.println(USAGE);
             return;
         }
-        //check sparql
+        PagingMode mode = PagingMode.OFFSET;
+        boolean skipBnodes = false;
+        boolean quads = false;
+        boolean perGraph = false;
+        int threads = THREADS;
+        int timeout = 0;
+        int connectTimeout = EndpointClient.CONNECT_TIMEOUT;
+        int readTimeout = EndpointClient.READ_TIMEOUT;
+        double rate = 0;
+        int retries = RETRIES;
+        long pageSize = PAGESIZE;
+        long minPageSize = MIN_PAGESIZE;
+        long maxPageSize = MAX_PAGESIZE;
+        long targetLatency = TARGET_LATENCY;
+        File outFile = null;
+        File journalFile = null;
+        boolean resume = false;
+        File shardDir = null;
+        long shardTriples = SHARD_TRIPLES;
+        long shardBytes = 0;
+        Compression compression = Compression.GZIP;
+        int writers = WRITERS;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--keyset")) {
+                    mode = PagingMode.KEYSET;
+                } else if (args[i].equals("--skip-bnodes")) {
+                    skipBnodes = true;
+                } else if (args[i].equals("--quads")) {
+                    quads = true;
+                } else if (args[i].equals("--per-graph")) {
+                    perGraph = true;
+                } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                    threads = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--timeout") && i + 1 < args.length) {
+                    timeout = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--connect-timeout") && i + 1 < args.length) {
+                    connectTimeout = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--read-timeout") && i + 1 < args.length) {
+                    readTimeout = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--rate") && i + 1 < args.length) {
+                    rate = Double.valueOf(args[++i]);
+                } else if (args[i].equals("--retries") && i + 1 < args.length) {
+                    retries = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--page-size") && i + 1 < args.length) {
+                    pageSize = Long.valueOf(args[++i]);
+                } else if (args[i].equals("--min-page-size") && i + 1 < args.length) {
+                    minPageSize = Long.valueOf(args[++i]);
+                } else if (args[i].equals("--max-page-size") && i + 1 < args.length) {
+                    maxPageSize = Long.valueOf(args[++i]);
+                } else if (args[i].equals("--target-latency") && i + 1 < args.length) {
+                    targetLatency = Long.valueOf(args[++i]);
+                } else if (args[i].equals("--out") && i + 1 < args.length) {
+                    outFile = new File(args[++i]);
+                } else if (args[i].equals("--checkpoint") && i + 1 < args.length) {
+                    journalFile = new File(args[++i]);
+                } else if (args[i].equals("--shards") && i + 1 < args.length) {
+                    shardDir = new File(args[++i]);
+                } else if (args[i].equals("--shard-triples") && i + 1 < args.length) {
+                    shardTriples = Long.valueOf(args[++i]);
+                } else if (args[i].equals("--shard-bytes") && i + 1 < args.length) {
+                    shardBytes = Long.valueOf(args[++i]);
+                } else if (args[i].equals("--compress") && i + 1 < args.length) {
+                    compression = Compression.valueOf(args[++i].toUpperCase());
+                } else if (args[i].equals("--writers") && i + 1 < args.length) {
+                    writers = Integer.valueOf(args[++i]);
+                } else if (args[i].equals("--resume")) {
+                    resume = true;
+                } else {
+                    System.out.println(USAGE);
+                    return;
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            System.out.println("Invalid number: " + nfe.getMessage());
+            System.out.println(USAGE);
+            return;
+        } catch (IllegalArgumentException iae) {
+            System.out.println("Unknown compression: " + iae.getMessage());
+            System.out.println(USAGE);
+            return;
+        }
+        if (threads < 1 || timeout < 0 || connectTimeout < 0 || readTimeout < 0 || rate < 0 || retries < 0 || minPageSize < 1 || minPageSize > maxPageSize || targetLatency < 1
+                || shardTriples < 1 || shardBytes < 0 || writers < 1 || (outFile != null && shardDir != null)
+                || (perGraph && (!quads || shardDir == null))) {
+            System.out.println(USAGE);
+            return;
+        }
+        if (mode == PagingMode.KEYSET && !skipBnodes) {
+            System.out.println("Keyset paging leaves out statements with blank node subjects, add --skip-bnodes to accept that.");
+            System.out.println(USAGE);
+            return;
+        }
+        if (resume && ((outFile == null && shardDir == null) || journalFile == null)) {
+            System.out.println("Resuming requires an output file or shard directory and a checkpoint journal.");
+            System.out.println(USAGE);
+            return;
+        }
+        //check sparql, list the graphs to unload
         String sparqlEp = args[0];
-        Repository repo = new SPARQLRepository(sparqlEp);
+        EndpointClient client = new EndpointClient(sparqlEp);
+        client.setMaxConnections(threads);
+        client.setRate(rate);
+        client.setRetries(retries);
+        client.setConnectTimeout(connectTimeout);
+        client.setReadTimeout(readTimeout);
+        client.fitReadTimeout(timeout);
+        Map<String, Long> graphs = null;
         try {
-            repo.initialize();
-            RepositoryConnection con = repo.getConnection();
+            client.initialize();
+            RepositoryConnection con = client.getConnection();
+            if (quads) {
+                graphs = listGraphs(client, con);
+                System.err.println("Graphs " + graphs.size());
+            }
+            if (mode == PagingMode.KEYSET) {
+                System.err.println("Skipping " + countBlankSubjectStatements(client, con, quads) + " statements with blank node subjects");
+            }
             con.close();
         } catch (OpenRDFException e) {
             System.err.println("Unable to connect to: " + sparqlEp + " " + e.getMessage());
             return;
+        } catch (InterruptedException e) {
+            System.err.println(e);
+            return;
+        }
+
+        //open output and journal, on resume cut the output back to the last checkpoint
+        OutputStream outStream = System.out;
+        CheckpointJournal journal = null;
+        ShardSet shards = null;
+        try {
+            if (journalFile != null) {
+                journal = new CheckpointJournal(journalFile, mode, quads, shardDir != null, resume);
+            }
+            if (shardDir != null) {
+                shards = new ShardSet(shardDir, compression, shardTriples, shardBytes);
+                shards.setQuads(quads);
+                shards.setPerGraph(perGraph);
+                if (resume) {
+                    shards.resume(journal);
+                    System.err.println("Resuming after " + journal.getShards().size() + " shards");
+                }
+            } else if (outFile != null && resume) {
+                long committed = journal.getCommittedBytes();
+                if (outFile.length() < committed) {
+                    System.err.println("Output " + outFile.getAbsolutePath() + " is shorter than the checkpoint journal says.");
+                    return;
+                }
+                RandomAccessFile raf = new RandomAccessFile(outFile, "rw");
+                raf.setLength(committed);
+                raf.close();
+                outStream = new FileOutputStream(outFile, true);
+                System.err.println("Resuming after " + journal.getCompletedCount() + " checkpoints at byte " + committed);
+            } else if (outFile != null) {
+                outStream = new FileOutputStream(outFile);
+            }
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            return;
         }
 
         //the unlaoding
+        PageSizeController[] controllers = new PageSizeController[threads];
+        for (int i = 0; i < threads; i++) {
+            controllers[i] = new PageSizeController(pageSize, minPageSize, maxPageSize, targetLatency);
+        }
+        UnloadScheduler scheduler = graphs == null ? new UnloadScheduler(mode, threads) : new UnloadScheduler(mode, threads, graphs);
+        if (journal != null) {
+            scheduler.resume(journal);
+        }
         try {
-            unload(sparqlEp, System.out);
+            if (shards != null) {
+                unload(client, scheduler, timeout, controllers, shards, writers, journal);
+                shards.writeManifest();
+            } else {
+                unload(client, scheduler, timeout, controllers, outStream, journal);
+            }
+            if (journal != null) {
+                journal.close();
+            }
+            if (outFile != null) {
+                outStream.close();
+            }
+            if (client.getRetried() > 0) {
+                System.err.println("Retried queries " + client.getRetried());
+            }
+            client.shutDown();
         } catch (RepositoryException ex) {
             System.err.println(ex);
+        } catch (InterruptedException ex) {
+            System.err.println(ex);
+        } catch (IOException ex) {
+            System.err.println(ex);
         }
 
     }
 
     
     /**
-     * Starts threads to unload the tripplestore behind the SPARQL endpoint.
-     * @param sparqlEp
+     * Starts threads to unload the tripplestore behind the SPARQL endpoint and
+     * waits for them to finish. The requestors share an UnloadScheduler, so
+     * free requestors pick up work instead of following a fixed stride.
+     * Every requestor adapts its own page size. Statistics, including the
+     * chosen page sizes, are printed to System.err afterwards.
+     * @param client Client of the endpoint
+     * @param scheduler Scheduler holding the work, resumed from the journal
+     * if there is one
+     * @param timeout Maximum seconds per query, 0 for no limit
+     * @param controllers One page size controller per requestor
      * @param outStream
+     * @param journal Journal to record written pages in, null for none
      * @throws RepositoryException 
+     * @throws InterruptedException 
      */
-    private static void unload(String sparqlEp, OutputStream outStream) throws RepositoryException {
-        LinkedBlockingQueue<Statement> queue = new LinkedBlockingQueue<Statement>(QCAPACITY);
-        for (int i = 0; i < THREADS; i++) {
-            SPARQLRequestor req = new SPARQLRequestor(sparqlEp, queue);
-            req.setOffset(i * PAGESIZE);
-            req.setLimit(PAGESIZE);
-            req.setSkip(THREADS * PAGESIZE);
-            Thread thread = new Thread(req, "Requestor " + i);
-            thread.start();
-        }
-        NTripleWriter ntWriter = new NTripleWriter(queue, outStream);
-        Thread thread = new Thread(ntWriter);
-        thread.start();
+    private static void unload(EndpointClient client, UnloadScheduler scheduler, int timeout, PageSizeController[] controllers, OutputStream outStream, CheckpointJournal journal) throws RepositoryException, InterruptedException {
+        ChunkRingBuffer ring = new ChunkRingBuffer(QCAPACITY);
+        long start = System.currentTimeMillis();
+        Thread[] requestors = startRequestors(client, timeout, controllers, ring, scheduler, journal != null);
+        NTripleWriter ntWriter = new NTripleWriter(ring, outStream);
+        ntWriter.setJournal(journal);
+        Thread writer = new Thread(ntWriter);
+        writer.start();
+
+        for (Thread thread : requestors) {
+            thread.join();
+        }
+        ring.close(); //end of stream, the writer drains what is left
+        writer.join();
+        if (ntWriter.getLastException() != null) {
+            scheduler.abort(ntWriter.getLastException());
+        }
+        printStatistics(start, scheduler, controllers);
+    }
+
+    /**
+     * Unloads into shards. Like writing a single output, but several
+     * ShardWriters take the chunks and compress their shards in parallel.
+     * @param client Client of the endpoint
+     * @param scheduler Scheduler holding the work, resumed from the journal
+     * if there is one
+     * @param timeout Maximum seconds per query, 0 for no limit
+     * @param controllers One page size controller per requestor
+     * @param shards The shards of the output directory
+     * @param writers Number of ShardWriters
+     * @param journal Journal to record closed shards in, null for none
+     * @throws RepositoryException 
+     * @throws InterruptedException 
+     */
+    private static void unload(EndpointClient client, UnloadScheduler scheduler, int timeout, PageSizeController[] controllers, ShardSet shards, int writers, CheckpointJournal journal) throws RepositoryException, InterruptedException {
+        ChunkRingBuffer ring = new ChunkRingBuffer(QCAPACITY);
+        long start = System.currentTimeMillis();
+        Thread[] requestors = startRequestors(client, timeout, controllers, ring, scheduler, journal != null);
+        ShardWriter[] shardWriters = new ShardWriter[writers];
+        Thread[] writerThreads = new Thread[writers];
+        for (int i = 0; i < writers; i++) {
+            shardWriters[i] = new ShardWriter(ring, shards);
+            shardWriters[i].setJournal(journal);
+            writerThreads[i] = new Thread(shardWriters[i], "Writer " + i);
+            writerThreads[i].start();
+        }
+
+        for (Thread thread : requestors) {
+            thread.join();
+        }
+        ring.close(); //end of stream, the writers drain what is left
+        for (int i = 0; i < writers; i++) {
+            writerThreads[i].join();
+            if (shardWriters[i].getLastException() != null) {
+                scheduler.abort(shardWriters[i].getLastException());
+            }
+        }
+        printStatistics(start, scheduler, controllers);
+        System.err.println("Shards " + shards.getCompleted().size());
+    }
+
+    /**
+     * Lists the named graphs of the store with their number of statements.
+     * @param client
+     * @param con
+     * @return The graphs, largest first
+     * @throws OpenRDFException 
+     * @throws InterruptedException 
+     */
+    private static Map<String, Long> listGraphs(EndpointClient client, RepositoryConnection con) throws OpenRDFException, InterruptedException {
+        String request = "SELECT ?g (COUNT(*) AS ?n) WHERE { GRAPH ?g { ?s ?p ?o } } GROUP BY ?g ORDER BY DESC(?n)";
+        final TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, request);
+        query.setIncludeInferred(false);
+        return client.execute(new EndpointClient.Request<Map<String, Long>>() {
+            @Override
+            public Map<String, Long> run() throws OpenRDFException {
+                LinkedHashMap<String, Long> graphs = new LinkedHashMap<String, Long>();
+                TupleQueryResult result = query.evaluate();
+                try {
+                    while (result.hasNext()) {
+                        BindingSet bindingSet = result.next();
+                        graphs.put(bindingSet.getValue("g").stringValue(), Long.valueOf(bindingSet.getValue("n").stringValue()));
+                    }
+                } finally {
+                    result.close();
+                }
+                return graphs;
+            }
+        });
+    }
+
+    /**
+     * Counts the statements keyset paging leaves out.
+     * @param client
+     * @param con
+     * @param quads Whether the named graphs are unloaded
+     * @return Number of statements with a blank node subject
+     * @throws OpenRDFException 
+     * @throws InterruptedException 
+     */
+    private static long countBlankSubjectStatements(EndpointClient client, RepositoryConnection con, boolean quads) throws OpenRDFException, InterruptedException {
+        String pattern = quads ? "GRAPH ?g { ?s ?p ?o }" : "?s ?p ?o";
+        String request = "SELECT (COUNT(*) AS ?n) WHERE { " + pattern + " FILTER(isBlank(?s)) }";
+        final TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, request);
+        query.setIncludeInferred(false);
+        return client.execute(new EndpointClient.Request<Long>() {
+            @Override
+            public Long run() throws OpenRDFException {
+                TupleQueryResult result = query.evaluate();
+                try {
+                    return result.hasNext() ? Long.valueOf(result.next().getValue("n").stringValue()) : 0L;
+                } finally {
+                    result.close();
+                }
+            }
+        });
+    }
+
+    private static Thread[] startRequestors(EndpointClient client, int timeout, PageSizeController[] controllers, ChunkRingBuffer ring, UnloadScheduler scheduler, boolean ordered) throws RepositoryException {
+        Thread[] requestors = new Thread[controllers.length];
+        for (int i = 0; i < controllers.length; i++) {
+            SPARQLRequestor req = new SPARQLRequestor(client, ring, scheduler, controllers[i]);
+            req.setTimeout(timeout);
+            req.setOrdered(ordered); //a resumed run must find the same pages
+            requestors[i] = new Thread(req, "Requestor " + i);
+            requestors[i].start();
+        }
+        return requestors;
+    }
+
+    private static void printStatistics(long start, UnloadScheduler scheduler, PageSizeController[] controllers) {
+        long seconds = Math.max(1, (System.currentTimeMillis() - start) / 1000);
+        System.err.println("Done.");
+        System.err.println("Statements " + scheduler.getStatements());
+        System.err.println("Pages " + scheduler.getPages());
+        System.err.println("Splits " + scheduler.getSplits());
+        System.err.println("Retries " + scheduler.getRetries());
+        System.err.println("Statements per second " + scheduler.getStatements() / seconds);
+        for (int i = 0; i < controllers.length; i++) {
+            PageSizeController c = controllers[i];
+            System.err.println("Requestor " + i + " pages " + c.getPages()
+                    + ", page size min " + c.getSmallest()
+                    + " avg " + c.getAverage()
+                    + " max " + c.getLargest()
+                    + " last " + c.getSize()
+                    + ", decreases " + c.getDecreases());
+        }
+        if (scheduler.getFailure() != null) {
+            System.err.println("Aborted: " + scheduler.getFailure());
+        }
     }
 }
@@ -0,0 +1,364 @@
+package org.gesis.unloadtriplestore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Journal of the pages that are completely written to the output. Every
+ * record holds the part of the store a page covers and the number of output
+ * bytes committed after it. A record is only appended once the output of its
+ * page is on disk, so after a crash the output can be truncated to the last
+ * record and the unloading continues with the parts not covered yet.
+ *
+ * The first line names the paging mode, every further line is a record:
+ * <pre>
+ * O offset limit rows bytes graph     a page of OFFSET paging
+ * K lowerKey upperKey bytes graph     a completed key range of KEYSET paging
+ * </pre>
+ * Fields are separated by tabs, an empty key stands for no bound, an empty
+ * graph for the default graph.
+ *
+ * When writing shards the header ends with SHARDS and the records of the pages
+ * in a shard are followed by the record of the shard itself:
+ * <pre>
+ * S index file triples bytes compressedBytes graph
+ * </pre>
+ * The bytes of the page records are 0 then. Pages that are not followed by a
+ * shard record were never completed.
+ *
+ */
+public class CheckpointJournal {
+
+    private static final String ENCODING = "UTF-8";
+    private static final String SEPARATOR = "\t";
+    private static final String HEADER = "# unloadtriplestore ";
+
+    private final File file;
+    private final PagingMode mode;
+    private final boolean quads;
+    private final boolean sharded;
+    private FileOutputStream fos = null;
+    private BufferedWriter writer = null;
+
+    //state read from an existing journal
+    private final ArrayList<Partition> completed = new ArrayList<Partition>();
+    private final ArrayList<Shard> shards = new ArrayList<Shard>();
+    private long committedBytes = 0;
+    private final HashMap<String, Long> endOffsets = new HashMap<String, Long>();
+
+    /**
+     * Opens a journal for writing.
+     *
+     * @param file The journal file
+     * @param mode The paging mode of the unloading
+     * @param quads Whether named graphs are unloaded
+     * @param sharded Whether the output is written to shards
+     * @param resume Whether to continue an existing journal, otherwise the
+     * journal is started from scratch
+     * @throws IOException If the journal cannot be read or written or belongs
+     * to another paging mode or output
+     */
+    public CheckpointJournal(File file, PagingMode mode, boolean quads, boolean sharded, boolean resume) throws IOException {
+        this.file = file;
+        this.mode = mode;
+        this.quads = quads;
+        this.sharded = sharded;
+        if (resume && file.length() > 0) {
+            long valid = load();
+            //drop a record that was cut off by the crash
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(valid);
+            raf.close();
+            fos = new FileOutputStream(file, true);
+            writer = new BufferedWriter(new OutputStreamWriter(fos, ENCODING));
+        } else {
+            fos = new FileOutputStream(file);
+            writer = new BufferedWriter(new OutputStreamWriter(fos, ENCODING));
+            writer.write(header() + "\n");
+            sync();
+        }
+    }
+
+    /**
+     * Reads the records of the journal.
+     *
+     * @return Length of the journal up to the last complete record
+     */
+    private long load() throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            String header = br.readLine();
+            if (header == null || !header.equals(header())) {
+                throw new IOException("Checkpoint journal " + file + " does not belong to a " + mode
+                        + (quads ? " quads" : "") + (sharded ? " sharded" : "") + " unloading.");
+            }
+            long valid = header.getBytes(ENCODING).length + 1;
+            long read = valid;
+            ArrayList<Partition> pending = new ArrayList<Partition>(); //pages of a shard not recorded yet
+            long length = file.length();
+            int lineNo = 1;
+            String line = br.readLine();
+            while (line != null) {
+                lineNo++;
+                long end = read + line.getBytes(ENCODING).length + 1;
+                if (end > length) { //no line break, the record is incomplete
+                    break;
+                }
+                String[] fields = line.split(SEPARATOR, -1);
+                try {
+                    if (fields.length == 6 && fields[0].equals("O")) {
+                        long offset = Long.valueOf(fields[1]);
+                        long limit = Long.valueOf(fields[2]);
+                        long rows = Long.valueOf(fields[3]);
+                        Partition page = Partition.page(offset, limit);
+                        page.setRows(rows);
+                        page.setGraph(toKey(fields[5]));
+                        pending.add(page);
+                        committedBytes = Long.valueOf(fields[4]);
+                    } else if (fields.length == 5 && fields[0].equals("K")) {
+                        Partition range = Partition.range(toKey(fields[1]), toKey(fields[2]));
+                        range.setGraph(toKey(fields[4]));
+                        pending.add(range);
+                        committedBytes = Long.valueOf(fields[3]);
+                    } else if (sharded && fields.length == 7 && fields[0].equals("S")) {
+                        Shard shard = new Shard(Integer.valueOf(fields[1]), new File(fields[2]));
+                        shard.setTriples(Long.valueOf(fields[3]));
+                        shard.setBytes(Long.valueOf(fields[4]));
+                        shard.setCompressedBytes(Long.valueOf(fields[5]));
+                        shard.setGraph(toKey(fields[6]));
+                        shards.add(shard);
+                    } else {
+                        throw new IOException("Invalid record in line " + lineNo + " of " + file);
+                    }
+                } catch (NumberFormatException nfe) {
+                    throw new IOException("Invalid record in line " + lineNo + " of " + file);
+                }
+                read = end;
+                if (!sharded || fields[0].equals("S")) {
+                    for (Partition p : pending) {
+                        //pages are only short at the confirmed end of the data
+                        if (!p.isKeyset() && p.getRows() < p.getLimit()) {
+                            Long endOffset = endOffsets.get(p.getGraph());
+                            if (endOffset == null || p.getOffset() + p.getRows() < endOffset) {
+                                endOffsets.put(p.getGraph(), p.getOffset() + p.getRows());
+                            }
+                        }
+                    }
+                    completed.addAll(pending);
+                    pending.clear();
+                    valid = end;
+                }
+                line = br.readLine();
+            }
+            return valid;
+        } finally {
+            br.close();
+        }
+    }
+
+    /**
+     * Appends the record of a written chunk and forces it to disk.
+     *
+     * @param chunk The written chunk
+     * @param bytes Output bytes committed including this chunk
+     * @throws IOException
+     */
+    public synchronized void commit(Chunk chunk, long bytes) throws IOException {
+        writer.write(record(chunk.getCoverage(), bytes));
+        sync();
+    }
+
+    /**
+     * Appends the records of the pages written to a closed shard followed by
+     * the record of the shard and forces them to disk.
+     *
+     * @param shard The closed shard
+     * @throws IOException
+     */
+    public synchronized void commit(Shard shard) throws IOException {
+        for (Partition p : shard.getPages()) {
+            writer.write(record(p, 0));
+        }
+        writer.write("S" + SEPARATOR + shard.getIndex() + SEPARATOR + shard.getFile().getName()
+                + SEPARATOR + shard.getTriples() + SEPARATOR + shard.getBytes() + SEPARATOR + shard.getCompressedBytes()
+                + SEPARATOR + fromKey(shard.getGraph()) + "\n");
+        sync();
+    }
+
+    private static String record(Partition p, long bytes) {
+        if (p.isKeyset()) {
+            return "K" + SEPARATOR + fromKey(p.getLowerKey()) + SEPARATOR + fromKey(p.getUpperKey()) + SEPARATOR + bytes
+                    + SEPARATOR + fromKey(p.getGraph()) + "\n";
+        }
+        return "O" + SEPARATOR + p.getOffset() + SEPARATOR + p.getLimit() + SEPARATOR + p.getRows() + SEPARATOR + bytes
+                + SEPARATOR + fromKey(p.getGraph()) + "\n";
+    }
+
+    private void sync() throws IOException {
+        writer.flush();
+        fos.getChannel().force(false);
+    }
+
+    private String header() {
+        return HEADER + mode.name() + (quads ? " QUADS" : "") + (sharded ? " SHARDS" : "");
+    }
+
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * @return Output bytes committed by the records read on resume
+     */
+    public long getCommittedBytes() {
+        return committedBytes;
+    }
+
+    /**
+     * @return The shards recorded as complete, read on resume
+     */
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    /**
+     * @return Number of records read on resume
+     */
+    public int getCompletedCount() {
+        return completed.size();
+    }
+
+    /**
+     * @param graph The graph, null for the default graph
+     * @return Whether a short page marked the end of the graph on resume
+     */
+    public boolean isEndReached(String graph) {
+        return endOffsets.containsKey(graph);
+    }
+
+    /**
+     * @param graph The graph, null for the default graph
+     * @return The offset behind all completed pages of the graph
+     */
+    public long getNextOffset(String graph) {
+        long next = 0;
+        for (Partition p : completed(graph)) {
+            next = Math.max(next, p.getOffset() + p.getLimit());
+        }
+        return next;
+    }
+
+    /**
+     * Computes the pages of a graph missing below its next offset. These are
+     * the pages that were in progress when the unloading stopped. They only
+     * hold the statements left out if the pages are ordered, which the
+     * requestors do while a journal is kept.
+     *
+     * @param graph The graph, null for the default graph
+     * @return Pages of OFFSET paging still to request
+     */
+    public List<Partition> remainingPages(String graph) {
+        List<Partition> pages = completed(graph);
+        Collections.sort(pages, new Comparator<Partition>() {
+            @Override
+            public int compare(Partition a, Partition b) {
+                return Long.compare(a.getOffset(), b.getOffset());
+            }
+        });
+        Long endOffset = endOffsets.get(graph);
+        ArrayList<Partition> remaining = new ArrayList<Partition>();
+        long covered = 0;
+        for (Partition p : pages) {
+            long gapEnd = endOffset == null ? p.getOffset() : Math.min(p.getOffset(), endOffset);
+            if (gapEnd > covered) {
+                Partition page = Partition.page(covered, gapEnd - covered);
+                page.setGraph(graph);
+                remaining.add(page);
+            }
+            covered = Math.max(covered, p.getOffset() + p.getLimit());
+        }
+        return remaining;
+    }
+
+    /**
+     * Computes the key ranges of a graph not covered by the completed ranges.
+     *
+     * @param graph The graph, null for the default graph
+     * @return Ranges of KEYSET paging still to request
+     */
+    public List<Partition> remainingRanges(String graph) {
+        List<Partition> ranges = completed(graph);
+        Collections.sort(ranges, new Comparator<Partition>() {
+            @Override
+            public int compare(Partition a, Partition b) {
+                return compareLower(a.getLowerKey(), b.getLowerKey());
+            }
+        });
+        ArrayList<Partition> remaining = new ArrayList<Partition>();
+        String covered = null; //everything up to and including this key is done
+        boolean start = true;  //nothing is covered yet
+        for (Partition p : ranges) {
+            if (!start && covered == null) { //covered up to the end
+                break;
+            }
+            if (start ? p.getLowerKey() != null : compareLower(p.getLowerKey(), covered) > 0) {
+                remaining.add(Partition.range(start ? null : covered, p.getLowerKey()));
+            }
+            if (start || p.getUpperKey() == null || p.getUpperKey().compareTo(covered) > 0) {
+                covered = p.getUpperKey();
+            }
+            start = false;
+        }
+        if (start || covered != null) {
+            remaining.add(Partition.range(covered, null));
+        }
+        for (Partition p : remaining) {
+            p.setGraph(graph);
+        }
+        return remaining;
+    }
+
+    /**
+     * @return The completed partitions of a graph
+     */
+    private List<Partition> completed(String graph) {
+        ArrayList<Partition> partitions = new ArrayList<Partition>();
+        for (Partition p : completed) {
+            if (graph == null ? p.getGraph() == null : graph.equals(p.getGraph())) {
+                partitions.add(p);
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Compares lower bounds, null is the lowest.
+     */
+    private static int compareLower(String a, String b) {
+        if (a == null) {
+            return b == null ? 0 : -1;
+        }
+        return b == null ? 1 : a.compareTo(b);
+    }
+
+    private static String fromKey(String key) {
+        return key == null ? "" : key;
+    }
+
+    private static String toKey(String field) {
+        return field.isEmpty() ? null : field;
+    }
+
+}
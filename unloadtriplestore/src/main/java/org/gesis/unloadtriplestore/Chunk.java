@@ -0,0 +1,81 @@
+package org.gesis.unloadtriplestore;
+
+import java.util.Arrays;
+import org.openrdf.model.Value;
+
+/**
+ * A page of statements passed from a SPARQLRequestor to the writer. The terms
+ * of the statements are kept as they come from the result set, without
+ * building statement objects. Chunks are recycled by the ChunkRingBuffer, so
+ * their arrays are allocated once and reused for page after page.
+ *
+ */
+public class Chunk {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private Value[] terms = new Value[3 * INITIAL_CAPACITY]; //subject, predicate, object, subject, ...
+    private int size = 0;
+    private Partition coverage = null;
+
+    /**
+     * Appends a statement.
+     */
+    public void add(Value subject, Value predicate, Value object) {
+        if (3 * size + 3 > terms.length) {
+            terms = Arrays.copyOf(terms, terms.length * 2);
+        }
+        int i = 3 * size;
+        terms[i] = subject;
+        terms[i + 1] = predicate;
+        terms[i + 2] = object;
+        size++;
+    }
+
+    /**
+     * Drops the statements from the given index on.
+     *
+     * @param newSize Number of statements to keep
+     */
+    public void truncate(int newSize) {
+        Arrays.fill(terms, 3 * newSize, 3 * size, null);
+        size = newSize;
+    }
+
+    /**
+     * Empties the chunk for reuse.
+     */
+    public void clear() {
+        truncate(0);
+        coverage = null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Value getSubject(int i) {
+        return terms[3 * i];
+    }
+
+    public Value getPredicate(int i) {
+        return terms[3 * i + 1];
+    }
+
+    public Value getObject(int i) {
+        return terms[3 * i + 2];
+    }
+
+    /**
+     * @return The OFFSET page or the completed key range of KEYSET paging the
+     * chunk covers
+     */
+    public Partition getCoverage() {
+        return coverage;
+    }
+
+    public void setCoverage(Partition coverage) {
+        this.coverage = coverage;
+    }
+
+}
@@ -0,0 +1,144 @@
+package org.gesis.unloadtriplestore;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded ring buffer handing chunks from the requestors to the writer.
+ * Producers block while the ring is full. The end of the stream is signalled
+ * explicitly by close, after which the consumer drains the remaining chunks.
+ * Written chunks are released back to the buffer and handed out again by
+ * acquire.
+ *
+ */
+public class ChunkRingBuffer {
+
+    private final Chunk[] ring;
+    private final ArrayDeque<Chunk> free = new ArrayDeque<Chunk>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int head = 0;  //next chunk to take
+    private int count = 0; //chunks in the ring
+    private boolean closed = false;
+    private boolean aborted = false;
+
+    /**
+     * @param capacity Number of chunks the ring holds
+     */
+    public ChunkRingBuffer(int capacity) {
+        ring = new Chunk[capacity];
+    }
+
+    /**
+     * @return An empty chunk, recycled if possible
+     */
+    public Chunk acquire() {
+        lock.lock();
+        try {
+            Chunk chunk = free.poll();
+            return chunk == null ? new Chunk() : chunk;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a chunk that is no longer needed.
+     */
+    public void release(Chunk chunk) {
+        chunk.clear();
+        lock.lock();
+        try {
+            if (free.size() < ring.length) {
+                free.add(chunk);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Publishes a chunk, blocks while the ring is full.
+     *
+     * @param chunk
+     * @return false if the consumer aborted, the chunk was dropped then
+     * @throws InterruptedException
+     */
+    public boolean put(Chunk chunk) throws InterruptedException {
+        lock.lock();
+        try {
+            while (count == ring.length && !aborted) {
+                notFull.await();
+            }
+            if (aborted) {
+                return false;
+            }
+            if (closed) {
+                throw new IllegalStateException("Ring buffer is closed.");
+            }
+            ring[(head + count) % ring.length] = chunk;
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next chunk, blocks while the ring is empty but not closed.
+     *
+     * @return The next chunk or null at the end of the stream
+     * @throws InterruptedException
+     */
+    public Chunk take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (count == 0 && !closed && !aborted) {
+                notEmpty.await();
+            }
+            if (count == 0 || aborted) {
+                return null;
+            }
+            Chunk chunk = ring[head];
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            count--;
+            notFull.signal();
+            return chunk;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Signals the end of the stream. Called once all producers are done.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the stream from the consumer side, e.g. if the output failed.
+     * Waiting producers return and further chunks are dropped.
+     */
+    public void abort() {
+        lock.lock();
+        try {
+            aborted = true;
+            notFull.signalAll();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
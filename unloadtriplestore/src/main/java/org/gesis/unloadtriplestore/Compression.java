@@ -0,0 +1,51 @@
+package org.gesis.unloadtriplestore;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression applied to output shards.
+ *
+ */
+public enum Compression {
+
+    NONE(""),
+    GZIP(".gz"),
+    ZSTD(".zst");
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String extension;
+
+    private Compression(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * @return File name extension of compressed files, empty for NONE
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Wraps a stream to compress everything written to it.
+     *
+     * @param out The stream receiving the compressed data
+     * @return The compressing stream
+     * @throws IOException
+     */
+    public OutputStream wrap(OutputStream out) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+            case ZSTD:
+                return new ZstdOutputStream(out);
+            default:
+                return out;
+        }
+    }
+
+}
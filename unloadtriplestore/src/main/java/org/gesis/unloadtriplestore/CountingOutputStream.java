@@ -0,0 +1,40 @@
+package org.gesis.unloadtriplestore;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to the underlying stream.
+ *
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+    private long count = 0;
+
+    /**
+     * @param out The underlying stream
+     * @param count Number of bytes the underlying stream already contains
+     */
+    public CountingOutputStream(OutputStream out, long count) {
+        super(out);
+        this.count = count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count += len;
+    }
+
+}
@@ -1,64 +1,109 @@
 package org.gesis.unloadtriplestore;
 
 import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.openrdf.model.Statement;
-import org.openrdf.model.Value;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.rio.ntriples.NTriplesUtil;
 
 /**
- * Implementation of Runnable, reads statements from a queue and writes them to
- * System.out as NTriples.
+ * Implementation of Runnable, takes chunks from a ChunkRingBuffer and writes
+ * their statements to an OutputStream as NTriples, or as NQuads for chunks of a
+ * named graph. Every chunk is written as a
+ * whole and flushed once. If a CheckpointJournal is set, the chunk is recorded
+ * in the journal once it reached the disk. The writer stops when the ring
+ * buffer signals the end of the stream.
  *
  */
 public class NTripleWriter implements Runnable {
 
-    private LinkedBlockingQueue<Statement> queue = null;
+    private ChunkRingBuffer ring = null;
     private OutputStream outStream = null;
+    private CheckpointJournal journal = null;
     private static final String ENCODING = "UTF-8";
     private Exception lastException = null;
 
-    public NTripleWriter(LinkedBlockingQueue<Statement> q, OutputStream outStream) {
-        this.queue = q;
+    public NTripleWriter(ChunkRingBuffer ring, OutputStream outStream) {
+        this.ring = ring;
         this.outStream = outStream;
     }
 
+    public CheckpointJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @param journal Journal to record written chunks in. The output stream
+     * must continue right behind the bytes committed in the journal.
+     */
+    public void setJournal(CheckpointJournal journal) {
+        this.journal = journal;
+    }
+
     public Exception getLastException() {
         return lastException;
     }
 
+    /**
+     * Writes the statements of a chunk as NTriples lines. If the chunk covers a
+     * named graph the graph is appended, which makes them NQuads lines. Terms
+     * are serialized like the Rio NTriples writer does, including escapes,
+     * datatypes and language tags, but without building statements.
+     *
+     * @param chunk
+     * @param writer
+     * @throws IOException
+     */
+    public static void write(Chunk chunk, BufferedWriter writer) throws IOException {
+        String graph = chunk.getCoverage() == null ? null : chunk.getCoverage().getGraph();
+        String end = graph == null ? " ." : " " + NTriplesUtil.toNTriplesString(new URIImpl(graph)) + " .";
+        for (int i = 0; i < chunk.size(); i++) {
+            NTriplesUtil.append(chunk.getSubject(i), writer);
+            writer.write(' ');
+            NTriplesUtil.append(chunk.getPredicate(i), writer);
+            writer.write(' ');
+            NTriplesUtil.append(chunk.getObject(i), writer);
+            writer.write(end);
+            writer.newLine();
+        }
+    }
+
     @Override
     public void run() {
         try {
-            BufferedWriter bWriter = new BufferedWriter(new OutputStreamWriter(outStream, ENCODING));
-            Statement stmt = queue.poll(10, TimeUnit.SECONDS);
-            while (stmt != null) {
-                bWriter.write("<" + stmt.getSubject().stringValue() + "> ");
-                bWriter.write("<" + stmt.getPredicate().stringValue() + "> ");
-                Value object = stmt.getObject();
-                if (object instanceof org.openrdf.model.Literal) {
-                    bWriter.write("\"" + object.stringValue() + "\" ");
-                } else {
-                    bWriter.write("<" + object.stringValue() + "> ");
-                }
-                bWriter.write(".");
-                bWriter.newLine();
+            long committed = journal == null ? 0 : journal.getCommittedBytes();
+            CountingOutputStream cos = new CountingOutputStream(outStream, committed);
+            BufferedWriter bWriter = new BufferedWriter(new OutputStreamWriter(cos, ENCODING), 1 << 16);
+            Chunk chunk = ring.take();
+            while (chunk != null) {
+                write(chunk, bWriter);
                 bWriter.flush();
+                if (journal != null) {
+                    if (outStream instanceof FileOutputStream) {
+                        ((FileOutputStream) outStream).getChannel().force(false);
+                    }
+                    journal.commit(chunk, cos.getCount());
+                }
+                ring.release(chunk);
 
-                stmt = queue.poll(10, TimeUnit.SECONDS);
+                chunk = ring.take();
             }
 
         } catch (UnsupportedEncodingException ex) {
             lastException = ex;
+            ring.abort();
         } catch (InterruptedException ex) {
+            lastException = ex;
+            ring.abort();
             Logger.getLogger(NTripleWriter.class.getName()).log(Level.SEVERE, null, ex);
         } catch (IOException ex) {
+            lastException = ex;
+            ring.abort();
             Logger.getLogger(NTripleWriter.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
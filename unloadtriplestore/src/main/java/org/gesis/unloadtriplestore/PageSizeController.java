@@ -0,0 +1,124 @@
+package org.gesis.unloadtriplestore;
+
+/**
+ * Chooses the page size of a SPARQLRequestor. The size grows additively as
+ * long as full pages come back within the target latency and is halved when a
+ * page is too slow or fails (AIMD). A page the endpoint cut short, e.g. by a
+ * result row cap, lowers the upper bound to the rows it returned. The chosen
+ * sizes are recorded for the final statistics.
+ *
+ */
+public class PageSizeController {
+
+    private long minSize;
+    private long maxSize;
+    private final long increment;
+    private final long targetMillis;
+    private long size;
+
+    //statistics
+    private long pages = 0;
+    private long sizeSum = 0;
+    private long smallest = Long.MAX_VALUE;
+    private long largest = 0;
+    private long decreases = 0;
+
+    /**
+     * @param initialSize Page size to start with, also the additive increment
+     * @param minSize Lower bound of the page size
+     * @param maxSize Upper bound of the page size
+     * @param targetMillis Response time a page should not exceed
+     */
+    public PageSizeController(long initialSize, long minSize, long maxSize, long targetMillis) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.increment = initialSize;
+        this.targetMillis = targetMillis;
+        this.size = Math.max(minSize, Math.min(maxSize, initialSize));
+    }
+
+    /**
+     * @return The size to use for the next page
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Adapts the size to a successfully requested page.
+     *
+     * @param limit The size the page was requested with
+     * @param rows Number of rows the page returned
+     * @param millis Time the page took
+     */
+    public void success(long limit, long rows, long millis) {
+        record(limit);
+        if (millis > targetMillis) {
+            decrease();
+        } else if (rows >= limit) { //only full pages tell whether more fits
+            size = Math.min(maxSize, size + increment);
+        }
+    }
+
+    /**
+     * Adapts the size to a failed page.
+     *
+     * @param limit The size the page was requested with
+     */
+    public void failure(long limit) {
+        record(limit);
+        decrease();
+    }
+
+    /**
+     * Lowers the upper bound to a page that returned fewer rows than requested
+     * although more data followed.
+     *
+     * @param rows Number of rows the page returned
+     */
+    public void capped(long rows) {
+        maxSize = Math.max(1, Math.min(maxSize, rows));
+        minSize = Math.min(minSize, maxSize);
+        size = Math.min(size, maxSize);
+    }
+
+    /**
+     * @return The current upper bound of the page size
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    private void decrease() {
+        size = Math.max(minSize, size / 2);
+        decreases++;
+    }
+
+    private void record(long limit) {
+        pages++;
+        sizeSum += limit;
+        smallest = Math.min(smallest, limit);
+        largest = Math.max(largest, limit);
+    }
+
+    public long getPages() {
+        return pages;
+    }
+
+    public long getSmallest() {
+        return pages == 0 ? 0 : smallest;
+    }
+
+    public long getLargest() {
+        return largest;
+    }
+
+    public long getAverage() {
+        return pages == 0 ? 0 : sizeSum / pages;
+    }
+
+    public long getDecreases() {
+        return decreases;
+    }
+
+}
@@ -0,0 +1,21 @@
+package org.gesis.unloadtriplestore;
+
+/**
+ * The ways a SPARQLRequestor can walk through the triplestore.
+ *
+ */
+public enum PagingMode {
+
+    /**
+     * Classic OFFSET/LIMIT paging. Every page makes the store skip over all
+     * rows before it, so deep pages get slower and slower.
+     */
+    OFFSET,
+    /**
+     * Keyset paging over the subject IRIs. Every page continues after the last
+     * subject seen, so each page costs about the same no matter how deep it
+     * is. Only statements with IRI subjects are unloaded in this mode, hence
+     * it has to be chosen together with --skip-bnodes.
+     */
+    KEYSET
+}
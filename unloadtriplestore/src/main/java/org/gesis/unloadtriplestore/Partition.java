@@ -0,0 +1,117 @@
+package org.gesis.unloadtriplestore;
+
+/**
+ * A unit of work handed out by the UnloadScheduler. In OFFSET mode a partition
+ * is a single page, in KEYSET mode it is a range of subject keys that is
+ * unloaded page by page. When unloading quads every partition belongs to one
+ * named graph.
+ *
+ */
+public class Partition {
+
+    private long offset = 0;
+    private long limit = 0;
+    private String lowerKey = null;
+    private String upperKey = null;
+    private boolean keyset = false;
+    private int attempts = 0;
+    private long rows = 0;
+    private String graph = null;
+
+    /**
+     * Creates a page for OFFSET/LIMIT paging.
+     *
+     * @param offset First row of the page
+     * @param limit Number of rows of the page
+     * @return The new partition
+     */
+    public static Partition page(long offset, long limit) {
+        Partition p = new Partition();
+        p.offset = offset;
+        p.limit = limit;
+        return p;
+    }
+
+    /**
+     * Creates a range of subject keys for keyset paging.
+     *
+     * @param lowerKey Exclusive lower bound, null for no bound
+     * @param upperKey Inclusive upper bound, null for no bound
+     * @return The new partition
+     */
+    public static Partition range(String lowerKey, String upperKey) {
+        Partition p = new Partition();
+        p.lowerKey = lowerKey;
+        p.upperKey = upperKey;
+        p.keyset = true;
+        return p;
+    }
+
+    public boolean isKeyset() {
+        return keyset;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public String getLowerKey() {
+        return lowerKey;
+    }
+
+    public void setLowerKey(String lowerKey) {
+        this.lowerKey = lowerKey;
+    }
+
+    public String getUpperKey() {
+        return upperKey;
+    }
+
+    public void setUpperKey(String upperKey) {
+        this.upperKey = upperKey;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * @return Number of rows the query of a completed page returned
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    public void setRows(long rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * @return IRI of the named graph, null for the default graph
+     */
+    public String getGraph() {
+        return graph;
+    }
+
+    public void setGraph(String graph) {
+        this.graph = graph;
+    }
+
+    @Override
+    public String toString() {
+        String prefix = graph == null ? "" : "<" + graph + "> ";
+        if (keyset) {
+            return prefix + "(" + lowerKey + ", " + upperKey + "]";
+        }
+        return prefix + "[" + offset + ", " + (offset + limit) + ")";
+    }
+
+}
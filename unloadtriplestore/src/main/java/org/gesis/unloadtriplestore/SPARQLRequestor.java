@@ -1,102 +1,103 @@
 package org.gesis.unloadtriplestore;
 
-import java.util.concurrent.LinkedBlockingQueue;
-import org.openrdf.model.Statement;
+import org.gesis.rdfcommons.EndpointClient;
+import org.openrdf.OpenRDFException;
 import org.openrdf.model.Value;
-import org.openrdf.model.impl.StatementImpl;
-import org.openrdf.model.impl.URIImpl;
 import org.openrdf.query.BindingSet;
-import org.openrdf.query.MalformedQueryException;
 import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.QueryLanguage;
 import org.openrdf.query.TupleQuery;
 import org.openrdf.query.TupleQueryResult;
-import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.RepositoryException;
-import org.openrdf.repository.sparql.SPARQLRepository;
 
 /**
- * Request statements in the given range from a SPARQL endpoint. It is designed
- * to cooperate with other SPARQLRequestors.
+ * Requests statements from a SPARQL endpoint. The partitions to request are
+ * taken from an UnloadScheduler shared with other SPARQLRequestors.
+ * Statements are collected in a Chunk and published to the ChunkRingBuffer
+ * once a page is complete, so a failed partition can be re-issued without
+ * duplicating statements. The size of every page is chosen by a
+ * PageSizeController from the response times observed so far. Results are
+ * requested in the binary format where the endpoint supports it, through an
+ * EndpointClient shared with the other requestors.
  *
  */
 public class SPARQLRequestor implements Runnable {
 
+    private EndpointClient client = null;
     private RepositoryConnection con = null;
-    private LinkedBlockingQueue<Statement> queue = null;
-    private long offset = 0;
-    private long limit = -1;
-    private long skip = 0;
+    private ChunkRingBuffer ring = null;
+    private UnloadScheduler scheduler = null;
+    private PageSizeController pageSize = null;
+    private int timeout = 0;
+    private boolean ordered = false;
     private Exception lastException = null;
 
-    public SPARQLRequestor(String sparqlEp, LinkedBlockingQueue<Statement> q) throws RepositoryException {
-        this.queue = q;
-        Repository repo = new SPARQLRepository(sparqlEp);
-        repo.initialize();
-        con = repo.getConnection();
+    public SPARQLRequestor(EndpointClient client, ChunkRingBuffer ring, UnloadScheduler scheduler, PageSizeController pageSize) throws RepositoryException {
+        this.client = client;
+        this.ring = ring;
+        this.scheduler = scheduler;
+        this.pageSize = pageSize;
+        con = client.getConnection();
     }
 
-    public long getOffset() {
-        return offset;
+    public int getTimeout() {
+        return timeout;
     }
 
-    public void setOffset(long offset) {
-        this.offset = offset;
+    /**
+     * @param timeout Maximum time in seconds a single query may take, 0 for no
+     * limit. Queries running longer fail and their partition is re-issued.
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
     }
 
-    public long getLimit() {
-        return limit;
+    public boolean isOrdered() {
+        return ordered;
     }
 
-    public void setLimit(long limit) {
-        this.limit = limit;
+    /**
+     * @param ordered Whether OFFSET pages are ordered by statement, so a page
+     * requested again, e.g. when resuming from a journal, holds the same
+     * statements even if the endpoint does not return them in a stable order.
+     * Sorting makes every page more expensive.
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
     }
 
-    public long getSkip() {
-        return skip;
-    }
-
-    public void setSkip(long skip) {
-        this.skip = skip;
+    public PageSizeController getPageSizeController() {
+        return pageSize;
     }
 
     public Exception getLastException() {
         return lastException;
     }
-    
-    
 
     @Override
     public void run() {
-        int cnt = 1;
         try {
-            while (cnt > 0) {
-                String request = "SELECT ?s ?p ?o WHERE { ?s ?p ?o } OFFSET " + offset + " LIMIT " + limit;
-
-                cnt = 0;
-                TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, request);
-                query.setIncludeInferred(false);
-                TupleQueryResult result = query.evaluate();
-                while (result.hasNext()) {
-                    cnt++;
-                    BindingSet bindingSet = result.next();
-                    Value subject = bindingSet.getValue("s");
-                    Value predicate = bindingSet.getValue("p");
-                    Value object = bindingSet.getValue("o");
-                    Statement stmt = new StatementImpl(new URIImpl(subject.stringValue()), new URIImpl(predicate.stringValue()), object);
-                    queue.put(stmt);
+            Partition p = scheduler.take(pageSize.getSize());
+            while (p != null) {
+                try {
+                    if (p.isKeyset()) {
+                        unloadRange(p);
+                    } else {
+                        unloadPage(p);
+                    }
+                } catch (OpenRDFException ex) {
+                    lastException = ex;
+                    scheduler.failed(p, ex);
                 }
-                offset += skip;
+                p = scheduler.take(pageSize.getSize());
             }
-        } catch (QueryEvaluationException ex) {
-            lastException = ex;
-        } catch (RepositoryException ex) {
-            lastException = ex;
-        } catch (MalformedQueryException ex) {
-            lastException = ex;
         } catch (InterruptedException ex) {
             lastException = ex;
+            scheduler.abort(ex);
+        } catch (RuntimeException ex) { //the others would wait for this requestor forever
+            lastException = ex;
+            scheduler.abort(ex);
         } finally {
             try {
                 con.close();
@@ -106,4 +107,241 @@ public class SPARQLRequestor implements Runnable {
         }
     }
 
+    /**
+     * Requests a single OFFSET/LIMIT page. Fewer rows than requested are only
+     * the end of the data if nothing follows them. Otherwise the endpoint cut
+     * the page short, e.g. by a result row cap, so the rest of the page is
+     * requested as well and the page size is kept below the cap.
+     *
+     * @param p The page
+     */
+    private void unloadPage(Partition p) throws OpenRDFException, InterruptedException {
+        Chunk chunk = ring.acquire();
+        long start = System.currentTimeMillis();
+        try {
+            long got = requestRows(p.getGraph(), p.getOffset(), p.getLimit(), chunk);
+            long read = got;
+            while (got > 0 && read < p.getLimit()) { //cut short or the end, the rows behind tell
+                long cut = got;
+                got = requestRows(p.getGraph(), p.getOffset() + read, p.getLimit() - read, chunk);
+                if (got > 0) {
+                    pageSize.capped(cut);
+                }
+                read += got;
+            }
+        } catch (QueryEvaluationException ex) {
+            pageSize.failure(p.getLimit());
+            ring.release(chunk);
+            throw ex;
+        } catch (OpenRDFException ex) {
+            ring.release(chunk);
+            throw ex;
+        } catch (RuntimeException ex) {
+            ring.release(chunk);
+            throw ex;
+        }
+        long rows = chunk.size();
+        pageSize.success(p.getLimit(), rows, System.currentTimeMillis() - start);
+        p.setRows(rows);
+        chunk.setCoverage(p);
+        publish(chunk);
+        scheduler.pageDone(p, rows, rows);
+    }
+
+    /**
+     * Adds the rows of an OFFSET/LIMIT query to a chunk.
+     *
+     * @return Number of rows returned
+     */
+    private long requestRows(String graph, long offset, long limit, Chunk chunk) throws OpenRDFException, InterruptedException {
+        String request = "SELECT ?s ?p ?o WHERE { " + pattern(graph, "?s") + " }"
+                + (ordered ? " ORDER BY ?s ?p ?o" : "") + " OFFSET " + offset + " LIMIT " + limit;
+        long rows = 0;
+        TupleQueryResult result = evaluate(request);
+        try {
+            while (result.hasNext()) {
+                BindingSet bindingSet = result.next();
+                chunk.add(bindingSet.getValue("s"), bindingSet.getValue("p"), bindingSet.getValue("o"));
+                rows++;
+            }
+        } finally {
+            result.close(); //returns the connection to the pool
+        }
+        return rows;
+    }
+
+    /**
+     * Pages through a range of subjects. Every page continues after the last
+     * subject that was completely read, so the store never has to skip rows.
+     * The statements of the last subject of a page may be cut off by the
+     * LIMIT or by a result row cap of the endpoint, hence that subject is
+     * dropped from the chunk and requested again with the next page. A
+     * subject that makes up a whole page on its own is requested separately.
+     * The range is complete once a page comes back empty. A short page
+     * followed by further subjects was cut by the endpoint, which keeps the
+     * page size below the cap. Every page is published together with the key
+     * range it completed, after that the remaining range is offered for
+     * splitting.
+     *
+     * @param p The key range, its lower key follows the completed subjects
+     */
+    private void unloadRange(Partition p) throws OpenRDFException, InterruptedException {
+        long rows = -1;
+        long cut = 0;          //rows of the previous page if it was short
+        String cutKey = null;  //its last subject, requested again
+        while (rows != 0) {
+            long limit = pageSize.getSize();
+            String request = "SELECT ?s ?p ?o WHERE { " + pattern(p.getGraph(), "?s") + " FILTER(isIRI(?s)";
+            if (p.getLowerKey() != null) {
+                request += " && STR(?s) > " + toLiteral(p.getLowerKey());
+            }
+            if (p.getUpperKey() != null) {
+                request += " && STR(?s) <= " + toLiteral(p.getUpperKey());
+            }
+            request += ") } ORDER BY STR(?s) LIMIT " + limit;
+
+            rows = 0;
+            Chunk chunk = ring.acquire();
+            Value pendingSubject = null; //subject of the statements behind completedSize
+            String pendingKey = null;
+            String completedKey = null;  //last subject completed in this page
+            int completedSize = 0;       //statements of the completed subjects
+            boolean beyond = false;      //subjects behind the last one of a short page
+            long start = System.currentTimeMillis();
+            try {
+                TupleQueryResult result = evaluate(request);
+                try {
+                    while (result.hasNext()) {
+                        rows++;
+                        BindingSet bindingSet = result.next();
+                        Value subject = bindingSet.getValue("s");
+                        String key = subject.stringValue();
+                        if (!key.equals(pendingKey)) {
+                            completedSize = chunk.size();
+                            completedKey = pendingKey;
+                            pendingKey = key;
+                            pendingSubject = subject;
+                            beyond |= cutKey != null && !key.equals(cutKey);
+                        }
+                        chunk.add(subject, bindingSet.getValue("p"), bindingSet.getValue("o"));
+                    }
+                } finally {
+                    result.close(); //returns the connection to the pool
+                }
+                pageSize.success(limit, rows, System.currentTimeMillis() - start);
+                if (beyond) {
+                    pageSize.capped(cut);
+                }
+                if (rows > 0 && completedKey == null) { //one subject made up the whole page
+                    chunk.truncate(0);
+                    requestSubject(p.getGraph(), pendingSubject, chunk);
+                }
+            } catch (QueryEvaluationException ex) {
+                pageSize.failure(limit);
+                ring.release(chunk);
+                throw ex;
+            } catch (OpenRDFException ex) {
+                ring.release(chunk);
+                throw ex;
+            } catch (RuntimeException ex) {
+                ring.release(chunk);
+                throw ex;
+            }
+
+            String lowerKey = p.getLowerKey();
+            if (rows == 0) { //nothing left in the range
+                completedKey = p.getUpperKey();
+            } else if (completedKey == null) { //the separately requested subject
+                completedKey = pendingKey;
+            } else { //drop the possibly truncated last subject
+                chunk.truncate(completedSize);
+            }
+            cut = rows < limit ? rows : 0;
+            cutKey = rows > 0 && rows < limit ? pendingKey : null;
+            long cnt = chunk.size();
+            Partition coverage = Partition.range(lowerKey, completedKey);
+            coverage.setRows(rows);
+            coverage.setGraph(p.getGraph());
+            chunk.setCoverage(coverage);
+            publish(chunk);
+            p.setLowerKey(completedKey);
+            scheduler.pageDone(p, rows, cnt);
+            if (rows > 0) {
+                scheduler.split(p);
+            }
+        }
+    }
+
+    /**
+     * Requests all statements of a single subject.
+     *
+     * @param graph The graph, null for the default graph
+     * @param subject The subject IRI
+     * @param chunk Chunk to add the statements to
+     */
+    private void requestSubject(String graph, Value subject, Chunk chunk) throws OpenRDFException, InterruptedException {
+        String request = "SELECT ?p ?o WHERE { " + pattern(graph, "<" + subject.stringValue() + ">") + " }";
+        TupleQueryResult result = evaluate(request);
+        try {
+            while (result.hasNext()) {
+                BindingSet bindingSet = result.next();
+                chunk.add(subject, bindingSet.getValue("p"), bindingSet.getValue("o"));
+            }
+        } finally {
+            result.close();
+        }
+    }
+
+    /**
+     * Hands a complete chunk over to the writer.
+     */
+    private void publish(Chunk chunk) throws InterruptedException {
+        if (!ring.put(chunk)) {
+            throw new InterruptedException("The writer stopped.");
+        }
+    }
+
+    /**
+     * Sends a query through the client. Only sending it is retried, a
+     * failure while reading the result fails the partition.
+     */
+    private TupleQueryResult evaluate(String request) throws OpenRDFException, InterruptedException {
+        final TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, request);
+        query.setIncludeInferred(false);
+        if (timeout > 0) {
+            query.setMaxExecutionTime(timeout);
+        }
+        return client.execute(new EndpointClient.Request<TupleQueryResult>() {
+            @Override
+            public TupleQueryResult run() throws OpenRDFException {
+                return query.evaluate();
+            }
+        });
+    }
+
+    /**
+     * Builds the triple pattern of a request.
+     *
+     * @param graph The graph to match in, null for the default graph
+     * @param subject Subject variable or IRI
+     * @return The pattern
+     */
+    private static String pattern(String graph, String subject) {
+        String pattern = subject + " ?p ?o";
+        if (graph == null) {
+            return pattern;
+        }
+        return "GRAPH <" + graph + "> { " + pattern + " }";
+    }
+
+    /**
+     * Turns a key into a SPARQL string literal.
+     *
+     * @param key
+     * @return The quoted and escaped key
+     */
+    private static String toLiteral(String key) {
+        return "\"" + key.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
 }
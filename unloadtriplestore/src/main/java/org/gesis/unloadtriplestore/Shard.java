@@ -0,0 +1,150 @@
+package org.gesis.unloadtriplestore;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One output file of a sharded unloading. A shard counts the triples and the
+ * uncompressed bytes written to it, which decide when the next shard is
+ * started, and the pages it covers.
+ *
+ */
+public class Shard {
+
+    private static final String ENCODING = "UTF-8";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final int index;
+    private final File file;
+    private long triples = 0;
+    private long bytes = 0;
+    private long compressedBytes = 0;
+    private String graph = null;
+    private final ArrayList<Partition> pages = new ArrayList<Partition>();
+    private CountingOutputStream cos = null;
+    private BufferedWriter writer = null;
+
+    /**
+     * @param index Number of the shard
+     * @param file The shard file
+     */
+    public Shard(int index, File file) {
+        this.index = index;
+        this.file = file;
+    }
+
+    /**
+     * Creates the shard file.
+     *
+     * @param compression Compression to apply
+     * @throws IOException
+     */
+    public void open(Compression compression) throws IOException {
+        final FileOutputStream fos = new FileOutputStream(file);
+        //the compressors finish on close, so the file is forced to disk right before it is closed
+        FilterOutputStream forcing = new FilterOutputStream(fos) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                fos.flush();
+                fos.getChannel().force(false);
+                fos.close();
+            }
+        };
+        cos = new CountingOutputStream(compression.wrap(new BufferedOutputStream(forcing, BUFFER_SIZE)), 0);
+        writer = new BufferedWriter(new OutputStreamWriter(cos, ENCODING), BUFFER_SIZE);
+    }
+
+    /**
+     * Appends the statements of a chunk.
+     *
+     * @param chunk
+     * @throws IOException
+     */
+    public void write(Chunk chunk) throws IOException {
+        NTripleWriter.write(chunk, writer);
+        writer.flush();
+        triples += chunk.size();
+        bytes = cos.getCount();
+        pages.add(chunk.getCoverage());
+    }
+
+    /**
+     * Finishes the compression and closes the file once it is on disk.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        writer.close();
+        compressedBytes = file.length();
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return IRI of the named graph if the shard holds a single graph, null
+     * otherwise
+     */
+    public String getGraph() {
+        return graph;
+    }
+
+    public void setGraph(String graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * @return The pages written to the shard
+     */
+    public List<Partition> getPages() {
+        return pages;
+    }
+
+    public long getTriples() {
+        return triples;
+    }
+
+    public void setTriples(long triples) {
+        this.triples = triples;
+    }
+
+    /**
+     * @return Uncompressed bytes written to the shard
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return Size of the closed shard file
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    public void setCompressedBytes(long compressedBytes) {
+        this.compressedBytes = compressedBytes;
+    }
+
+}
@@ -0,0 +1,177 @@
+package org.gesis.unloadtriplestore;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The shards of an output directory. Hands out numbered shard files to the
+ * ShardWriters, collects the completed ones and writes the manifest listing
+ * them, so a loader can pick up the shards in parallel. When unloading quads
+ * per graph, every shard holds the statements of a single named graph.
+ *
+ */
+public class ShardSet {
+
+    public static final String MANIFEST = "manifest.tsv";
+    private static final String PREFIX = "part-";
+    private static final String NTRIPLES = ".nt";
+    private static final String NQUADS = ".nq";
+    private static final String ENCODING = "UTF-8";
+
+    private final File dir;
+    private final Compression compression;
+    private final long maxTriples;
+    private final long maxBytes;
+    private final ArrayList<Shard> completed = new ArrayList<Shard>();
+    private int nextIndex = 0;
+    private boolean quads = false;
+    private boolean perGraph = false;
+
+    /**
+     * @param dir Output directory, created if missing
+     * @param compression Compression of the shard files
+     * @param maxTriples Triples after which a shard is closed
+     * @param maxBytes Uncompressed bytes after which a shard is closed, 0 for
+     * no limit
+     * @throws IOException If the directory cannot be created
+     */
+    public ShardSet(File dir, Compression compression, long maxTriples, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.compression = compression;
+        this.maxTriples = maxTriples;
+        this.maxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Takes over the shards a checkpoint journal recorded as complete. Shard
+     * files not in the journal were cut off by the crash and are deleted.
+     *
+     * @param journal A journal opened for resuming
+     * @throws IOException If a recorded shard is missing or a stray shard
+     * cannot be deleted
+     */
+    public synchronized void resume(CheckpointJournal journal) throws IOException {
+        HashSet<String> kept = new HashSet<String>();
+        for (Shard shard : journal.getShards()) {
+            File file = new File(dir, shard.getFile().getName());
+            if (file.length() != shard.getCompressedBytes()) {
+                throw new IOException("Shard " + file.getAbsolutePath() + " does not match the checkpoint journal.");
+            }
+            Shard s = new Shard(shard.getIndex(), file);
+            s.setTriples(shard.getTriples());
+            s.setBytes(shard.getBytes());
+            s.setCompressedBytes(shard.getCompressedBytes());
+            s.setGraph(shard.getGraph());
+            completed.add(s);
+            kept.add(file.getName());
+            nextIndex = Math.max(nextIndex, shard.getIndex() + 1);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(PREFIX) && !kept.contains(file.getName()) && !file.delete()) {
+                    throw new IOException("Unable to delete " + file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param graph The graph of the shard if shards are written per graph
+     * @return A new, not yet opened shard
+     */
+    public synchronized Shard create(String graph) {
+        int index = nextIndex++;
+        String extension = quads ? NQUADS : NTRIPLES;
+        Shard shard = new Shard(index, new File(dir, String.format("%s%05d%s%s", PREFIX, index, extension, compression.getExtension())));
+        shard.setGraph(graph);
+        return shard;
+    }
+
+    /**
+     * Records a closed shard for the manifest.
+     */
+    public synchronized void completed(Shard shard) {
+        completed.add(shard);
+    }
+
+    /**
+     * Writes the manifest, one line per shard with its file name, triples,
+     * uncompressed bytes, file size and the graph it holds if written per
+     * graph.
+     *
+     * @return The manifest file
+     * @throws IOException
+     */
+    public synchronized File writeManifest() throws IOException {
+        ArrayList<Shard> shards = new ArrayList<Shard>(completed);
+        Collections.sort(shards, new Comparator<Shard>() {
+            @Override
+            public int compare(Shard a, Shard b) {
+                return Integer.compare(a.getIndex(), b.getIndex());
+            }
+        });
+        File manifest = new File(dir, MANIFEST);
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifest), ENCODING));
+        try {
+            writer.write("file\ttriples\tbytes\tcompressed_bytes\tgraph\n");
+            for (Shard shard : shards) {
+                writer.write(shard.getFile().getName() + "\t" + shard.getTriples() + "\t" + shard.getBytes() + "\t" + shard.getCompressedBytes()
+                        + "\t" + (shard.getGraph() == null ? "" : shard.getGraph()) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        return manifest;
+    }
+
+    public boolean isQuads() {
+        return quads;
+    }
+
+    /**
+     * @param quads Whether the shards hold N-Quads
+     */
+    public void setQuads(boolean quads) {
+        this.quads = quads;
+    }
+
+    public boolean isPerGraph() {
+        return perGraph;
+    }
+
+    /**
+     * @param perGraph Whether every shard holds a single named graph
+     */
+    public void setPerGraph(boolean perGraph) {
+        this.perGraph = perGraph;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param shard An open shard
+     * @return Whether the shard reached one of the limits
+     */
+    public boolean isFull(Shard shard) {
+        return shard.getTriples() >= maxTriples || (maxBytes > 0 && shard.getBytes() >= maxBytes);
+    }
+
+    public synchronized List<Shard> getCompleted() {
+        return new ArrayList<Shard>(completed);
+    }
+
+}
@@ -0,0 +1,91 @@
+package org.gesis.unloadtriplestore;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of Runnable, takes chunks from a ChunkRingBuffer and writes
+ * them into shards of a ShardSet. Several ShardWriters share one ring buffer,
+ * each fills and compresses its own shard, so compression runs on as many
+ * threads as there are writers. A shard is closed once it is full and a new
+ * one is started. If shards are written per graph, a writer keeps one open
+ * shard per graph. If a CheckpointJournal is set, the pages written to a shard
+ * are recorded together with the shard once it is closed.
+ *
+ */
+public class ShardWriter implements Runnable {
+
+    private ChunkRingBuffer ring = null;
+    private ShardSet shards = null;
+    private CheckpointJournal journal = null;
+    private final HashMap<String, Shard> open = new HashMap<String, Shard>();
+    private Exception lastException = null;
+
+    public ShardWriter(ChunkRingBuffer ring, ShardSet shards) {
+        this.ring = ring;
+        this.shards = shards;
+    }
+
+    public CheckpointJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @param journal Journal to record closed shards in
+     */
+    public void setJournal(CheckpointJournal journal) {
+        this.journal = journal;
+    }
+
+    public Exception getLastException() {
+        return lastException;
+    }
+
+    @Override
+    public void run() {
+        try {
+            Chunk chunk = ring.take();
+            while (chunk != null) {
+                String graph = shards.isPerGraph() ? chunk.getCoverage().getGraph() : null;
+                Shard shard = open.get(graph);
+                if (shard == null) {
+                    shard = shards.create(graph);
+                    shard.open(shards.getCompression());
+                    open.put(graph, shard);
+                }
+                shard.write(chunk);
+                ring.release(chunk);
+                if (shards.isFull(shard)) {
+                    open.remove(graph);
+                    closeShard(shard);
+                }
+
+                chunk = ring.take();
+            }
+            for (Shard shard : open.values()) {
+                closeShard(shard);
+            }
+            open.clear();
+
+        } catch (InterruptedException ex) {
+            lastException = ex;
+            ring.abort();
+            Logger.getLogger(ShardWriter.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (IOException ex) {
+            lastException = ex;
+            ring.abort();
+            Logger.getLogger(ShardWriter.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private void closeShard(Shard shard) throws IOException {
+        shard.close();
+        if (journal != null) {
+            journal.commit(shard);
+        }
+        shards.completed(shard);
+    }
+
+}
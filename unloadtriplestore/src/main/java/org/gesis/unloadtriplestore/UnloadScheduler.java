@@ -0,0 +1,328 @@
+package org.gesis.unloadtriplestore;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shared work queue for the SPARQLRequestors. Requestors take partitions
+ * whenever they are free, so a slow page does not hold back the others. In
+ * OFFSET mode pages are generated on demand until a short page marks the end
+ * of the data; requestors only report a page short once the rows behind it
+ * came back empty, so a page cut short by the endpoint does not end it. In
+ * KEYSET mode the key space starts as one range which is split by the
+ * requestors whenever another requestor runs out of work. Failed partitions
+ * are re-issued, OFFSET pages split in halves, until a page ran out of
+ * attempts. Attempts count the failures of the current page of a partition, a
+ * successful page resets them, so transient failures spread over a long key
+ * range do not add up.
+ *
+ * When unloading quads, every named graph is paged on its own. The graphs are
+ * started largest first and new OFFSET pages are taken from the graph with the
+ * most statements left, so large graphs are worked on by several requestors
+ * while small ones are done on the side.
+ *
+ */
+public class UnloadScheduler {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final char LOWEST = ' ';
+    private static final char HIGHEST = 0x7F;
+    private static final int MAX_KEY_LENGTH = 2048;
+
+    private final ArrayDeque<Partition> tasks = new ArrayDeque<Partition>();
+    private final PagingMode mode;
+    private final int workers;
+    private final ArrayList<GraphStream> streams = new ArrayList<GraphStream>();
+    private final HashMap<String, GraphStream> streamsByGraph = new HashMap<String, GraphStream>();
+    private boolean finished = false;
+    private int idle = 0;
+    private Exception failure = null;
+
+    //statistics
+    private long pages = 0;
+    private long statements = 0;
+    private long splits = 0;
+    private long retries = 0;
+
+    /**
+     * Paging state of one graph.
+     */
+    private static class GraphStream {
+
+        private final String graph;
+        private final long size;
+        private long nextOffset = 0;
+        private boolean endReached = false;
+
+        private GraphStream(String graph, long size) {
+            this.graph = graph;
+            this.size = size;
+        }
+
+    }
+
+    /**
+     * Creates a scheduler for the default graph.
+     *
+     * @param mode The paging mode of all requestors
+     * @param workers Number of requestors taking work from this scheduler
+     */
+    public UnloadScheduler(PagingMode mode, int workers) {
+        this.mode = mode;
+        this.workers = workers;
+        addStream(null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a scheduler for named graphs.
+     *
+     * @param mode The paging mode of all requestors
+     * @param workers Number of requestors taking work from this scheduler
+     * @param graphs The named graphs and their number of statements, largest
+     * first
+     */
+    public UnloadScheduler(PagingMode mode, int workers, Map<String, Long> graphs) {
+        this.mode = mode;
+        this.workers = workers;
+        for (Map.Entry<String, Long> graph : graphs.entrySet()) {
+            addStream(graph.getKey(), graph.getValue());
+        }
+    }
+
+    private void addStream(String graph, long size) {
+        GraphStream stream = new GraphStream(graph, size);
+        streams.add(stream);
+        streamsByGraph.put(graph, stream);
+        if (mode == PagingMode.KEYSET) {
+            tasks.add(range(graph, null, null));
+        }
+    }
+
+    public PagingMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Replaces the initial work by the work a checkpoint journal has not
+     * recorded as completed yet.
+     *
+     * @param journal A journal opened for resuming
+     */
+    public synchronized void resume(CheckpointJournal journal) {
+        tasks.clear();
+        for (GraphStream stream : streams) {
+            if (mode == PagingMode.KEYSET) {
+                tasks.addAll(journal.remainingRanges(stream.graph));
+            } else {
+                tasks.addAll(journal.remainingPages(stream.graph));
+                stream.nextOffset = journal.getNextOffset(stream.graph);
+                stream.endReached = journal.isEndReached(stream.graph);
+            }
+        }
+    }
+
+    /**
+     * Hands out the next partition. Blocks as long as there is no work but
+     * other requestors may still produce some.
+     *
+     * @param pageSize Size of a newly generated page, which only happens in
+     * OFFSET mode
+     * @return The next partition or null if the unloading is over
+     * @throws InterruptedException
+     */
+    public synchronized Partition take(long pageSize) throws InterruptedException {
+        idle++;
+        try {
+            while (!finished) {
+                Partition p = tasks.poll();
+                if (p != null) {
+                    return p;
+                }
+                GraphStream stream = mode == PagingMode.OFFSET ? nextStream() : null;
+                if (stream != null) {
+                    p = page(stream.graph, stream.nextOffset, pageSize);
+                    stream.nextOffset += pageSize;
+                    return p;
+                }
+                if (idle == workers) { //nobody left who could create work
+                    finished = true;
+                    notifyAll();
+                } else {
+                    wait();
+                }
+            }
+            return null;
+        } finally {
+            idle--;
+        }
+    }
+
+    /**
+     * @return The graph with the most statements left to page through, null if
+     * all graphs reached their end
+     */
+    private GraphStream nextStream() {
+        GraphStream next = null;
+        for (GraphStream stream : streams) {
+            if (!stream.endReached && (next == null || stream.size - stream.nextOffset > next.size - next.nextOffset)) {
+                next = stream;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Reports a successfully unloaded page.
+     *
+     * @param p The partition the page belongs to
+     * @param rows Number of rows the page returned, fewer than its limit only
+     * if the end of the data is confirmed
+     * @param cnt Number of statements passed on to the writer
+     */
+    public synchronized void pageDone(Partition p, long rows, long cnt) {
+        p.setAttempts(0);
+        pages++;
+        statements += cnt;
+        if (!p.isKeyset() && rows < p.getLimit()) {
+            streamsByGraph.get(p.getGraph()).endReached = true;
+        }
+    }
+
+    /**
+     * Reports a failed partition. The partition is re-issued as long as its
+     * current page has attempts left, otherwise the whole unloading is
+     * aborted.
+     *
+     * @param p The failed partition
+     * @param ex The cause
+     */
+    public synchronized void failed(Partition p, Exception ex) {
+        int attempts = p.getAttempts() + 1;
+        if (attempts >= MAX_ATTEMPTS) {
+            failure = ex;
+            finished = true;
+            notifyAll();
+            return;
+        }
+        retries++;
+        if (!p.isKeyset() && p.getLimit() > 1) { //retry in smaller pieces
+            long half = p.getLimit() / 2;
+            Partition first = page(p.getGraph(), p.getOffset(), half);
+            Partition second = page(p.getGraph(), p.getOffset() + half, p.getLimit() - half);
+            first.setAttempts(attempts);
+            second.setAttempts(attempts);
+            tasks.add(first);
+            tasks.add(second);
+        } else {
+            p.setAttempts(attempts);
+            tasks.add(p);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Aborts the unloading, e.g. because a requestor was stopped or the output
+     * failed.
+     *
+     * @param ex The cause
+     */
+    public synchronized void abort(Exception ex) {
+        if (failure == null) {
+            failure = ex;
+        }
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Splits the remaining key range of a partition if another requestor is
+     * waiting for work. The upper half is queued, the partition keeps the
+     * lower half.
+     *
+     * @param p A keyset partition
+     * @return true if the partition was split
+     */
+    public synchronized boolean split(Partition p) {
+        if (idle == 0 || !tasks.isEmpty() || finished) {
+            return false;
+        }
+        String mid = midpoint(p.getLowerKey(), p.getUpperKey());
+        if (mid == null) {
+            return false;
+        }
+        tasks.add(range(p.getGraph(), mid, p.getUpperKey()));
+        p.setUpperKey(mid);
+        splits++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return The exception that aborted the unloading, null otherwise
+     */
+    public synchronized Exception getFailure() {
+        return failure;
+    }
+
+    public synchronized long getPages() {
+        return pages;
+    }
+
+    public synchronized long getStatements() {
+        return statements;
+    }
+
+    public synchronized long getSplits() {
+        return splits;
+    }
+
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    private static Partition page(String graph, long offset, long limit) {
+        Partition p = Partition.page(offset, limit);
+        p.setGraph(graph);
+        return p;
+    }
+
+    private static Partition range(String graph, String lowerKey, String upperKey) {
+        Partition p = Partition.range(lowerKey, upperKey);
+        p.setGraph(graph);
+        return p;
+    }
+
+    /**
+     * Finds a key between two keys. Subject IRIs are mostly ASCII, so the
+     * midpoint is searched for in the printable ASCII range.
+     *
+     * @param lower Exclusive lower bound, null for no bound
+     * @param upper Exclusive upper bound, null for no bound
+     * @return A key strictly between both bounds or null if none was found
+     */
+    static String midpoint(String lower, String upper) {
+        String lo = lower == null ? "" : lower;
+        boolean bounded = upper != null;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < MAX_KEY_LENGTH; i++) {
+            int a = i < lo.length() ? lo.charAt(i) : LOWEST;
+            int b = bounded && i < upper.length() ? upper.charAt(i) : HIGHEST;
+            if (b - a >= 2) {
+                sb.append((char) ((a + b) / 2));
+                break;
+            }
+            sb.append((char) a);
+            if (a != b) { //everything from here on is below the upper bound
+                bounded = false;
+            }
+        }
+        String mid = sb.toString();
+        if (mid.compareTo(lo) > 0 && (upper == null || mid.compareTo(upper) < 0)) {
+            return mid;
+        }
+        return null;
+    }
+
+}